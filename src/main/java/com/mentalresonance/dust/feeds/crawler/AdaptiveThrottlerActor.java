@@ -0,0 +1,163 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import com.mentalresonance.dust.core.actors.Props;
+import com.mentalresonance.dust.feeds.page.RetryPolicy;
+import com.mentalresonance.dust.feeds.util.HostFairQueue;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+
+/**
+ * A {@link HostThrottlerActor} which adapts each host's interval and concurrency to how the host responds (AIMD):
+ * <ul>
+ *     <li>a fast, successful (2xx or 3xx) response shortens the interval by intervalStepMS (down to minIntervalMS), and a host
+ *     which has answered that many requests in a row at its current concurrency earns one more in flight
+ *     (up to maxPerHost)</li>
+ *     <li>a response slower than slowMS, or no response at all, doubles the interval and halves the concurrency</li>
+ *     <li>429 or 503 does the same and drops the host to one in flight. The host is blocked until its Retry-After
+ *     (capped at maxBlockMS) or for the new interval if there is none.</li>
+ *     <li>any other 4xx (403, 404 ..) says nothing about the host's capacity and changes nothing</li>
+ * </ul>
+ * It is a drop in replacement for a HostThrottlerActor.
+ */
+@Slf4j
+public class AdaptiveThrottlerActor extends HostThrottlerActor {
+
+	/**
+	 * Bounds on the interval
+	 */
+	protected long minIntervalMS;
+	protected long maxIntervalMS = 60000L;
+	/**
+	 * Interval is reduced by this on each good response
+	 */
+	protected long intervalStepMS = 50L;
+	/**
+	 * Maximum a host's concurrency may grow to
+	 */
+	protected int maxPerHost;
+	/**
+	 * Responses (smoothed) slower than this count as the host struggling
+	 */
+	protected long slowMS = 3000L;
+	/**
+	 * Longest we will honour a Retry-After for
+	 */
+	protected long maxBlockMS = 10 * 60000L;
+	/**
+	 * Smoothing of latency
+	 */
+	protected double alpha = 0.3;
+
+	/**
+	 * Maps host -> what we have seen of it
+	 */
+	private final LinkedHashMap<String, HostStats> stats = new LinkedHashMap<>();
+
+	/**
+	 * Props
+	 * @param startIntervalMS interval between requests to a host we know nothing about
+	 * @param minIntervalMS shortest interval a host can earn
+	 * @param maxPerHost most concurrency a host can earn
+	 * @param maxInFlight maximum in flight overall
+	 * @return Props
+	 */
+	public static Props props(Long startIntervalMS, Long minIntervalMS, Integer maxPerHost, Integer maxInFlight) {
+		return Props.create(AdaptiveThrottlerActor.class, startIntervalMS, minIntervalMS, maxPerHost, maxInFlight);
+	}
+
+	/**
+	 * Props - start at one request per second and earn up to 4 in flight per host, unlimited overall
+	 * @return Props
+	 */
+	public static Props props() {
+		return props(1000L, 100L, 4, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor
+	 * @param startIntervalMS interval between requests to a host we know nothing about
+	 * @param minIntervalMS shortest interval a host can earn
+	 * @param maxPerHost most concurrency a host can earn
+	 * @param maxInFlight maximum in flight overall
+	 */
+	public AdaptiveThrottlerActor(Long startIntervalMS, Long minIntervalMS, Integer maxPerHost, Integer maxInFlight) {
+		// New hosts start with one in flight
+		super(startIntervalMS, 1, maxInFlight);
+		this.minIntervalMS = Math.min(minIntervalMS, startIntervalMS);
+		this.maxIntervalMS = Math.max(maxIntervalMS, startIntervalMS);
+		this.maxPerHost = Math.max(1, maxPerHost);
+	}
+
+	@Override
+	protected void onFetchCompleted(HostFairQueue.Host<Grant> host, FetchCompletedMsg msg) {
+		HostStats hs = stats.computeIfAbsent(host.getName(), k -> new HostStats());
+		int code = msg.getCode();
+
+		hs.latencyMS = hs.latencyMS < 0 ? msg.getLatencyMS() : alpha * msg.getLatencyMS() + (1 - alpha) * hs.latencyMS;
+
+		if (429 == code || 503 == code) {
+			backOff(host, hs);
+			host.setMaxInFlight(1);
+			long retryAfter = retryAfterMS(msg.getRetryAfter());
+			host.setBlockedUntil(System.currentTimeMillis() + Math.min(maxBlockMS, retryAfter >= 0 ? retryAfter : host.getIntervalMS()));
+			log.info("{} answered {} - interval now {} ms, blocked for {} ms", host.getName(), code,
+				host.getIntervalMS(), host.getBlockedUntil() - System.currentTimeMillis());
+		}
+		else if (code < 0 || code >= 500 || hs.latencyMS > slowMS) {
+			backOff(host, hs);
+		}
+		else if (code < 400) {
+			host.setIntervalMS(Math.max(minIntervalMS, host.getIntervalMS() - intervalStepMS));
+			if (++hs.good >= host.getMaxInFlight() && host.getMaxInFlight() < maxPerHost) {
+				host.setMaxInFlight(host.getMaxInFlight() + 1);
+				hs.good = 0;
+			}
+		}
+		if (stats.size() > 2 * queue.numHosts() + 64)
+			stats.keySet().removeIf(h -> !queue.has(h));
+	}
+
+	private void backOff(HostFairQueue.Host<Grant> host, HostStats hs) {
+		host.setIntervalMS(Math.min(maxIntervalMS, Math.max(minIntervalMS, 2 * host.getIntervalMS())));
+		host.setMaxInFlight(Math.max(1, host.getMaxInFlight() / 2));
+		hs.good = 0;
+	}
+
+	/**
+	 * Parse Retry-After (delay in seconds or an HTTP date)
+	 * @param retryAfter header value or null
+	 * @return delay in ms or -1 if none or unparseable
+	 */
+	protected static long retryAfterMS(String retryAfter) {
+		return RetryPolicy.retryAfterMS(retryAfter);
+	}
+
+	private static class HostStats {
+		/**
+		 * Smoothed latency or -1 if unknown
+		 */
+		double latencyMS = -1;
+		/**
+		 * Good responses since concurrency last changed
+		 */
+		int good = 0;
+	}
+}
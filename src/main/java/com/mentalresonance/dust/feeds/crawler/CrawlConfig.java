@@ -0,0 +1,165 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import com.mentalresonance.dust.feeds.util.ResponseGate;
+import com.mentalresonance.dust.feeds.util.UrlCanonicalizer;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+
+/**
+ * Tuning knobs for a {@link SiteCrawlerPipeActor}. The defaults reproduce the behavior of a crawler created
+ * without a config.
+ */
+@Getter
+@Setter
+public class CrawlConfig implements Serializable {
+
+	/**
+	 * Maximum number of PageCrawlerActors alive at any one time. Further links wait in the frontier.
+	 */
+	private int maxActiveCrawlers = 16;
+	/**
+	 * Minimum time (ms) between requests to the same host
+	 */
+	private long throttleIntervalMS = 1000L;
+	/**
+	 * Maximum requests in flight to the same host
+	 */
+	private int maxFetchesPerHost = Integer.MAX_VALUE;
+	/**
+	 * If true each host's interval and concurrency adapt to how it responds (see {@link AdaptiveThrottlerActor}).
+	 * throttleIntervalMS is then the starting interval and maxFetchesPerHost the most concurrency a host can earn.
+	 */
+	private boolean adaptiveThrottle = false;
+	/**
+	 * Shortest interval an adaptive throttle will go down to
+	 */
+	private long minThrottleIntervalMS = 100L;
+	/**
+	 * If true links are pulled from pages with the single pass {@link LinkExtractor} rather than by building a Jsoup
+	 * DOM. Jsoup is still used if the extractor fails or finds nothing.
+	 */
+	private boolean streamingLinks = true;
+	/**
+	 * Which responses are read (by Content-Type and Content-Length) and the most bytes read from any one.
+	 * By default html up to 5MB.
+	 */
+	private ResponseGate responseGate = ResponseGate.HTML;
+	/**
+	 * If not null the path of a {@link com.mentalresonance.dust.feeds.warc.WarcWriterActor} which is sent every
+	 * page fetched, with its http headers, as a WarcRecordMsg
+	 */
+	private String warcWriter = null;
+	/**
+	 * Links more than this many hops from the root are not followed
+	 */
+	private int maxDepth = Integer.MAX_VALUE;
+	/**
+	 * Stop the crawl after fetching this many pages
+	 */
+	private int maxPages = Integer.MAX_VALUE;
+	/**
+	 * Stop the crawl after downloading this much content
+	 */
+	private long maxBytes = Long.MAX_VALUE;
+	/**
+	 * Orders the frontier
+	 */
+	private UrlScorer scorer = UrlScorer.DEFAULT;
+	/**
+	 * Thresholds for spotting crawl traps (calendars, faceted search etc.) - see {@link CrawlTrapDetector}.
+	 * If null (the default) there is no trap detection. Families are urls which differ only in numeric ids, so on
+	 * sites with many e.g. /article/&lt;id&gt; pages raise the limits to suit.
+	 */
+	private CrawlTrapDetector.Limits trapLimits = null;
+	/**
+	 * Taken off the score of links whose family is close to being a trap so they are crawled last
+	 */
+	private double trapPenalty = 1e4;
+	/**
+	 * If &gt;= 0 pages whose {@link com.mentalresonance.dust.feeds.util.SimHash} is within this many bits of a page
+	 * already sent on in this crawl are near-duplicates (3 is a good value). If &lt; 0 there is no near-duplicate
+	 * detection.
+	 */
+	private int nearDuplicateDistance = -1;
+	/**
+	 * If true near-duplicates are not sent on, otherwise they are sent on tagged
+	 * (see {@link SiteCrawlerPipeActor#tagNearDuplicate})
+	 */
+	private boolean dropNearDuplicates = true;
+	/**
+	 * If true the crawler registers a {@link SiteCrawlerMXBean} so its metrics can be watched over JMX
+	 */
+	private boolean jmx = false;
+	/**
+	 * If &gt; 0 the visited set and frontier are snapshotted this often (ms) so an interrupted crawl resumes
+	 * where it stopped when the crawler is restarted at the same path. If 0 the crawl is not checkpointed.
+	 */
+	private long checkpointIntervalMS = 0L;
+	/**
+	 * If true seed the frontier from the sitemaps listed in robots.txt (or /sitemap.xml if there are none)
+	 */
+	private boolean useSitemaps = false;
+	/**
+	 * Maximum number of sitemaps (including those found in sitemap indexes) to read
+	 */
+	private int maxSitemaps = 50;
+	/**
+	 * Sitemaps longer than this (as sent - gzipped sitemaps are not inflated until parsed) are not read. The sitemap
+	 * protocol allows at most 50MB.
+	 */
+	private long maxSitemapBytes = 50L << 20;
+	/**
+	 * Sitemap entries whose &lt;lastmod&gt; is not after this (ms since epoch) are skipped if we have crawled them
+	 * before (which we only know when incremental). If 0 the time the last crawl of the site completed is used (only
+	 * known when checkpointing).
+	 */
+	private long sitemapModifiedSince = 0L;
+	/**
+	 * If true remember the ETag, Last-Modified and a content fingerprint of every page. Recrawls revisit every page
+	 * we know about with conditional requests and only send on pages whose content changed. The records are kept in
+	 * the checkpoint so this needs checkpointing on to survive restarts.
+	 */
+	private boolean incremental = false;
+	/**
+	 * If not null this node's part in a crawl spread over several nodes. Every node must be sent the root
+	 * PageCrawlMsg. Page and byte budgets are per node. Not for use with checkpointing.
+	 */
+	private CrawlPartition partition = null;
+	/**
+	 * Builds the keys used to decide whether two links are the same page. By default http/https, www. and trailing
+	 * '/' variants are the same page and tracking and session id parameters are ignored.
+	 */
+	private UrlCanonicalizer canonicalizer = UrlCanonicalizer.crawler();
+
+	/**
+	 * Constructor
+	 */
+	public CrawlConfig() {}
+
+	/**
+	 * Is checkpointing on
+	 * @return true if crawl state is periodically snapshotted
+	 */
+	public boolean isCheckpointing() {
+		return checkpointIntervalMS > 0;
+	}
+}
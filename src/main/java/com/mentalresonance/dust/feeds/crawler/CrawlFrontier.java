@@ -0,0 +1,127 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Links waiting to be crawled, highest score first and in the order found for equal scores.
+ * Serializable so it can be checkpointed as part of {@link CrawlState}.
+ */
+public class CrawlFrontier implements Serializable {
+
+	private final PriorityQueue<Entry> queue = new PriorityQueue<>(new EntryOrder());
+	private long seq = 0L;
+
+	/**
+	 * Constructor
+	 */
+	public CrawlFrontier() {}
+
+	/**
+	 * Add a link to be crawled
+	 * @param entry to add
+	 */
+	public void add(Entry entry) {
+		entry.seq = seq++;
+		queue.add(entry);
+	}
+
+	/**
+	 * Next link to crawl
+	 * @return next entry or null if empty
+	 */
+	public Entry poll() {
+		return queue.poll();
+	}
+
+	/**
+	 * Size
+	 * @return number of links waiting
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Empty ?
+	 * @return true if nothing is waiting
+	 */
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * A link waiting to be crawled
+	 */
+	@Getter
+	public static class Entry implements Serializable {
+		/**
+		 * Url to access - not normalized
+		 */
+		private final String url;
+		/**
+		 * Type the page will be given ('root' or 'page' or a filter type)
+		 */
+		private final String type;
+		/**
+		 * Links followed from the root to get here
+		 */
+		private final int depth;
+		/**
+		 * Priority - see {@link UrlScorer}
+		 */
+		private final double score;
+		private long seq = 0L;
+
+		/**
+		 * Constructor
+		 * @param url to crawl
+		 * @param type of page
+		 */
+		public Entry(String url, String type) {
+			this(url, type, 0, 0.0);
+		}
+
+		/**
+		 * Constructor
+		 * @param url to crawl
+		 * @param type of page
+		 * @param depth of page
+		 * @param score priority of page
+		 */
+		public Entry(String url, String type, int depth, double score) {
+			this.url = url;
+			this.type = type;
+			this.depth = depth;
+			this.score = score;
+		}
+	}
+
+	private static class EntryOrder implements Comparator<Entry>, Serializable {
+		@Override
+		public int compare(Entry a, Entry b) {
+			int c = Double.compare(b.score, a.score);
+			return 0 != c ? c : Long.compare(a.seq, b.seq);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import com.mentalresonance.dust.feeds.util.Fingerprints;
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Splits a crawl over several Dust nodes. Every node runs a {@link SiteCrawlerPipeActor} with the same peers list
+ * (the paths of all the crawlers, e.g. dust://host:port/system/user/pipe/crawler, in the same order everywhere) and
+ * its own index in it. Each url belongs to exactly one node, chosen by hashing the url (or just its host), and only
+ * that node fetches it - links found elsewhere are sent to it.
+ *
+ * Each node applies its own throttle and budget, so when partitioning a single site by url the throttle interval
+ * should be scaled by the number of nodes.
+ */
+@Getter
+public class CrawlPartition implements Serializable {
+
+	/**
+	 * Paths of the crawlers on every node
+	 */
+	private final List<String> peers;
+	/**
+	 * Index of this node in peers. Node 0 decides when the crawl is finished.
+	 */
+	private final int self;
+	/**
+	 * If true partition by host (keeps a host on one node, so one throttler sees all its requests)
+	 * else by url (spreads a single site over all nodes)
+	 */
+	private final boolean byHost;
+
+	/**
+	 * Constructor
+	 * @param peers paths of the crawlers on every node
+	 * @param self index of this node in peers
+	 * @param byHost partition by host rather than url
+	 */
+	public CrawlPartition(List<String> peers, int self, boolean byHost) {
+		this.peers = peers;
+		this.self = self;
+		this.byHost = byHost;
+	}
+
+	/**
+	 * Which node owns a url
+	 * @param url normalized url
+	 * @return index in peers
+	 */
+	public int owner(String url) {
+		String key = url;
+		if (byHost) {
+			try {
+				String host = URI.create(url).getHost();
+				if (null != host)
+					key = host;
+			} catch (IllegalArgumentException ignored) {
+				// Hash the whole url
+			}
+		}
+		return (int) Math.floorMod(Fingerprints.fnv1a64(key), (long) peers.size());
+	}
+
+	/**
+	 * Does this node own url
+	 * @param url normalized url
+	 * @return true if we fetch it
+	 */
+	public boolean owns(String url) {
+		return owner(url) == self;
+	}
+
+	/**
+	 * Is this node the one which decides when the crawl is finished
+	 * @return true if node 0
+	 */
+	public boolean isCoordinator() {
+		return 0 == self;
+	}
+
+	/**
+	 * Number of nodes
+	 * @return size
+	 */
+	public int size() {
+		return peers.size();
+	}
+}
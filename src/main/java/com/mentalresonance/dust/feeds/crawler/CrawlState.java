@@ -0,0 +1,111 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import com.mentalresonance.dust.feeds.util.SimHashIndex;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+
+/**
+ * Everything a {@link SiteCrawlerPipeActor} needs to resume a crawl. This is the snapshot class when
+ * checkpointing is on.
+ */
+public class CrawlState implements Serializable {
+
+	/**
+	 * Normalized root url of the crawl
+	 */
+	public String root = null;
+	/**
+	 * Maps normalized url -> status of the page. Every url we have queued is in here so we never queue a page twice.
+	 */
+	public LinkedHashMap<String, String> pages = new LinkedHashMap<>();
+	/**
+	 * Links waiting to be crawled
+	 */
+	public CrawlFrontier frontier = new CrawlFrontier();
+	/**
+	 * Maps normalized url -> entry for pages handed to a PageCrawlerActor which have not yet come back. If we are
+	 * interrupted these go back on the frontier.
+	 */
+	public LinkedHashMap<String, CrawlFrontier.Entry> inFlight = new LinkedHashMap<>();
+	/**
+	 * When the last crawl of this site finished (ms since epoch) or 0 if it never has
+	 */
+	public long lastCompletedTs = 0L;
+	/**
+	 * Pages handed to PageCrawlerActors and content received in this crawl - for the crawl budget
+	 */
+	public int numFetched = 0;
+	public long numBytes = 0L;
+	/**
+	 * Maps normalized url -> validators and content fingerprint of the page. Kept across crawls when
+	 * {@link CrawlConfig#isIncremental()}.
+	 */
+	public LinkedHashMap<String, PageRecord> records = new LinkedHashMap<>();
+	/**
+	 * Trap detection for this crawl or null if off
+	 */
+	public CrawlTrapDetector traps = null;
+	/**
+	 * SimHashes of pages sent on in this crawl or null if near-duplicate detection is off
+	 */
+	public SimHashIndex sent = null;
+
+	/**
+	 * Constructor
+	 */
+	public CrawlState() {}
+
+	/**
+	 * Constructor
+	 * @param root normalized root url
+	 */
+	public CrawlState(String root) {
+		this.root = root;
+	}
+
+	/**
+	 * State for the next crawl of the same site - we keep only what we know about previous crawls
+	 * @return new state
+	 */
+	public CrawlState nextCrawl() {
+		CrawlState next = new CrawlState(root);
+		next.lastCompletedTs = lastCompletedTs;
+		next.records = records;
+		return next;
+	}
+
+	/**
+	 * Put pages which were being crawled when we were interrupted back on the frontier
+	 */
+	public void requeueInFlight() {
+		numFetched = Math.max(0, numFetched - inFlight.size());
+		inFlight.values().forEach(frontier::add);
+		inFlight.clear();
+	}
+
+	/**
+	 * Is there anything left to do
+	 * @return true if there are queued or in flight pages
+	 */
+	public boolean hasPending() {
+		return !frontier.isEmpty() || !inFlight.isEmpty();
+	}
+}
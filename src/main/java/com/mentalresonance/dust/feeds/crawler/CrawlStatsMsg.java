@@ -0,0 +1,106 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import com.mentalresonance.dust.feeds.util.LogHistogram;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+
+/**
+ * Send to a {@link SiteCrawlerPipeActor} to find out how its crawl is going - it is sent back filled in.
+ */
+@Getter
+@Setter
+public class CrawlStatsMsg implements Serializable {
+	/**
+	 * Root url of the crawl (null if not started)
+	 */
+	private String root;
+	/**
+	 * When the crawl started (ms since epoch)
+	 */
+	private long startedTs;
+	/**
+	 * Distinct urls seen (queued, crawled, pruned etc.)
+	 */
+	private int pagesSeen;
+	/**
+	 * Links waiting on the frontier
+	 */
+	private int frontierSize;
+	/**
+	 * Pages handed to PageCrawlerActors
+	 */
+	private int pagesFetched;
+	/**
+	 * Bytes of content received
+	 */
+	private long bytes;
+	/**
+	 * Pages sent on as HtmlDocumentMsgs
+	 */
+	private int pagesSent;
+	/**
+	 * PageCrawlerActors alive now and the most there have been at once
+	 */
+	private int activeCrawlers;
+	private int peakActiveCrawlers;
+	/**
+	 * Pages being fetched
+	 */
+	private int inFlight;
+	/**
+	 * Pages fetched per second since the crawl started
+	 */
+	private double pagesPerSecond;
+	/**
+	 * Pages robots.txt would not let us fetch
+	 */
+	private int robotsDenied;
+	/**
+	 * Pages which could not be crawled (error status, rejected by the response gate, no response ..)
+	 */
+	private int pagesFailed;
+	/**
+	 * Links not queued because they had been seen already
+	 */
+	private long duplicateLinks;
+	/**
+	 * Pages not sent on because they were near-duplicates
+	 */
+	private int nearDuplicates;
+	/**
+	 * Links pruned as crawl traps
+	 */
+	private int trapsPruned;
+	/**
+	 * Time (ms) from request to body read, parsing and waiting for the throttler (overall and by host)
+	 */
+	private LogHistogram fetchLatency = new LogHistogram();
+	private LogHistogram parseTime = new LogHistogram();
+	private LogHistogram throttleWait = new LogHistogram();
+	private LinkedHashMap<String, LogHistogram> throttleWaitByHost = new LinkedHashMap<>();
+
+	/**
+	 * Constructor
+	 */
+	public CrawlStatsMsg() {}
+}
@@ -0,0 +1,238 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import com.mentalresonance.dust.feeds.util.Fingerprints;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Spots url spaces which go on forever (calendars, faceted search, session ids in paths, relative link loops).
+ * Links are grouped into families by their pattern - the path with digit runs and id-like segments wildcarded plus
+ * the names (not values) of the query parameters. A link is
+ * <ul>
+ *     <li>pruned if its path repeats a segment too often or is too deep, it has too many query parameters,
+ *     its path has been seen with too many different queries, its family has too many members, or its family has
+ *     produced too many near-identical pages</li>
+ *     <li>throttled (pushed to the back of the frontier) once its family is half way to the limit</li>
+ * </ul>
+ * Near-identical means the same content once digits and whitespace are ignored.
+ *
+ * Part of {@link CrawlState} so it is checkpointed with the crawl.
+ */
+@Slf4j
+public class CrawlTrapDetector implements Serializable {
+
+	/**
+	 * What to do with a link
+	 */
+	public enum Verdict { OK, THROTTLE, PRUNE }
+
+	private final Limits limits;
+	/**
+	 * Maps family -> number of links
+	 */
+	private final HashMap<String, Integer> families = new HashMap<>();
+	/**
+	 * Maps path -> number of links with that path and a query
+	 */
+	private final HashMap<String, Integer> queryVariants = new HashMap<>();
+	/**
+	 * Maps family -> number of fetched pages which were near-identical to one already seen
+	 */
+	private final HashMap<String, Integer> nearDuplicates = new HashMap<>();
+	private final HashSet<Long> skeletons = new HashSet<>();
+	/**
+	 * Families found to be traps
+	 */
+	private final HashSet<String> traps = new HashSet<>();
+
+	/**
+	 * Constructor
+	 * @param limits thresholds
+	 */
+	public CrawlTrapDetector(Limits limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * Judge a new link and count it
+	 * @param url normalized url of link
+	 * @return Verdict
+	 */
+	public Verdict check(String url) {
+		int pathStart = pathStart(url);
+		int queryStart = url.indexOf('?', pathStart);
+		String path = queryStart < 0 ? url.substring(pathStart) : url.substring(pathStart, queryStart);
+		String family = family(path, queryStart < 0 ? null : url.substring(queryStart + 1));
+
+		if (traps.contains(family))
+			return Verdict.PRUNE;
+
+		String[] segments = path.split("/");
+		if (segments.length > limits.maxPathSegments || hasRepeats(segments))
+			return trap(family, url, "path");
+
+		if (queryStart >= 0) {
+			if (url.chars().skip(queryStart).filter(c -> c == '&').count() + 1 > limits.maxQueryParams)
+				return trap(family, url, "query parameters");
+			if (queryVariants.merge(path, 1, Integer::sum) > limits.maxQueryVariants)
+				return trap(family, url, "query variants");
+		}
+
+		int n = families.merge(family, 1, Integer::sum);
+		if (n > limits.maxPerFamily)
+			return trap(family, url, "family size");
+		return n > limits.maxPerFamily / 2 ? Verdict.THROTTLE : Verdict.OK;
+	}
+
+	/**
+	 * A page has been fetched - look for near-identical content
+	 * @param url normalized url of page
+	 * @param content of page
+	 * @return PRUNE if the page's family is now a trap (so its links should not be followed), else OK
+	 */
+	public Verdict fetched(String url, String content) {
+		if (null == content || content.isEmpty())
+			return Verdict.OK;
+
+		int pathStart = pathStart(url);
+		int queryStart = url.indexOf('?', pathStart);
+		String family = queryStart < 0 ?
+			family(url.substring(pathStart), null) :
+			family(url.substring(pathStart, queryStart), url.substring(queryStart + 1));
+
+		if (!skeletons.add(Fingerprints.skeleton(content)) &&
+			nearDuplicates.merge(family, 1, Integer::sum) > limits.maxNearDuplicates)
+			trap(family, url, "near-identical pages");
+		return traps.contains(family) ? Verdict.PRUNE : Verdict.OK;
+	}
+
+	/**
+	 * Number of traps found
+	 * @return number of families marked as traps
+	 */
+	public int numTraps() {
+		return traps.size();
+	}
+
+	private Verdict trap(String family, String url, String why) {
+		if (traps.add(family))
+			log.info("Crawl trap ({}) at {} - pruning {}", why, url, family);
+		return Verdict.PRUNE;
+	}
+
+	private static int pathStart(String url) {
+		int scheme = url.indexOf("://");
+		int slash = url.indexOf('/', scheme < 0 ? 0 : scheme + 3);
+		return slash < 0 ? url.length() : slash;
+	}
+
+	/**
+	 * Path with digit runs replaced by '#' and long id-like segments by '*', plus sorted query parameter names
+	 */
+	static String family(String path, String query) {
+		StringBuilder sb = new StringBuilder(path.length() + 16);
+
+		for (String segment : path.split("/")) {
+			if (segment.isEmpty())
+				continue;
+			sb.append('/');
+			if (segment.length() >= 16 && segment.chars().allMatch(c -> Character.isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || c == '-'))
+				sb.append('*');
+			else {
+				boolean inDigits = false;
+				for (int i = 0; i < segment.length(); ++i) {
+					char c = segment.charAt(i);
+					if (Character.isDigit(c)) {
+						if (!inDigits)
+							sb.append('#');
+						inDigits = true;
+					}
+					else {
+						sb.append(c);
+						inDigits = false;
+					}
+				}
+			}
+		}
+		if (null != query) {
+			String[] names = query.split("&");
+			for (int i = 0; i < names.length; ++i) {
+				int eq = names[i].indexOf('=');
+				if (eq >= 0)
+					names[i] = names[i].substring(0, eq);
+			}
+			Arrays.sort(names);
+			sb.append('?').append(String.join("&", names));
+		}
+		return sb.toString();
+	}
+
+	private boolean hasRepeats(String[] segments) {
+		HashMap<String, Integer> counts = new HashMap<>();
+		for (String segment : segments) {
+			if (!segment.isEmpty() && counts.merge(segment, 1, Integer::sum) > limits.maxSegmentRepeats)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Thresholds for trap detection
+	 */
+	@Getter
+	@Setter
+	public static class Limits implements Serializable {
+		/**
+		 * Most links in one family. Links are throttled once half of this is reached.
+		 */
+		private int maxPerFamily = 1000;
+		/**
+		 * Most times the same segment may appear in a path
+		 */
+		private int maxSegmentRepeats = 2;
+		/**
+		 * Most segments in a path
+		 */
+		private int maxPathSegments = 16;
+		/**
+		 * Most query parameters in a link
+		 */
+		private int maxQueryParams = 8;
+		/**
+		 * Most different queries on the same path
+		 */
+		private int maxQueryVariants = 200;
+		/**
+		 * Most near-identical pages from one family
+		 */
+		private int maxNearDuplicates = 20;
+
+		/**
+		 * Constructor
+		 */
+		public Limits() {}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
+import lombok.Getter;
+
+import java.io.Serializable;
+
+/**
+ * Fetcher -> throttler. A request the throttler let through has completed, so it can release the slot and learn
+ * from how the host responded.
+ */
+@Getter
+public class FetchCompletedMsg implements Serializable {
+	/**
+	 * Url fetched
+	 */
+	private final String url;
+	/**
+	 * Http status or -1 if there was no response
+	 */
+	private final int code;
+	/**
+	 * Time from the request being sent to the response headers arriving
+	 */
+	private final long latencyMS;
+	/**
+	 * Retry-After header if any
+	 */
+	private final String retryAfter;
+
+	/**
+	 * Constructor
+	 * @param url fetched
+	 * @param code http status or -1
+	 * @param latencyMS of request
+	 * @param retryAfter header or null
+	 */
+	public FetchCompletedMsg(String url, int code, long latencyMS, String retryAfter) {
+		this.url = url;
+		this.code = code;
+		this.latencyMS = latencyMS;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Build from a completed request
+	 * @param rrm the completed request
+	 * @param startedTs when the request was sent
+	 * @return FetchCompletedMsg
+	 */
+	public static FetchCompletedMsg of(HttpRequestResponseMsg rrm, long startedTs) {
+		return new FetchCompletedMsg(
+			rrm.request.url().toString(),
+			null != rrm.response ? rrm.response.code() : -1,
+			System.currentTimeMillis() - startedTs,
+			null != rrm.response ? rrm.response.header("Retry-After") : null
+		);
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import com.mentalresonance.dust.core.actors.Actor;
+import com.mentalresonance.dust.core.actors.ActorBehavior;
+import com.mentalresonance.dust.core.actors.ActorRef;
+import com.mentalresonance.dust.core.actors.Cancellable;
+import com.mentalresonance.dust.core.actors.Props;
+import com.mentalresonance.dust.feeds.util.HostFairQueue;
+import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-host throttler for http requests which can be shared by many crawlers. Like ThrottlingRelayActor a request
+ * sent here is sent back to its sender (with proxied set) when it may go, but requests are queued per host and hosts
+ * are served round-robin, subject to
+ * <ul>
+ *     <li>a minimum interval between requests to the same host</li>
+ *     <li>a maximum number of requests in flight to the same host</li>
+ *     <li>a maximum number of requests in flight overall</li>
+ * </ul>
+ * Whoever makes the request must send a {@link FetchCompletedMsg} here when it completes, whatever the outcome
+ * ({@link PageCrawlerActor} and the RSS feed actors do). If one never arrives the slot is only reclaimed after
+ * leaseMS - with an {@link AdaptiveThrottlerActor}, which starts each host at one in flight, that is one request per
+ * lease.
+ */
+@Slf4j
+public class HostThrottlerActor extends Actor {
+
+	/**
+	 * Requests waiting to go, per host
+	 */
+	protected HostFairQueue<Grant> queue;
+	/**
+	 * Maps url -> requests that have gone and not yet completed
+	 */
+	protected LinkedHashMap<String, Lease> leases = new LinkedHashMap<>();
+	/**
+	 * Requests are assumed complete after this long
+	 */
+	protected long leaseMS = 5 * 60000L;
+	/**
+	 * Idle hosts are forgotten after this long, even if we have learned limits for them
+	 */
+	protected long forgetIdleMS = 30 * 60000L;
+
+	private Cancellable tick = null;
+	private long tickAt = 0L;
+
+	/**
+	 * Props
+	 * @param intervalMS minimum time between requests to the same host
+	 * @param maxPerHost maximum in flight to the same host
+	 * @param maxInFlight maximum in flight overall
+	 * @return Props
+	 */
+	public static Props props(Long intervalMS, Integer maxPerHost, Integer maxInFlight) {
+		return Props.create(HostThrottlerActor.class, intervalMS, maxPerHost, maxInFlight);
+	}
+
+	/**
+	 * Props - only the interval between requests to the same host is limited
+	 * @param intervalMS minimum time between requests to the same host
+	 * @return Props
+	 */
+	public static Props props(Long intervalMS) {
+		return props(intervalMS, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Props for the throttler described by config - an {@link AdaptiveThrottlerActor} if
+	 * {@link CrawlConfig#isAdaptiveThrottle()}
+	 * @param config crawl configuration
+	 * @param maxInFlight maximum in flight overall
+	 * @return Props
+	 */
+	public static Props props(CrawlConfig config, Integer maxInFlight) {
+		return config.isAdaptiveThrottle() ?
+			AdaptiveThrottlerActor.props(
+				config.getThrottleIntervalMS(), config.getMinThrottleIntervalMS(), config.getMaxFetchesPerHost(), maxInFlight
+			) :
+			props(config.getThrottleIntervalMS(), config.getMaxFetchesPerHost(), maxInFlight);
+	}
+
+	/**
+	 * Constructor
+	 * @param intervalMS minimum time between requests to the same host
+	 * @param maxPerHost maximum in flight to the same host
+	 * @param maxInFlight maximum in flight overall
+	 */
+	public HostThrottlerActor(Long intervalMS, Integer maxPerHost, Integer maxInFlight) {
+		queue = new HostFairQueue<>(maxInFlight, intervalMS, maxPerHost);
+	}
+
+	@Override
+	protected void postStop() {
+		if (null != tick)
+			tick.cancel();
+	}
+
+	@Override
+	protected ActorBehavior createBehavior() {
+		return (Serializable message) -> {
+			switch(message) {
+
+				case HttpRequestResponseMsg msg:
+					queue.add(msg.request.url().host(), new Grant(msg, sender));
+					release();
+					break;
+
+				case FetchCompletedMsg msg:
+					Lease lease = leases.remove(msg.getUrl());
+					if (null != lease) {
+						queue.release(lease.host);
+						onFetchCompleted(queue.host(lease.host), msg);
+					}
+					release();
+					break;
+
+				case TickMsg ignored:
+					tick = null;
+					expireLeases();
+					queue.prune(System.currentTimeMillis(), forgetIdleMS);
+					release();
+					break;
+
+				default: log.warn("{} got unexpected message {}", self.path, message);
+			}
+		};
+	}
+
+	/**
+	 * Let go every request which may go now and arrange to be woken when the next one might
+	 */
+	protected void release() {
+		long now = System.currentTimeMillis();
+		HostFairQueue.Entry<Grant> entry;
+
+		while (null != (entry = queue.poll(now))) {
+			HttpRequestResponseMsg msg = entry.getItem().msg;
+			String url = msg.request.url().toString();
+			Lease previous = leases.remove(url);
+
+			if (null != previous) // Same url twice - don't leak the first slot
+				queue.release(previous.host);
+			leases.put(url, new Lease(msg.request.url().host(), now));
+			msg.setProxied(true);
+			entry.getItem().requester.tell(msg, self);
+		}
+
+		long wait = queue.nextReadyIn(now);
+		if (wait < 0 && !leases.isEmpty())
+			wait = leaseMS;
+		if (wait >= 0)
+			wakeAt(now + Math.max(wait, 5L));
+	}
+
+	/**
+	 * Called when a request to host completes - subclasses can adapt the host's limits
+	 * @param host state of the host
+	 * @param msg how the request went
+	 */
+	protected void onFetchCompleted(HostFairQueue.Host<Grant> host, FetchCompletedMsg msg) {}
+
+	private void wakeAt(long at) {
+		if (null == tick || at < tickAt) {
+			if (null != tick)
+				tick.cancel();
+			tickAt = at;
+			tick = scheduleIn(new TickMsg(), Math.max(0L, at - System.currentTimeMillis()));
+		}
+	}
+
+	private void expireLeases() {
+		long expired = System.currentTimeMillis() - leaseMS;
+		Iterator<Map.Entry<String, Lease>> it = leases.entrySet().iterator();
+
+		while (it.hasNext()) {
+			Map.Entry<String, Lease> e = it.next();
+			if (e.getValue().grantedTs > expired)
+				break; // In grant order
+			log.warn("No completion for {} - releasing its slot", e.getKey());
+			queue.release(e.getValue().host);
+			it.remove();
+		}
+	}
+
+	/**
+	 * A waiting request and who to send it back to
+	 */
+	protected static class Grant {
+		final HttpRequestResponseMsg msg;
+		final ActorRef requester;
+
+		Grant(HttpRequestResponseMsg msg, ActorRef requester) {
+			this.msg = msg;
+			this.requester = requester;
+		}
+	}
+
+	/**
+	 * A request which has gone
+	 */
+	protected static class Lease {
+		final String host;
+		final long grantedTs;
+
+		Lease(String host, long grantedTs) {
+			this.host = host;
+			this.grantedTs = grantedTs;
+		}
+	}
+
+	private static class TickMsg implements Serializable {}
+}
@@ -0,0 +1,312 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull links out of html in a single pass over the string without building a DOM. Only &lt;a href&gt; (with its
+ * anchor text) and &lt;base href&gt; are looked at. Comments and the contents of script, style and textarea are skipped.
+ * The result has the same shape as HtmlService.links() - a list of [absolute url, anchor text].
+ *
+ * This is a tokenizer not a parser so badly broken html may give different answers to Jsoup. Callers keep Jsoup as
+ * the fallback.
+ */
+public class LinkExtractor {
+
+	private final String html;
+	private final int len;
+	private int pos = 0;
+
+	private LinkExtractor(String html) {
+		this.html = html;
+		this.len = html.length();
+	}
+
+	/**
+	 * Extract links
+	 * @param html of page
+	 * @param pageUrl url of page - relative links are resolved against this or &lt;base href&gt; if present
+	 * @param onSite if true only return links to the same host as pageUrl (ignoring www.)
+	 * @return list of [url, anchor text]
+	 * @throws Exception if pageUrl is not a valid URI
+	 */
+	public static List<List<String>> links(String html, String pageUrl, boolean onSite) throws Exception {
+		return new LinkExtractor(html).extract(new URI(pageUrl), onSite);
+	}
+
+	private List<List<String>> extract(URI page, boolean onSite) {
+		List<List<String>> links = new ArrayList<>();
+		String host = stripWww(page.getHost());
+		URI base = page;
+		boolean haveBase = false;
+		String href = null;
+		StringBuilder text = new StringBuilder();
+
+		while (pos < len) {
+			int lt = html.indexOf('<', pos);
+			if (lt < 0) {
+				if (null != href)
+					appendText(text, pos, len);
+				break;
+			}
+			if (null != href)
+				appendText(text, pos, lt);
+			pos = lt + 1;
+
+			if (startsWith("!--")) {
+				int end = html.indexOf("-->", pos + 3);
+				pos = end < 0 ? len : end + 3;
+				continue;
+			}
+			boolean closing = pos < len && html.charAt(pos) == '/';
+			if (closing)
+				++pos;
+			int nameStart = pos;
+			while (pos < len && isNameChar(html.charAt(pos)))
+				++pos;
+			if (pos == nameStart) { // Not a tag e.g. '<' in text or <!DOCTYPE
+				if (null != href && !closing)
+					text.append('<');
+				if (pos < len && (html.charAt(pos) == '!' || html.charAt(pos) == '?'))
+					skipTag();
+				continue;
+			}
+			String name = html.substring(nameStart, pos).toLowerCase();
+
+			if (closing) {
+				skipTag();
+				if (null != href && name.equals("a")) {
+					addLink(links, base, href, text, host, onSite);
+					href = null;
+				}
+				continue;
+			}
+			switch (name) {
+				case "a" -> {
+					if (null != href) // Unclosed <a> - html parsers close it here too
+						addLink(links, base, href, text, host, onSite);
+					href = attribute("href");
+					text.setLength(0);
+				}
+				case "base" -> {
+					String baseHref = attribute("href");
+					if (!haveBase && null != baseHref) {
+						try {
+							base = page.resolve(baseHref.trim());
+							haveBase = true;
+						} catch (Exception ignored) {}
+					}
+				}
+				case "script", "style", "textarea", "title" -> {
+					skipTag();
+					skipRawText(name);
+				}
+				default -> {
+					skipTag();
+					if (null != href && isBlock(name))
+						text.append(' ');
+				}
+			}
+		}
+		if (null != href)
+			addLink(links, base, href, text, host, onSite);
+		return links;
+	}
+
+	/**
+	 * Read attributes of the current tag up to and including its '&gt;' returning the value of the one wanted
+	 */
+	private String attribute(String wanted) {
+		String found = null;
+
+		while (pos < len) {
+			char c = html.charAt(pos);
+			if (c == '>') {
+				++pos;
+				break;
+			}
+			if (Character.isWhitespace(c) || c == '/') {
+				++pos;
+				continue;
+			}
+			int nameStart = pos;
+			while (pos < len && !Character.isWhitespace(html.charAt(pos)) && "=>/".indexOf(html.charAt(pos)) < 0)
+				++pos;
+			String name = html.substring(nameStart, pos);
+			while (pos < len && Character.isWhitespace(html.charAt(pos)))
+				++pos;
+			String value = null;
+			if (pos < len && html.charAt(pos) == '=') {
+				++pos;
+				while (pos < len && Character.isWhitespace(html.charAt(pos)))
+					++pos;
+				if (pos < len && (html.charAt(pos) == '"' || html.charAt(pos) == '\'')) {
+					char quote = html.charAt(pos++);
+					int end = html.indexOf(quote, pos);
+					if (end < 0) end = len;
+					value = html.substring(pos, end);
+					pos = Math.min(len, end + 1);
+				}
+				else {
+					int start = pos;
+					while (pos < len && !Character.isWhitespace(html.charAt(pos)) && html.charAt(pos) != '>')
+						++pos;
+					value = html.substring(start, pos);
+				}
+			}
+			if (null == found && null != value && name.equalsIgnoreCase(wanted))
+				found = decodeEntities(value, 0, value.length(), new StringBuilder()).toString();
+		}
+		return found;
+	}
+
+	private void skipTag() {
+		attribute("");
+	}
+
+	private void skipRawText(String name) {
+		int i = pos;
+		while (true) {
+			int end = html.indexOf("</", i);
+			if (end < 0) {
+				pos = len;
+				return;
+			}
+			if (html.regionMatches(true, end + 2, name, 0, name.length())) {
+				pos = end;
+				return;
+			}
+			i = end + 2;
+		}
+	}
+
+	private boolean startsWith(String s) {
+		return html.startsWith(s, pos);
+	}
+
+	private void appendText(StringBuilder text, int from, int to) {
+		decodeEntities(html, from, to, text);
+	}
+
+	private static void addLink(List<List<String>> links, URI base, String href, StringBuilder text, String host, boolean onSite) {
+		href = href.trim();
+		if (href.isEmpty() || href.startsWith("#"))
+			return;
+		String lower = href.toLowerCase();
+		if (lower.startsWith("javascript:") || lower.startsWith("mailto:") || lower.startsWith("tel:") || lower.startsWith("data:"))
+			return;
+		try {
+			URI uri = base.resolve(href.replace(" ", "%20"));
+			String scheme = uri.getScheme();
+			if (null == scheme || !(scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https")))
+				return;
+			if (onSite && (null == uri.getHost() || !stripWww(uri.getHost()).equals(host)))
+				return;
+			links.add(List.of(uri.toString(), collapse(text)));
+		}
+		catch (Exception ignored) {
+			// Unparseable href - Jsoup would drop it too
+		}
+	}
+
+	private static String collapse(StringBuilder text) {
+		StringBuilder out = new StringBuilder(text.length());
+		boolean space = false;
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c) || c == '\u00a0')
+				space = !out.isEmpty();
+			else {
+				if (space)
+					out.append(' ');
+				out.append(c);
+				space = false;
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Decode the common named entities and numeric entities - enough for hrefs and anchor text
+	 */
+	private static StringBuilder decodeEntities(String s, int from, int to, StringBuilder out) {
+		int i = from;
+		while (i < to) {
+			char c = s.charAt(i);
+			if (c != '&') {
+				out.append(c);
+				++i;
+				continue;
+			}
+			int semi = s.indexOf(';', i);
+			if (semi < 0 || semi >= to || semi - i > 10) {
+				out.append(c);
+				++i;
+				continue;
+			}
+			String entity = s.substring(i + 1, semi);
+			String decoded = switch (entity) {
+				case "amp" -> "&";
+				case "lt" -> "<";
+				case "gt" -> ">";
+				case "quot" -> "\"";
+				case "apos" -> "'";
+				case "nbsp" -> " ";
+				default -> {
+					try {
+						if (entity.startsWith("#x") || entity.startsWith("#X"))
+							yield new String(Character.toChars(Integer.parseInt(entity.substring(2), 16)));
+						else if (entity.startsWith("#"))
+							yield new String(Character.toChars(Integer.parseInt(entity.substring(1))));
+					} catch (Exception ignored) {}
+					yield null;
+				}
+			};
+			if (null == decoded) {
+				out.append(c);
+				++i;
+			}
+			else {
+				out.append(decoded);
+				i = semi + 1;
+			}
+		}
+		return out;
+	}
+
+	private static boolean isNameChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '-' || c == ':' || c == '_';
+	}
+
+	private static boolean isBlock(String name) {
+		return switch (name) {
+			case "br", "p", "div", "li", "h1", "h2", "h3", "h4", "h5", "h6", "td", "th" -> true;
+			default -> false;
+		};
+	}
+
+	private static String stripWww(String host) {
+		if (null == host)
+			return "";
+		host = host.toLowerCase();
+		return host.startsWith("www.") ? host.substring(4) : host;
+	}
+}
@@ -42,4 +42,13 @@ public class PageCrawlMsg extends ProxyMsg {
 
 	private String url;
 	private String type;
+	/**
+	 * Validators from the last fetch of the page (nullable). If present the request is conditional.
+	 */
+	private String etag;
+	private String lastModified;
+	/**
+	 * Links followed from the root to get to this page
+	 */
+	private int depth = 0;
 }
@@ -21,6 +21,10 @@ import com.mentalresonance.dust.core.actors.Actor;
 import com.mentalresonance.dust.core.actors.ActorBehavior;
 import com.mentalresonance.dust.core.actors.ActorRef;
 import com.mentalresonance.dust.core.actors.Props;
+import com.mentalresonance.dust.feeds.util.Fingerprints;
+import com.mentalresonance.dust.feeds.util.ResponseGate;
+import com.mentalresonance.dust.feeds.warc.WarcRecordMsg;
+import com.mentalresonance.dust.feeds.warc.WarcWriterActor;
 import com.mentalresonance.dust.html.services.HtmlService;
 import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
 import com.mentalresonance.dust.http.service.HttpService;
@@ -32,10 +36,13 @@ import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
 import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 /**
  * Process the web page at a given URL returning page and all on-site links to the parent.
- * Then dies.
+ * Then dies. Responses whose Content-Type or Content-Length the crawl does not want are closed without reading the
+ * body, and bodies are read with a hard byte cap.
  */
 @Slf4j
 public class PageCrawlerActor extends Actor implements HttpClientActor {
@@ -49,17 +56,54 @@ public class PageCrawlerActor extends Actor implements HttpClientActor {
 		return Props.create(PageCrawlerActor.class, throttler);
 	}
 
+	/**
+	 * Props
+	 * @param throttler nullable Throttler
+	 * @param config of the crawl
+	 * @return Props
+	 */
+	public static Props props(ActorRef throttler, CrawlConfig config) {
+		return Props.create(PageCrawlerActor.class, throttler, config, false);
+	}
+
+	/**
+	 * Props
+	 * @param throttler nullable Throttler
+	 * @param config of the crawl
+	 * @param reportFetches if true the throttler is sent a {@link FetchCompletedMsg} when the page request completes -
+	 *                      a {@link HostThrottlerActor} needs this to release the host's slot
+	 * @return Props
+	 */
+	public static Props props(ActorRef throttler, CrawlConfig config, boolean reportFetches) {
+		return Props.create(PageCrawlerActor.class, throttler, config, reportFetches);
+	}
+
 	/**
 	 * Constructor
 	 * @param throttler nullable throttler ref
 	 */
 	public PageCrawlerActor(ActorRef throttler) {
+		this(throttler, null, false);
+	}
+
+	/**
+	 * Constructor
+	 * @param throttler nullable throttler ref
+	 * @param config nullable crawl config
+	 * @param reportFetches if true the throttler is sent a {@link FetchCompletedMsg} when the page request completes
+	 */
+	public PageCrawlerActor(ActorRef throttler, CrawlConfig config, Boolean reportFetches) {
 		this.throttler = throttler;
+		this.reportFetches = Boolean.TRUE.equals(reportFetches);
+		this.config = config;
+		this.gate = null != config ? config.getResponseGate() : ResponseGate.HTML;
 	}
 
 	@Override
 	protected void preStart() {
 		dieIn(10 * 60000L);// Can get q'd up by throttler
+		if (null != config && null != config.getWarcWriter())
+			warc = actorSelection(config.getWarcWriter());
 	}
 
 	@Override
@@ -77,6 +121,8 @@ public class PageCrawlerActor extends Actor implements HttpClientActor {
 				case PageCrawlMsg msg:
 					url = msg.getUrl();
 					type = msg.getType();
+					etag = msg.getEtag();
+					lastModified = msg.getLastModified();
 					parent.tell(new CanProcessPageMsg(url), self);
 					break;
 
@@ -84,9 +130,15 @@ public class PageCrawlerActor extends Actor implements HttpClientActor {
 					if (msg.getPermission()) {
 						HttpRequestResponseMsg rrm = new HttpRequestResponseMsg(
 								self,
-								HttpService.buildGetRequest(url)
+								(null == etag && null == lastModified) ?
+									HttpService.buildGetRequest(url) :
+									HttpService.buildGetRequest(url, conditionalHeaders())
 						);
-						throttler.tell(rrm, self);
+						queuedTs = System.currentTimeMillis();
+						if (null != throttler)
+							throttler.tell(rrm, self);
+						else
+							self.tell(rrm, self);
 					}
 					else {
 						// log.info("{} already crawled or blocked by robots.txt", url);
@@ -95,41 +147,94 @@ public class PageCrawlerActor extends Actor implements HttpClientActor {
 					break;
 
 				case HttpRequestResponseMsg rrm:
-					if (rrm.isProxied())
+					if (rrm.isProxied() || null == throttler && 0L == requestedTs)
 					{
 						rrm.setProxied(false);
+						requestedTs = System.currentTimeMillis();
+						waitMS = requestedTs - queuedTs;
 						request(rrm);  // Do http request which will come back to me ..
 						// Should not take longer than 60 secs to download and process the page (sites throttle bots)
 					}
 					else if (null != rrm.response) { // .. and I will end up here
-						if (rrm.response.isSuccessful())
-							self.tell(new ProcessPageMsg(rrm.response.body().string()), self);
+						reportFetch(rrm);
+						if (rrm.response.isSuccessful()) {
+							// Look at the headers before paying for the body
+							String rejected = gate.rejects(rrm.response);
+							if (null != rejected) {
+								rrm.response.close();
+								log.debug("Skipping {}: {}", url, rejected);
+								fail(rejected, rrm.response.code());
+							}
+							else {
+								try {
+									byte[] bytes = gate.read(rrm.response);
+									fetchMS = System.currentTimeMillis() - requestedTs;
+									if (null != warc)
+										WarcWriterActor.send(warc, WarcRecordMsg.of(rrm.response, bytes), self);
+									self.tell(new ProcessPageMsg(
+										new String(bytes, ResponseGate.charset(rrm.response, bytes)),
+										bytes.length,
+										rrm.response.header("ETag"),
+										rrm.response.header("Last-Modified")
+									), self);
+								}
+								catch (ResponseGate.TooLargeException e) {
+									log.debug("Skipping {}: {}", url, e.getMessage());
+									fail(e.getMessage(), rrm.response.code());
+								}
+								catch (Exception e) {
+									log.warn("Reading {} failed: {}", url, e.getMessage());
+									fail(e.toString(), rrm.response.code());
+								}
+								finally {
+									rrm.response.close();
+								}
+							}
+						}
+						else if (304 == rrm.response.code()) {
+							rrm.response.close();
+							PageMsg page = PageMsg.notModified(url, type);
+							page.waitMS = waitMS;
+							page.fetchMS = System.currentTimeMillis() - requestedTs;
+							parent.tell(page, null);
+							stopSelf();
+						}
 						else {
+							rrm.response.close();
 							log.warn("Request to {} failed", url);
-							stopSelf();
+							fail(rrm.response.message(), rrm.response.code());
 						}
 					}
 					else {
+						reportFetch(rrm);
 						log.error("No response from {} .. stopping", url);
-						stopSelf();
+						fail(null != rrm.exception ? rrm.exception.toString() : "no response", -1);
 					}
 					break;
 
 				case ProcessPageMsg msg:
 					try {
-						Document doc = Jsoup.parse(msg.html);
-						parent.tell(new PageMsg(
+						long parseStartTs = System.currentTimeMillis();
+						PageMsg page = new PageMsg(
 								url,
 								msg.html,
 								type,
-								HtmlService.links(doc, url, true, true)
-						), null);
+								extractLinks(msg.html)
+						);
+						page.etag = msg.etag;
+						page.lastModified = msg.lastModified;
+						page.hash = Fingerprints.fnv1a64(msg.html);
+						page.bytes = msg.bytes;
+						page.waitMS = waitMS;
+						page.fetchMS = fetchMS;
+						page.parseMS = System.currentTimeMillis() - parseStartTs;
+						parent.tell(page, null);
+						stopSelf();
 					}
 					catch (Exception e) {
-						e.printStackTrace();
-						throw(e);
+						log.error("Processing {} failed", url, e);
+						fail(e.toString(), 200);
 					}
-					stopSelf();
 					break;
 
 				default: log.warn("Got message {}", message);
@@ -141,14 +246,91 @@ public class PageCrawlerActor extends Actor implements HttpClientActor {
     @Getter
     private String url;
 	final private ActorRef throttler;
+	/**
+	 * Tell the throttler when the request completes - only one which understands {@link FetchCompletedMsg} wants to
+	 */
+	final private boolean reportFetches;
+	final private CrawlConfig config;
+	/**
+	 * Decides which responses are read, and how much of them
+	 */
+	final private ResponseGate gate;
+	/**
+	 * Archiver or null
+	 */
+	private ActorRef warc = null;
 	private String type;
+	private long requestedTs = 0L;
+	/**
+	 * For metrics - when we asked the throttler, how long it made us wait and how long the fetch took
+	 */
+	private long queuedTs = 0L, waitMS = 0L, fetchMS = 0L;
+	private String etag, lastModified;
+
+	/**
+	 * On-site links in the page. Unless configured otherwise use the streaming extractor, falling back to Jsoup
+	 * if that fails or finds nothing.
+	 * @param html of page
+	 * @return list of [url, anchor text]
+	 */
+	private List<List<String>> extractLinks(String html) {
+		if (null != config && config.isStreamingLinks()) {
+			try {
+				List<List<String>> links = LinkExtractor.links(html, url, true);
+				if (! links.isEmpty())
+					return links;
+			}
+			catch (Exception e) {
+				log.debug("Streaming link extraction failed for {}: {}", url, e.getMessage());
+			}
+		}
+		Document doc = Jsoup.parse(html);
+		return HtmlService.links(doc, url, true, true);
+	}
+
+	/**
+	 * Tell the parent we could not crawl the page, so it is not left in flight, and die
+	 * @param reason why
+	 * @param code of the response or -1 if there was none
+	 */
+	private void fail(String reason, int code) {
+		parent.tell(new PageFailedMsg(url, reason, code), null);
+		stopSelf();
+	}
+
+	/**
+	 * Tell the throttler the request it let through has completed
+	 * @param rrm completed request
+	 */
+	private void reportFetch(HttpRequestResponseMsg rrm) {
+		if (reportFetches && null != throttler)
+			throttler.tell(FetchCompletedMsg.of(rrm, requestedTs), self);
+	}
+
+	/**
+	 * Headers for a conditional GET using the validators we were given
+	 * @return headers
+	 */
+	private LinkedHashMap<String, String> conditionalHeaders() {
+		LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+		if (null != etag)
+			headers.put("If-None-Match", etag);
+		if (null != lastModified)
+			headers.put("If-Modified-Since", lastModified);
+		return headers;
+	}
 
 	private static class ProcessPageMsg implements Serializable {
 		@Getter
 		private String html;
+		private long bytes;
+		private String etag, lastModified;
 
-		public ProcessPageMsg(String html) {
+		public ProcessPageMsg(String html, long bytes, String etag, String lastModified) {
 			this.html = html;
+			this.bytes = bytes;
+			this.etag = etag;
+			this.lastModified = lastModified;
 		}
 	}
 }
@@ -0,0 +1,44 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+
+/**
+ * Page Crawler -> SiteCrawler the page could not be crawled (refused, rejected by the gate, no response ..)
+ */
+@Getter
+class PageFailedMsg implements Serializable {
+	String url;
+	/**
+	 * Why
+	 */
+	String reason;
+	/**
+	 * Status of the response or -1 if there was none
+	 */
+	int code;
+
+	public PageFailedMsg(String url, String reason, int code) {
+		this.url = url;
+		this.reason = reason;
+		this.code = code;
+	}
+}
@@ -32,6 +32,27 @@ class PageMsg implements Serializable {
 	String content;
 	String type;
 	List<List<String>> links;
+	/**
+	 * Validators from the response (nullable)
+	 */
+	String etag;
+	String lastModified;
+	/**
+	 * Fingerprint of content
+	 */
+	long hash;
+	/**
+	 * Bytes downloaded for the page
+	 */
+	long bytes;
+	/**
+	 * Time (ms) waiting for the throttler, fetching (request to body read) and parsing
+	 */
+	long waitMS, fetchMS, parseMS;
+	/**
+	 * True if the server said the page has not changed (304) - there is no content or links
+	 */
+	boolean notModified = false;
 
 	public PageMsg(String url, String content, String type, List<List<String>> links) {
 		this.url = url;
@@ -39,4 +60,16 @@ class PageMsg implements Serializable {
 		this.type = type;
 		this.links = links;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Page has not changed since we last fetched it
+	 * @param url of page
+	 * @param type of page
+	 * @return PageMsg with no content
+	 */
+	static PageMsg notModified(String url, String type) {
+		PageMsg msg = new PageMsg(url, "", type, List.of());
+		msg.notModified = true;
+		return msg;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import java.io.Serializable;
+
+/**
+ * What we remember about a crawled page between crawls so a recrawl can make conditional requests and tell
+ * whether the content actually changed.
+ */
+public class PageRecord implements Serializable {
+
+	/**
+	 * Url to access - not normalized
+	 */
+	public String url;
+	/**
+	 * Type the page was given
+	 */
+	public String type;
+	/**
+	 * ETag header of the last successful response or null
+	 */
+	public String etag = null;
+	/**
+	 * Last-Modified header of the last successful response or null
+	 */
+	public String lastModified = null;
+	/**
+	 * Fingerprint of the last content we sent on
+	 */
+	public long hash = 0L;
+	/**
+	 * When we last fetched (or revalidated) the page
+	 */
+	public long fetchedTs = 0L;
+
+	/**
+	 * Constructor
+	 */
+	public PageRecord() {}
+
+	/**
+	 * Constructor
+	 * @param url of page
+	 * @param type of page
+	 */
+	public PageRecord(String url, String type) {
+		this.url = url;
+		this.type = type;
+	}
+}
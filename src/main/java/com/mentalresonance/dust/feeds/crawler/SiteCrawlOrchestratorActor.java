@@ -0,0 +1,234 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import com.mentalresonance.dust.core.actors.Actor;
+import com.mentalresonance.dust.core.actors.ActorBehavior;
+import com.mentalresonance.dust.core.actors.ActorRef;
+import com.mentalresonance.dust.core.actors.Cancellable;
+import com.mentalresonance.dust.core.actors.Props;
+import com.mentalresonance.dust.core.msgs.Terminated;
+import com.mentalresonance.dust.core.system.exceptions.ActorInstantiationException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Crawl many sites at once. Accepts root PageCrawlMsgs and runs a {@link SiteCrawlerPipeActor} for each, with at most
+ * maxSites running at a time and new sites only started while heap use is below maxHeapFraction of the maximum heap.
+ * All the site crawlers share one {@link HostThrottlerActor} so hosts are served round-robin, each host keeps its
+ * politeness interval from the {@link CrawlConfig} and at most maxInFlight requests are outstanding across all sites.
+ *
+ * Pages crawled go to the sender of the root PageCrawlMsg, exactly as if it had been sent to a SiteCrawlerPipeActor.
+ * Site crawlers are named after their host (with a hash of it, so hosts which differ only in punctuation do not
+ * clash) so checkpointed crawls resume. A root for a host which is being crawled waits until that crawl is over.
+ */
+@Slf4j
+public class SiteCrawlOrchestratorActor extends Actor {
+
+	private final List<List<String>> hrefFilters, anchorFilters;
+	private final CrawlConfig config;
+	private final int maxSites, maxInFlight;
+	private final double maxHeapFraction;
+
+	private ActorRef throttler;
+	/**
+	 * Sites waiting to start, and their hosts
+	 */
+	private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+	private final HashSet<String> pendingHosts = new HashSet<>();
+	/**
+	 * Site crawlers running, and their hosts
+	 */
+	private final HashMap<ActorRef, String> running = new HashMap<>();
+	private final HashSet<String> runningHosts = new HashSet<>();
+	private int numFinished = 0;
+	private Cancellable retry = null;
+
+	/**
+	 * Props
+	 * @param hrefFilters filters for hrefs applied to every site
+	 * @param anchorFilters filters for anchors applied to every site
+	 * @param config crawl config for every site
+	 * @param maxSites maximum number of sites crawled at once
+	 * @param maxInFlight maximum http requests in flight across all sites
+	 * @param maxHeapFraction do not start a new site while more than this fraction of the max heap is in use
+	 * @return Props
+	 */
+	public static Props props(
+		List<List<String>> hrefFilters,
+		List<List<String>> anchorFilters,
+		CrawlConfig config,
+		Integer maxSites,
+		Integer maxInFlight,
+		Double maxHeapFraction
+	) {
+		return Props.create(SiteCrawlOrchestratorActor.class, hrefFilters, anchorFilters, config, maxSites, maxInFlight, maxHeapFraction);
+	}
+
+	/**
+	 * Props - follow every on-site link, default crawl config, start sites while less than 75% of heap is in use
+	 * @param maxSites maximum number of sites crawled at once
+	 * @param maxInFlight maximum http requests in flight across all sites
+	 * @return Props
+	 */
+	public static Props props(Integer maxSites, Integer maxInFlight) {
+		return props(
+			List.of(List.of(".*", SiteCrawlerPipeActor.PAGE)),
+			List.of(),
+			new CrawlConfig(),
+			maxSites,
+			maxInFlight,
+			0.75
+		);
+	}
+
+	public SiteCrawlOrchestratorActor(
+		List<List<String>> hrefFilters,
+		List<List<String>> anchorFilters,
+		CrawlConfig config,
+		Integer maxSites,
+		Integer maxInFlight,
+		Double maxHeapFraction
+	) {
+		this.hrefFilters = hrefFilters;
+		this.anchorFilters = anchorFilters;
+		this.config = config;
+		this.maxSites = maxSites;
+		this.maxInFlight = maxInFlight;
+		this.maxHeapFraction = maxHeapFraction;
+	}
+
+	@Override
+	protected void preStart() throws ActorInstantiationException {
+		throttler = actorOf(HostThrottlerActor.props(config, maxInFlight), "throttler");
+	}
+
+	@Override
+	protected void postStop() {
+		if (null != retry)
+			retry.cancel();
+	}
+
+	@Override
+	protected ActorBehavior createBehavior() {
+		return (Serializable message) -> {
+			switch(message) {
+
+				case PageCrawlMsg msg:
+					if (! Objects.equals(msg.getType(), SiteCrawlerPipeActor.ROOT)) {
+						log.warn("{} only accepts root PageCrawlMsgs - ignoring {}", self.path, msg.getUrl());
+						break;
+					}
+					String host = new URI(msg.getUrl()).getHost();
+
+					if (null == host || ! pendingHosts.add(host.toLowerCase()))
+						log.warn("{} already waiting to be crawled or bad url", msg.getUrl());
+					else {
+						pending.add(new Pending(msg, sender, host.toLowerCase()));
+						startSites();
+					}
+					break;
+
+				case Terminated ignored:
+					String finished = running.remove(sender);
+					if (null != finished)
+						runningHosts.remove(finished);
+					++numFinished;
+					if (pending.isEmpty() && running.isEmpty())
+						log.info("Finished crawling {} sites", numFinished);
+					startSites();
+					break;
+
+				case RetryMsg ignored:
+					retry = null;
+					startSites();
+					break;
+
+				default: log.warn("{} got unexpected message {}", self.path, message);
+			}
+		};
+	}
+
+	/**
+	 * Start waiting sites while we are under our limits, skipping those whose host is still being crawled. If memory
+	 * is what is stopping us look again shortly since heap is not freed by message.
+	 */
+	private void startSites() {
+		Pending next;
+
+		while (running.size() < maxSites && null != (next = nextPending())) {
+			if (! heapAvailable()) {
+				if (null == retry)
+					retry = scheduleIn(new RetryMsg(), 1000L);
+				return;
+			}
+			pending.remove(next);
+			pendingHosts.remove(next.host);
+			try {
+				ActorRef crawler = actorOf(
+					SiteCrawlerPipeActor.props(hrefFilters, anchorFilters, config, throttler),
+					"site-" + next.host.replaceAll("[^a-z0-9]", "-") + "-" + Integer.toHexString(next.host.hashCode())
+				);
+				watch(crawler);
+				crawler.tell(next.msg, next.sender);
+				running.put(crawler, next.host);
+				runningHosts.add(next.host);
+			}
+			catch (Exception e) {
+				log.error("Could not start crawl of {}: {}", next.msg.getUrl(), e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * First waiting site whose host is not being crawled, or null
+	 */
+	private Pending nextPending() {
+		for (Pending p : pending) {
+			if (! runningHosts.contains(p.host))
+				return p;
+		}
+		return null;
+	}
+
+	private boolean heapAvailable() {
+		Runtime rt = Runtime.getRuntime();
+		return (rt.totalMemory() - rt.freeMemory()) < maxHeapFraction * rt.maxMemory();
+	}
+
+	private static class Pending {
+		final PageCrawlMsg msg;
+		final ActorRef sender;
+		final String host;
+
+		Pending(PageCrawlMsg msg, ActorRef sender, String host) {
+			this.msg = msg;
+			this.sender = sender;
+			this.host = host;
+		}
+	}
+
+	private static class RetryMsg implements Serializable {}
+}
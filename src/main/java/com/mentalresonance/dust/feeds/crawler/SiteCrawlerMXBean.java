@@ -0,0 +1,92 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import com.mentalresonance.dust.feeds.util.LogHistogram;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link SiteCrawlerPipeActor}'s crawl. Values are from a snapshot refreshed about once a second.
+ */
+public interface SiteCrawlerMXBean {
+	/**
+	 * @return root url of the crawl
+	 */
+	String getRoot();
+	/**
+	 * @return links waiting on the frontier
+	 */
+	int getFrontierSize();
+	/**
+	 * @return pages being fetched
+	 */
+	int getInFlight();
+	/**
+	 * @return pages handed to PageCrawlerActors
+	 */
+	int getPagesFetched();
+	/**
+	 * @return pages sent on
+	 */
+	int getPagesSent();
+	/**
+	 * @return pages fetched per second since the crawl started
+	 */
+	double getPagesPerSecond();
+	/**
+	 * @return bytes downloaded
+	 */
+	long getBytes();
+	/**
+	 * @return pages robots.txt would not let us fetch
+	 */
+	int getRobotsDenied();
+	/**
+	 * @return pages which could not be crawled
+	 */
+	int getPagesFailed();
+	/**
+	 * @return links not queued because we had already seen them
+	 */
+	long getDuplicateLinks();
+	/**
+	 * @return pages not sent on because they were near-duplicates
+	 */
+	int getNearDuplicates();
+	/**
+	 * @return links pruned as crawl traps
+	 */
+	int getTrapsPruned();
+	/**
+	 * @return time from request to body read (ms)
+	 */
+	LogHistogram.Summary getFetchLatency();
+	/**
+	 * @return time spent parsing pages (ms)
+	 */
+	LogHistogram.Summary getParseTime();
+	/**
+	 * @return time spent waiting for the throttler (ms)
+	 */
+	LogHistogram.Summary getThrottleWait();
+	/**
+	 * @return time spent waiting for the throttler (ms) by host
+	 */
+	Map<String, LogHistogram.Summary> getThrottleWaitByHost();
+}
@@ -17,24 +17,38 @@
 
 package com.mentalresonance.dust.feeds.crawler;
 
-import com.mentalresonance.dust.core.actors.Actor;
 import com.mentalresonance.dust.core.actors.ActorBehavior;
 import com.mentalresonance.dust.core.actors.ActorRef;
+import com.mentalresonance.dust.core.actors.Cancellable;
+import com.mentalresonance.dust.core.actors.PersistentActor;
 import com.mentalresonance.dust.core.actors.Props;
-import com.mentalresonance.dust.core.actors.lib.ThrottlingRelayActor;
+import com.mentalresonance.dust.core.msgs.SnapshotMsg;
 import com.mentalresonance.dust.core.msgs.Terminated;
 import com.mentalresonance.dust.core.system.exceptions.ActorInstantiationException;
+import com.mentalresonance.dust.feeds.util.LogHistogram;
+import com.mentalresonance.dust.feeds.util.ResponseGate;
+import com.mentalresonance.dust.feeds.util.SimHash;
+import com.mentalresonance.dust.feeds.util.SimHashIndex;
 import com.mentalresonance.dust.html.msgs.HtmlDocumentMsg;
+import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
 import com.mentalresonance.dust.http.service.HttpService;
 import com.mentalresonance.dust.http.trait.HttpClientActor;
 import crawlercommons.robots.BaseRobotRules;
 import crawlercommons.robots.SimpleRobotRulesParser;
+import crawlercommons.sitemaps.AbstractSiteMap;
+import crawlercommons.sitemaps.SiteMap;
+import crawlercommons.sitemaps.SiteMapIndex;
+import crawlercommons.sitemaps.SiteMapParser;
+import crawlercommons.sitemaps.SiteMapURL;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.Request;
 import okhttp3.Response;
 
+import javax.management.ObjectName;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -45,28 +59,107 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Crawl a site, sending information back to the requester
+ * Crawl a site, sending information back to the requester.
+ *
+ * Links to be followed are queued on a frontier and at most {@link CrawlConfig#getMaxActiveCrawlers()} PageCrawlerActors
+ * are alive at once. If {@link CrawlConfig#getCheckpointIntervalMS()} is set the visited set and frontier are snapshotted
+ * periodically, and a crawler restarted at the same path resumes the crawl when it is next sent the root PageCrawlMsg.
+ * If {@link CrawlConfig#isUseSitemaps()} the frontier is also seeded from the site's sitemaps.
+ * If {@link CrawlConfig#isIncremental()} pages are revalidated with conditional requests and only pages whose content
+ * changed since the last crawl are sent on.
+ *
+ * The frontier is ordered by {@link CrawlConfig#getScorer()} (by default root pages first, then shallowest first) and
+ * the crawl stops following links at maxDepth and stops altogether once its page or byte budget is spent.
+ * Optionally pages which are near-duplicates (by SimHash) of a page already sent on are dropped or tagged.
+ * The crawl may be spread over several Dust nodes - see {@link CrawlPartition}.
+ * Links in url spaces which look endless (calendars, faceted search and the like) are pushed back or pruned - see
+ * {@link CrawlTrapDetector}.
  */
 @Setter
 @Getter
 @Slf4j
-public class SiteCrawlerPipeActor extends Actor implements HttpClientActor {
+public class SiteCrawlerPipeActor extends PersistentActor implements HttpClientActor {
 
 	private ActorRef throttler;
 	@Getter
 	private URL url;
 	private int numActiveCrawlers = 0;
+	/**
+	 * For {@link CrawlStatsMsg}
+	 */
+	private int peakActiveCrawlers = 0, numSent = 0;
+	private long startedTs = 0L;
+	/**
+	 * Live metrics (see {@link CrawlStatsMsg}). Not checkpointed - they describe this incarnation of the crawler.
+	 */
+	private int robotsDenied = 0, nearDuplicates = 0, trapsPruned = 0, pagesFailed = 0;
+	private long duplicateLinks = 0L;
+	private final LogHistogram fetchLatency = new LogHistogram(), parseTime = new LogHistogram(),
+		throttleWait = new LogHistogram();
+	private final LinkedHashMap<String, LogHistogram> throttleWaitByHost = new LinkedHashMap<>();
+	/**
+	 * If {@link CrawlConfig#isJmx()} the registered MBean, its name and the timer refreshing it
+	 */
+	private SiteCrawlerStats mbean = null;
+	private ObjectName mbeanName = null;
+	private Cancellable statsTimer = null;
 	private BaseRobotRules rules;
 	private ActorRef originalSender;
 	private Boolean haveCheckedRobots = false;
+	private CrawlConfig config;
+	/**
+	 * Pages seen, frontier and in flight pages. This is what gets checkpointed.
+	 */
+	private CrawlState state = new CrawlState();
+	/**
+	 * True if state was recovered from a checkpoint and we have not yet resumed
+	 */
+	private boolean recovered = false;
+	private boolean dirty = false;
+	private boolean finished = false;
+	private Cancellable checkpointer = null;
+	/**
+	 * Sitemaps still to be read, and how many we have asked for in total
+	 */
+	private ArrayDeque<String> sitemaps = new ArrayDeque<>();
+	private int numSitemaps = 0;
+	private boolean readingSitemap = false;
+	private long sitemapRequestedTs = 0L;
+	/**
+	 * Distributed crawl (see {@link CrawlPartition}) - links sent to and received from other nodes, the other
+	 * nodes' crawlers and links which arrived before we were started
+	 */
+	private long numSentToPeers = 0L, numReceivedFromPeers = 0L;
+	private ActorRef[] peers = null;
+	private boolean reportedIdle = false;
+	private final ArrayList<PartitionLinkMsg> early = new ArrayList<>();
+	/**
+	 * Coordinator (node 0) only - the termination probe in progress and the totals of the last all-idle probe
+	 */
+	private boolean probing = false;
+	private int probeRound = 0, numReplies = 0;
+	private ProbeReplyMsg[] replies;
+	private long[] lastTotals = null;
+	private Cancellable probeTimer = null;
+
+	private static final long STATS_INTERVAL_MS = 1000L;
 
 	public static final String ROOT = "root";
 	public static final String PAGE = "page";
 	/**
-	 * Maps url -> map contain page specific data for the page. This enables us to detect when we might be going to
-	 * re-crawl a page and prevent it, as well as being the sum total of what we know about the site.
+	 * Status of a page in state.pages
+	 */
+	public static final String QUEUED = "queued";
+	public static final String CRAWLED = "crawled";
+	public static final String UNCHANGED = "unchanged";
+	public static final String PRUNED = "pruned";
+	public static final String FAILED = "failed";
+	public static final String REMOTE = "remote";
+	/**
+	 * Type given to near-duplicate pages which are sent on
 	 */
-	private Map<String, Map> pages = new LinkedHashMap<>();
+	public static final String DUPLICATE = "duplicate";
+
 	/**
 	 * List of [regex, type]. The regexs are applied in order to href in links and if we have a match that link is followed.
 	 * If that successfully returns a page the page is given the specified type.
@@ -79,6 +172,27 @@ public class SiteCrawlerPipeActor extends Actor implements HttpClientActor {
 	 */
 	private List<List<String>> anchorFilters;
 
+	/**
+	 * Props
+	 * @param hrefFilters filters for hrefs
+	 * @param anchorFilters filters for anchors
+	 * @param config crawl configuration
+	 * @return the Props
+	 */
+	public static Props props(List<List<String>> hrefFilters, List<List<String>> anchorFilters, CrawlConfig config) {
+		return Props.create(SiteCrawlerPipeActor.class, hrefFilters, anchorFilters, config);
+	}
+	/**
+	 * Props - use a shared throttler (e.g. one belonging to a {@link SiteCrawlOrchestratorActor})
+	 * @param hrefFilters filters for hrefs
+	 * @param anchorFilters filters for anchors
+	 * @param config crawl configuration
+	 * @param throttler throttler which understands {@link FetchCompletedMsg} such as a {@link HostThrottlerActor}
+	 * @return the Props
+	 */
+	public static Props props(List<List<String>> hrefFilters, List<List<String>> anchorFilters, CrawlConfig config, ActorRef throttler) {
+		return Props.create(SiteCrawlerPipeActor.class, hrefFilters, anchorFilters, config, throttler);
+	}
 	/**
 	 * Props
 	 * @param hrefFilters filters for hrefs
@@ -86,7 +200,7 @@ public class SiteCrawlerPipeActor extends Actor implements HttpClientActor {
 	 * @return the Props
 	 */
 	public static Props props(List<List<String>> hrefFilters, List<List<String>> anchorFilters) {
-		return Props.create(SiteCrawlerPipeActor.class, hrefFilters, anchorFilters);
+		return SiteCrawlerPipeActor.props(hrefFilters, anchorFilters, new CrawlConfig());
 	}
 	/**
 	 * Props
@@ -105,15 +219,88 @@ public class SiteCrawlerPipeActor extends Actor implements HttpClientActor {
 		return SiteCrawlerPipeActor.props( Collections.singletonList(Arrays.asList(wild)),new ArrayList<>());
 	}
 
-	public SiteCrawlerPipeActor(List<List<String>> hrefFilters, List<List<String>> anchorFilters) {
+	public SiteCrawlerPipeActor(List<List<String>> hrefFilters, List<List<String>> anchorFilters, CrawlConfig config) {
+		this(hrefFilters, anchorFilters, config, null);
+	}
+
+	public SiteCrawlerPipeActor(List<List<String>> hrefFilters, List<List<String>> anchorFilters, CrawlConfig config, ActorRef throttler) {
 		this.hrefFilters = hrefFilters;
 		this.anchorFilters = anchorFilters;
+		this.config = config;
+		this.throttler = throttler;
 	}
 
 	@Override
 	public void preStart() throws ActorInstantiationException {
-		// One throttler per site - hit it no more than 1 / sec
-		throttler = actorOf(ThrottlingRelayActor.props(1000L), "throttler");
+		// Unless we were given a shared throttler, one throttler per site - by default hit it no more than 1 / sec
+		if (null == throttler)
+			throttler = actorOf(HostThrottlerActor.props(config, Integer.MAX_VALUE), "throttler");
+
+		if (config.isJmx()) {
+			try {
+				mbean = new SiteCrawlerStats();
+				mbeanName = new ObjectName("com.mentalresonance.dust.feeds:type=SiteCrawler,name=" + ObjectName.quote(self.path));
+				ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, mbeanName);
+				statsTimer = scheduleIn(new StatsTickMsg(), STATS_INTERVAL_MS);
+			}
+			catch (Exception e) {
+				log.warn("{} could not register MBean: {}", self.path, e.getMessage());
+				mbean = null;
+				mbeanName = null;
+			}
+		}
+	}
+
+	/**
+	 * If we are shut down save where we were. If we finished keep what we need for the next crawl of the site (so
+	 * sitemap lastmods can be checked against it). If we were stopped there is nothing to resume.
+	 */
+	@Override
+	protected void postStop() {
+		if (null != checkpointer)
+			checkpointer.cancel();
+		if (null != probeTimer)
+			probeTimer.cancel();
+		if (null != statsTimer)
+			statsTimer.cancel();
+		if (null != mbeanName) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+			}
+			catch (Exception e) {
+				log.warn("{} could not unregister MBean: {}", self.path, e.getMessage());
+			}
+		}
+		if (config.isCheckpointing()) {
+			if (finished) {
+				state.lastCompletedTs = System.currentTimeMillis();
+				saveSnapshot(state.nextCrawl());
+			}
+			else if (isInShutdown())
+				saveSnapshot(state);
+			else
+				deleteSnapshot();
+		}
+	}
+
+	@Override
+	protected Class<CrawlState> getSnapshotClass() { return CrawlState.class; }
+
+	@Override
+	protected ActorBehavior recoveryBehavior() {
+		return message -> {
+			switch(message) {
+				case SnapshotMsg msg:
+					if (config.isCheckpointing() && null != msg.getSnapshot()) {
+						state = (CrawlState) msg.getSnapshot();
+						recovered = true;
+					}
+					become(createBehavior());
+					break;
+
+				default: log.error("{} received unhandled message {} in recovery", self.path, message);
+			}
+		};
 	}
 
 	@Override
@@ -122,17 +309,23 @@ public class SiteCrawlerPipeActor extends Actor implements HttpClientActor {
 			switch(message) {
 
 				/*
-				 * Request to crawl a site or page. We fire up a PageCrawlerActor to do the job.
-				 * He will send us a CanProcessPageMsg before doing anything.
+				 * Request to crawl a site or page. The page goes on the frontier and a PageCrawlerActor is started
+				 * for it when there is room. He will send us a CanProcessPageMsg before doing anything.
 				 * If we are on the root page check robots.txt if we haven't already done so. We do not use the throttler for this
-				 * since it is only done once.
+				 * since it is only done once. If we recovered a checkpoint of this site we pick up where we left off.
 				 */
 				case PageCrawlMsg msg:
-					ActorRef crawler = actorOf(PageCrawlerActor.props(throttler));
-
-					if (Objects.equals(msg.getType(), "root")) {
+					if (Objects.equals(msg.getType(), ROOT)) {
 						url = new URI(msg.getUrl()).toURL();
 						originalSender = sender;
+						startedTs = System.currentTimeMillis();
+
+						CrawlPartition partition = config.getPartition();
+						if (null != partition && null == peers) {
+							peers = new ActorRef[partition.size()];
+							for (int i = 0; i < peers.length; ++i)
+								peers[i] = actorSelection(partition.getPeers().get(i));
+						}
 
 						if (! haveCheckedRobots) {
 							String robots = String.join("/", Arrays.copyOfRange(msg.getUrl().split("/"), 0, 3)) + "/robots.txt";
@@ -147,76 +340,591 @@ public class SiteCrawlerPipeActor extends Actor implements HttpClientActor {
 							);
 							haveCheckedRobots = true;
 						}
+						String root = normalizeUrl(msg.getUrl());
+
+						if (recovered && Objects.equals(root, state.root) && state.hasPending()) {
+							state.requeueInFlight();
+							log.info("Resuming crawl of {} with {} pages seen and {} pending",
+								url, state.pages.size(), state.frontier.size());
+						}
+						else {
+							if (! Objects.equals(root, state.root))
+								state = new CrawlState(root);
+							else if (recovered)
+								state = state.nextCrawl();
+							if (null != config.getTrapLimits())
+								state.traps = new CrawlTrapDetector(config.getTrapLimits());
+							if (config.getNearDuplicateDistance() >= 0)
+								state.sent = new SimHashIndex(config.getNearDuplicateDistance());
+							enqueue(msg.getUrl(), msg.getType(), 0);
+							// Revisit everything we found last time - unchanged pages won't give us their links
+							if (config.isIncremental())
+								state.records.values().forEach(r -> enqueue(r.url, r.type, 1));
+						}
+						recovered = false;
+
+						early.forEach(link -> enqueue(link.url, link.type, link.depth));
+						early.clear();
+
+						// When partitioned the coordinator reads the sitemaps for everyone
+						if (config.isUseSitemaps() && 0 == numSitemaps && (null == partition || partition.isCoordinator())) {
+							List<String> listed = rules.getSitemaps();
+							if (listed.isEmpty())
+								sitemaps.add(String.join("/", Arrays.copyOfRange(msg.getUrl().split("/"), 0, 3)) + "/sitemap.xml");
+							else
+								sitemaps.addAll(listed);
+							nextSitemap();
+						}
+
+						if (config.isCheckpointing() && null == checkpointer)
+							checkpointer = scheduleIn(new CheckpointMsg(), config.getCheckpointIntervalMS());
 					}
-					crawler.tell(message, self);
-					watch(crawler);
+					else
+						enqueue(msg.getUrl(), msg.getType(), msg.getDepth());
+					dispatch();
+					checkFinished();
 					break;
 
 				/*
-				 * All page processors ask us if they can go ahead since a page should only be done once or it
-				 * may be blocked by robots.txt
-				 * We also normalize the url here ...
+				 * All page processors ask us if they can go ahead since the page may be blocked by robots.txt
 				 */
 				case CanProcessPageMsg msg:
-					String surl = msg.getUrl();
-					boolean canCrawl = rules.isAllowed(surl);
-					String normalizedUrl = normalizeUrl(surl);
+					msg.setPermission(rules.isAllowed(msg.getUrl()));
 
-					// Haven't seen it before and is allowed by rules
-					msg.setPermission(pages.get(normalizedUrl) == null && canCrawl);
-
-					if (msg.getPermission()) {
-						pages.put(normalizedUrl, Map.of("started",  true));
+					if (! msg.getPermission()) {
+						++robotsDenied;
+						state.inFlight.remove(normalizeUrl(msg.getUrl()));
+						dirty = true;
 					}
 					sender.tell(msg, self);
 					break;
 
 				/*
 				  From PageCrawlerActor - the contents of the page he crawled. Send the page to the original site
-				  crawl requester then process on-site links
+				  crawl requester then queue on-site links
 				 */
 				case PageMsg msg:
-					if (!msg.getContent().isEmpty()) {
+					String pageKey = normalizeUrl(msg.getUrl());
+					CrawlFrontier.Entry crawled = state.inFlight.remove(pageKey);
+					int linkDepth = (null != crawled ? crawled.getDepth() : 0) + 1;
+					state.numBytes += msg.getBytes();
+					recordTimings(msg);
+					state.pages.put(pageKey, msg.isNotModified() ? UNCHANGED : CRAWLED);
+					dirty = true;
+					// Don't follow links out of a trap
+					boolean follow = null == state.traps ||
+						CrawlTrapDetector.Verdict.PRUNE != state.traps.fetched(pageKey, msg.getContent());
+					if (!follow)
+						++trapsPruned;
+
+					if (config.isIncremental() && !updateRecord(pageKey, msg)) {
+						log.trace("{} unchanged", msg.getUrl());
+					}
+					else if (!msg.getContent().isEmpty()) {
 						HtmlDocumentMsg page = new HtmlDocumentMsg(self);
 						page.setSource(msg.getUrl());
 						page.setHtml(msg.getContent());
 						page.setType(msg.getType());
-						originalSender.tell(page, self);
+
+						String original = nearDuplicateOf(msg);
+						if (null == original) {
+							originalSender.tell(page, self);
+							++numSent;
+						}
+						else if (!config.isDropNearDuplicates()) {
+							originalSender.tell(tagNearDuplicate(page, original), self);
+							++numSent;
+						}
+						else {
+							++nearDuplicates;
+							log.debug("{} is a near-duplicate of {} - dropped", msg.getUrl(), original);
+						}
 					} else
 						log.warn("No content in {}", msg.getUrl());
 
-					msg.getLinks().forEach(l ->  {	// [url, text] url is to this site still
+					if (follow) msg.getLinks().forEach(l ->  {	// [url, text] url is to this site still
 						String linkUrl = l.getFirst();
 						if (!Objects.equals(linkUrl, "#")) {
 							try {
-								String link = normalizeUrl(linkUrl); // Get normalized path
-								String clz = classify(link, l.get(1));
+								// Filters are written against the link as it appears - the canonical form is only a key
+								String clz = classify(linkUrl, l.get(1));
 								if (null != clz) {
-									// Give time for other messages to come in e.g. CanProcessPageMsgs
-									scheduleIn(new PageCrawlMsg(self, linkUrl, clz), 500L);
-									++numActiveCrawlers;
+									enqueue(linkUrl, clz, linkDepth);
 								}
 							} catch (Exception e) {
 								log.error("Error in {}", l, e);
 							}
 						}
 					});
+					dispatch();
+					break;
+
+				/*
+				 * From PageCrawlerActor - the page could not be crawled. It is no longer in flight.
+				 */
+				case PageFailedMsg msg:
+					String failedKey = normalizeUrl(msg.getUrl());
+					if (null != state.inFlight.remove(failedKey)) {
+						state.pages.put(failedKey, FAILED);
+						++pagesFailed;
+						dirty = true;
+					}
+					log.debug("{} failed: {} {}", msg.getUrl(), msg.getCode(), msg.getReason());
 					break;
 
 				case Terminated ignored:
-					if (0 == --numActiveCrawlers) { // Done
-						log.info("Finished crawling site {}", url);
-						context.stop(self);
+					--numActiveCrawlers;
+					dispatch();
+					checkFinished();
+					break;
+
+				/*
+				 * Sitemap - comes back from the throttler to be requested and then again with the response. We read
+				 * sitemaps one at a time so only one is ever in memory.
+				 */
+				case SitemapMsg msg:
+					if (msg.isProxied()) {
+						msg.setProxied(false);
+						sitemapRequestedTs = System.currentTimeMillis();
+						request(msg);
+					}
+					else {
+						throttler.tell(FetchCompletedMsg.of(msg, sitemapRequestedTs), self);
+						try {
+							if (null != msg.response && msg.response.isSuccessful())
+								processSitemap(msg);
+							else if (null != msg.exception)
+								log.warn("Could not read sitemap {}: {}", msg.request.url(), msg.exception.getMessage());
+							else if (null != msg.response)
+								log.warn("Could not read sitemap {}: {}", msg.request.url(), msg.response.code());
+						}
+						catch (Exception e) {
+							log.warn("Could not parse sitemap {}: {}", msg.request.url(), e.getMessage());
+						}
+						finally {
+							if (null != msg.response)
+								msg.response.close();
+						}
+						readingSitemap = false;
+						nextSitemap();
+						dispatch();
+						checkFinished();
+					}
+					break;
+
+				/*
+				 * Distributed crawl - a link we own found by another node
+				 */
+				case PartitionLinkMsg msg:
+					++numReceivedFromPeers;
+					if (null == originalSender)  // Not started yet
+						early.add(msg);
+					else {
+						reportedIdle = false;
+						enqueue(msg.url, msg.type, msg.depth);
+						dispatch();
+						checkFinished();
 					}
-					//else if (0 == numActiveCrawlers % 100)
-					//	log.info("ActiveCrawlers = {}", numActiveCrawlers);
 					break;
 
-				default: log.warn("Got message {}", message);
+				/*
+				 * Distributed crawl termination. Node 0 probes every node for whether it is idle and how many links
+				 * it has sent and received. The crawl is over when two probes in a row find every node idle with the
+				 * same totals and nothing in transit (sent == received).
+				 */
+				case IdleMsg ignored:
+					probe();
+					break;
+
+				case RetryProbeMsg ignored:
+					probeTimer = null;
+					probe();
+					break;
+
+				case ProbeMsg msg:
+					sender.tell(
+						new ProbeReplyMsg(config.getPartition().getSelf(), msg.round, isIdle(), numSentToPeers, numReceivedFromPeers),
+						self
+					);
+					break;
+
+				case ProbeReplyMsg msg:
+					onProbeReply(msg);
+					break;
+
+				case PartitionDoneMsg ignored:
+					finish();
+					break;
+
+				case CrawlStatsMsg msg:
+					sender.tell(fillStats(msg), self);
+					break;
+
+				case StatsTickMsg ignored:
+					mbean.update(fillStats(new CrawlStatsMsg()));
+					statsTimer = scheduleIn(new StatsTickMsg(), STATS_INTERVAL_MS);
+					break;
+
+				case CheckpointMsg ignored:
+					if (dirty) {
+						saveSnapshot(state);
+						dirty = false;
+					}
+					checkpointer = scheduleIn(new CheckpointMsg(), config.getCheckpointIntervalMS());
+					break;
+
+				default: super.createBehavior().onMessage(message);
 			}
 		};
 	}
 
+	/**
+	 * Put the page on the frontier if we have never seen it before, it is not too deep and it is not in a crawl trap.
+	 * Links close to being in a trap go to the back of the frontier.
+	 * @param pageUrl url to crawl
+	 * @param type of the page
+	 * @param depth links followed from the root
+	 */
+	private void enqueue(String pageUrl, String type, int depth) {
+		String key = normalizeUrl(pageUrl);
+
+		if (null != state.pages.get(key)) {
+			++duplicateLinks;
+		}
+		else if (depth <= config.getMaxDepth()) {
+			CrawlPartition partition = config.getPartition();
+
+			if (null != partition && !partition.owns(key)) {
+				state.pages.put(key, REMOTE);
+				peers[partition.owner(key)].tell(new PartitionLinkMsg(pageUrl, type, depth), self);
+				++numSentToPeers;
+				return;
+			}
+			double score = config.getScorer().score(pageUrl, type, depth);
+
+			if (depth > 0 && null != state.traps) {
+				switch (state.traps.check(key)) {
+					case PRUNE:
+						++trapsPruned;
+						state.pages.put(key, PRUNED);
+						dirty = true;
+						return;
+					case THROTTLE:
+						score -= config.getTrapPenalty();
+						break;
+					default:
+				}
+			}
+			state.pages.put(key, QUEUED);
+			state.frontier.add(new CrawlFrontier.Entry(pageUrl, type, depth, score));
+			dirty = true;
+		}
+	}
+
+	/**
+	 * If near-duplicate detection is on see if the page is close to one already sent on. If not index it. A page with
+	 * no text has no SimHash, so is never anyone's near-duplicate.
+	 * @param msg page
+	 * @return url of the page it duplicates or null
+	 */
+	private String nearDuplicateOf(PageMsg msg) {
+		if (null == state.sent)
+			return null;
+
+		Long hash = SimHash.of(msg.getContent());
+		if (null == hash)
+			return null;
+		String original = state.sent.near(hash);
+		if (null == original)
+			state.sent.add(hash, msg.getUrl());
+		return original;
+	}
+
+	/**
+	 * Add the throttle wait, fetch and parse times of a page to the metrics
+	 * @param msg page
+	 */
+	private void recordTimings(PageMsg msg) {
+		fetchLatency.record(msg.fetchMS);
+		throttleWait.record(msg.waitMS);
+		if (!msg.isNotModified())
+			parseTime.record(msg.parseMS);
+		try {
+			String host = new URI(msg.getUrl()).getHost();
+			if (null != host)
+				throttleWaitByHost.computeIfAbsent(host, h -> new LogHistogram()).record(msg.waitMS);
+		}
+		catch (URISyntaxException ignored) {}
+	}
+
+	/**
+	 * Fill in stats on the crawl so far. Histograms are copied so the message can be read after we have moved on.
+	 * @param msg to fill
+	 * @return msg
+	 */
+	private CrawlStatsMsg fillStats(CrawlStatsMsg msg) {
+		long elapsedMS = 0L == startedTs ? 0L : System.currentTimeMillis() - startedTs;
+
+		msg.setRoot(state.root);
+		msg.setStartedTs(startedTs);
+		msg.setPagesSeen(state.pages.size());
+		msg.setFrontierSize(state.frontier.size());
+		msg.setInFlight(state.inFlight.size());
+		msg.setPagesFetched(state.numFetched);
+		msg.setPagesPerSecond(elapsedMS > 0 ? 1000.0 * state.numFetched / elapsedMS : 0.0);
+		msg.setBytes(state.numBytes);
+		msg.setPagesSent(numSent);
+		msg.setActiveCrawlers(numActiveCrawlers);
+		msg.setPeakActiveCrawlers(peakActiveCrawlers);
+		msg.setRobotsDenied(robotsDenied);
+		msg.setPagesFailed(pagesFailed);
+		msg.setDuplicateLinks(duplicateLinks);
+		msg.setNearDuplicates(nearDuplicates);
+		msg.setTrapsPruned(trapsPruned);
+		msg.setFetchLatency(fetchLatency.copy());
+		msg.setParseTime(parseTime.copy());
+		msg.setThrottleWait(throttleWait.copy());
+		LinkedHashMap<String, LogHistogram> byHost = new LinkedHashMap<>();
+		throttleWaitByHost.forEach((host, h) -> byHost.put(host, h.copy()));
+		msg.setThrottleWaitByHost(byHost);
+		return msg;
+	}
+
+	/**
+	 * Mark a near-duplicate page which is being sent on. By default its type is set to {@link #DUPLICATE}.
+	 * Override to tag it some other way.
+	 * @param page to send
+	 * @param original url of the page it is a near-duplicate of
+	 * @return the page to send
+	 */
+	protected HtmlDocumentMsg tagNearDuplicate(HtmlDocumentMsg page, String original) {
+		page.setType(DUPLICATE);
+		return page;
+	}
+
+	/**
+	 * Have we fetched as many pages or bytes as we are allowed
+	 * @return true if no more pages should be fetched
+	 */
+	private boolean budgetExhausted() {
+		return state.numFetched >= config.getMaxPages() || state.numBytes >= config.getMaxBytes();
+	}
+
+	/**
+	 * Remember validators and fingerprint of a page we just crawled
+	 * @param key normalized url
+	 * @param msg from the PageCrawlerActor
+	 * @return true if the content changed since we last saw it (or we never saw it)
+	 */
+	private boolean updateRecord(String key, PageMsg msg) {
+		PageRecord record = state.records.computeIfAbsent(key, k -> new PageRecord(msg.getUrl(), msg.getType()));
+		boolean changed;
+
+		record.fetchedTs = System.currentTimeMillis();
+		if (msg.isNotModified())
+			changed = false;
+		else {
+			changed = 0L == record.hash || record.hash != msg.getHash();
+			record.hash = msg.getHash();
+			record.etag = msg.getEtag();
+			record.lastModified = msg.getLastModified();
+		}
+		return changed;
+	}
+
+	/**
+	 * If nothing is being crawled, nothing is waiting and we are not reading sitemaps we are done
+	 */
+	private void checkFinished() {
+		if (isIdle() && !finished) {
+			CrawlPartition partition = config.getPartition();
+
+			if (null == partition)
+				finish();
+			else if (partition.isCoordinator())
+				probe();
+			else if (!reportedIdle) {
+				reportedIdle = true;
+				peers[0].tell(new IdleMsg(), self);
+			}
+		}
+	}
+
+	/**
+	 * Is there nothing for us to do (until another node sends us a link)
+	 * @return true if idle
+	 */
+	private boolean isIdle() {
+		return null != originalSender && early.isEmpty() && 0 == numActiveCrawlers &&
+			(state.frontier.isEmpty() || budgetExhausted()) && !readingSitemap;
+	}
+
+	private void finish() {
+		if (budgetExhausted())
+			log.info("Crawl budget spent with {} pages fetched, {} bytes, {} left on frontier",
+				state.numFetched, state.numBytes, state.frontier.size());
+		log.info("Finished crawling site {}", url);
+		finished = true;
+		context.stop(self);
+	}
+
+	/**
+	 * Coordinator - ask every node (including us) if it is idle
+	 */
+	private void probe() {
+		if (probing || finished || null == peers)
+			return;
+		CrawlPartition partition = config.getPartition();
+
+		probing = true;
+		++probeRound;
+		replies = new ProbeReplyMsg[peers.length];
+		numReplies = 0;
+		for (int i = 0; i < peers.length; ++i) {
+			if (i == partition.getSelf())
+				onProbeReply(new ProbeReplyMsg(i, probeRound, isIdle(), numSentToPeers, numReceivedFromPeers));
+			else
+				peers[i].tell(new ProbeMsg(probeRound), self);
+		}
+	}
+
+	/**
+	 * Coordinator - a node has answered the probe
+	 * @param msg reply
+	 */
+	private void onProbeReply(ProbeReplyMsg msg) {
+		if (!probing || msg.round != probeRound || null != replies[msg.node])
+			return;
+		replies[msg.node] = msg;
+		if (++numReplies < replies.length)
+			return;
+
+		probing = false;
+		boolean allIdle = true;
+		long sent = 0L, received = 0L;
+		for (ProbeReplyMsg reply : replies) {
+			allIdle &= reply.idle;
+			sent += reply.sent;
+			received += reply.received;
+		}
+		if (allIdle && sent == received) {
+			if (null != lastTotals && lastTotals[0] == sent && lastTotals[1] == received) {
+				for (int i = 0; i < peers.length; ++i) {
+					if (i != config.getPartition().getSelf())
+						peers[i].tell(new PartitionDoneMsg(), self);
+				}
+				finish();
+			}
+			else {
+				lastTotals = new long[] { sent, received };
+				probe(); // Confirm nothing changed
+			}
+		}
+		else {
+			lastTotals = null;
+			if (null == probeTimer)
+				probeTimer = scheduleIn(new RetryProbeMsg(), 1000L);
+		}
+	}
+
+	/**
+	 * Ask the throttler for permission to read the next sitemap, if there is one and we are not over our limit
+	 */
+	private void nextSitemap() {
+		if (! readingSitemap && ! sitemaps.isEmpty() && numSitemaps < config.getMaxSitemaps()) {
+			Request req = HttpService.buildGetRequest(sitemaps.poll());
+			++numSitemaps;
+			readingSitemap = true;
+			throttler.tell(new SitemapMsg(self, req), self);
+		}
+	}
+
+	/**
+	 * Parse a sitemap (crawler-commons handles gzipped sitemaps), reading no more than
+	 * {@link CrawlConfig#getMaxSitemapBytes()} of it. Indexes add to the sitemaps to be read,
+	 * urls which are on site, pass the filters and have been modified since the last crawl go on the frontier.
+	 * Urls which have not been modified are marked as such so they are not crawled if we find links to them.
+	 *
+	 * @param msg response containing the sitemap
+	 */
+	private void processSitemap(SitemapMsg msg) throws Exception {
+		byte[] content = new ResponseGate(null, config.getMaxSitemapBytes()).read(msg.response);
+		String contentType = msg.response.header("content-type");
+		URL sitemapUrl = msg.request.url().url();
+		SiteMapParser parser = new SiteMapParser(false);
+		AbstractSiteMap sitemap = (null == contentType) ?
+				parser.parseSiteMap(content, sitemapUrl) :
+				parser.parseSiteMap(contentType, content, sitemapUrl);
+
+		if (sitemap.isIndex()) {
+			((SiteMapIndex) sitemap).getSitemaps().forEach(sm -> sitemaps.add(sm.getUrl().toString()));
+		}
+		else {
+			long since = config.getSitemapModifiedSince() > 0 ? config.getSitemapModifiedSince() : state.lastCompletedTs;
+			String host = stripWww(url.getHost());
+			int added = 0;
+
+			for (SiteMapURL smu : ((SiteMap) sitemap).getSiteMapUrls()) {
+				String pageUrl = smu.getUrl().toString();
+				if (! Objects.equals(stripWww(smu.getUrl().getHost()), host))
+					continue;
+
+				String clz = classify(pageUrl, "");
+				if (null == clz)
+					continue;
+
+				String key = normalizeUrl(pageUrl);
+				// Not modified since we last looked - but only if we have actually fetched it
+				if (since > 0 && null != smu.getLastModified() && smu.getLastModified().getTime() <= since && crawled(key)) {
+					state.pages.putIfAbsent(key, UNCHANGED);
+				}
+				else if (null == state.pages.get(key)) {
+					enqueue(pageUrl, clz, 1);
+					++added;
+				}
+			}
+			log.info("Sitemap {} added {} pages to crawl of {}", sitemapUrl, added, url);
+		}
+	}
+
+	/**
+	 * Have we fetched the page, in this crawl or (if incremental) an earlier one
+	 * @param key normalized url
+	 * @return true if so
+	 */
+	private boolean crawled(String key) {
+		String status = state.pages.get(key);
+		return state.records.containsKey(key) || CRAWLED.equals(status) || UNCHANGED.equals(status);
+	}
+
+	private static String stripWww(String host) {
+		return host.toLowerCase().startsWith("www.") ? host.substring(4).toLowerCase() : host.toLowerCase();
+	}
+
+	/**
+	 * Start PageCrawlerActors on the frontier until we reach our limit of active crawlers
+	 */
+	private void dispatch() throws ActorInstantiationException {
+		while (numActiveCrawlers < config.getMaxActiveCrawlers() && !state.frontier.isEmpty() && !budgetExhausted()) {
+			CrawlFrontier.Entry entry = state.frontier.poll();
+			++state.numFetched;
+			ActorRef crawler = actorOf(PageCrawlerActor.props(throttler, config, true));
+
+			state.inFlight.put(normalizeUrl(entry.getUrl()), entry);
+			dirty = true;
+			watch(crawler);
+			peakActiveCrawlers = Math.max(peakActiveCrawlers, ++numActiveCrawlers);
+
+			PageCrawlMsg crawl = new PageCrawlMsg(self, entry.getUrl(), entry.getType());
+			PageRecord record = config.isIncremental() ? state.records.get(normalizeUrl(entry.getUrl())) : null;
+			if (null != record) {
+				crawl.setEtag(record.etag);
+				crawl.setLastModified(record.lastModified);
+			}
+			crawler.tell(crawl, self);
+		}
+	}
+
 	/**
 	 * Attempt to determine 'class' of link - should we follow it and if so is it a root or page on the other end
 	 * Our pattern matching is <b>Case Insensitive</b>
@@ -262,21 +970,80 @@ public class SiteCrawlerPipeActor extends Actor implements HttpClientActor {
 	 * @param url
 	 * @return normalized url
 	 */
-	private static String normalizeUrl(String url) {
-		url = url.toLowerCase();
+	private String normalizeUrl(String url) {
+		return config.getCanonicalizer().canonicalize(url);
+	}
 
-		if (url.startsWith("http://"))
-			url = "https://" + url.substring(7);
+	/**
+	 * Time to checkpoint
+	 */
+	private static class CheckpointMsg implements Serializable {}
+
+	/**
+	 * Refresh the MBean's snapshot
+	 */
+	private static class StatsTickMsg implements Serializable {}
+
+	/**
+	 * Distributed crawl - a link for the node which owns it
+	 */
+	private static class PartitionLinkMsg implements Serializable {
+		final String url, type;
+		final int depth;
+
+		PartitionLinkMsg(String url, String type, int depth) {
+			this.url = url;
+			this.type = type;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * Distributed crawl - node -> coordinator, I have nothing to do
+	 */
+	private static class IdleMsg implements Serializable {}
+
+	/**
+	 * Distributed crawl - coordinator -> node, are you idle
+	 */
+	private static class ProbeMsg implements Serializable {
+		final int round;
 
-		url = url.replace("https://www.", "https://");
+		ProbeMsg(int round) {
+			this.round = round;
+		}
+	}
 
-		// Ignore fragment links
-		int fragmentIndex = url.indexOf("#");
-		if (fragmentIndex >= 0) url = url.substring(0, fragmentIndex);
+	/**
+	 * Distributed crawl - node -> coordinator, answer to ProbeMsg
+	 */
+	private static class ProbeReplyMsg implements Serializable {
+		final int node, round;
+		final boolean idle;
+		final long sent, received;
 
-		if (!url.endsWith("/")) url = url + "/";
-		if (url.startsWith("www.")) url = url.substring(4);
+		ProbeReplyMsg(int node, int round, boolean idle, long sent, long received) {
+			this.node = node;
+			this.round = round;
+			this.idle = idle;
+			this.sent = sent;
+			this.received = received;
+		}
+	}
 
-		return url;
+	/**
+	 * Distributed crawl - coordinator -> node, the crawl is over
+	 */
+	private static class PartitionDoneMsg implements Serializable {}
+
+	private static class RetryProbeMsg implements Serializable {}
+
+	/**
+	 * Request for a sitemap
+	 */
+	private static class SitemapMsg extends HttpRequestResponseMsg {
+		SitemapMsg(ActorRef sender, Request request) {
+			super(sender, request);
+		}
 	}
-}
+}
\ No newline at end of file
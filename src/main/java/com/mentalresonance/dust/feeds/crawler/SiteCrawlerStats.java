@@ -0,0 +1,92 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import com.mentalresonance.dust.feeds.util.LogHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link SiteCrawlerMXBean} backed by the latest {@link CrawlStatsMsg} its crawler published. The crawler owns
+ * its state, so JMX threads only ever see these immutable snapshots.
+ */
+class SiteCrawlerStats implements SiteCrawlerMXBean {
+
+	private volatile CrawlStatsMsg stats = new CrawlStatsMsg();
+
+	/**
+	 * Publish a new snapshot
+	 * @param stats snapshot - must not be changed afterwards
+	 */
+	void update(CrawlStatsMsg stats) {
+		this.stats = stats;
+	}
+
+	@Override
+	public String getRoot() { return stats.getRoot(); }
+
+	@Override
+	public int getFrontierSize() { return stats.getFrontierSize(); }
+
+	@Override
+	public int getInFlight() { return stats.getInFlight(); }
+
+	@Override
+	public int getPagesFetched() { return stats.getPagesFetched(); }
+
+	@Override
+	public int getPagesSent() { return stats.getPagesSent(); }
+
+	@Override
+	public double getPagesPerSecond() { return stats.getPagesPerSecond(); }
+
+	@Override
+	public long getBytes() { return stats.getBytes(); }
+
+	@Override
+	public int getRobotsDenied() { return stats.getRobotsDenied(); }
+
+	@Override
+	public int getPagesFailed() { return stats.getPagesFailed(); }
+
+	@Override
+	public long getDuplicateLinks() { return stats.getDuplicateLinks(); }
+
+	@Override
+	public int getNearDuplicates() { return stats.getNearDuplicates(); }
+
+	@Override
+	public int getTrapsPruned() { return stats.getTrapsPruned(); }
+
+	@Override
+	public LogHistogram.Summary getFetchLatency() { return stats.getFetchLatency().summary(); }
+
+	@Override
+	public LogHistogram.Summary getParseTime() { return stats.getParseTime().summary(); }
+
+	@Override
+	public LogHistogram.Summary getThrottleWait() { return stats.getThrottleWait().summary(); }
+
+	@Override
+	public Map<String, LogHistogram.Summary> getThrottleWaitByHost() {
+		LinkedHashMap<String, LogHistogram.Summary> byHost = new LinkedHashMap<>();
+		stats.getThrottleWaitByHost().forEach((host, h) -> byHost.put(host, h.summary()));
+		return byHost;
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.crawler;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Priority of a link on the crawl frontier - higher scores are crawled first. Links with equal scores are crawled
+ * in the order they were found.
+ */
+@FunctionalInterface
+public interface UrlScorer extends Serializable {
+
+	/**
+	 * Score a link
+	 * @param url of link (not normalized)
+	 * @param type the link was classified as
+	 * @param depth number of links followed from the root to get here
+	 * @return score
+	 */
+	double score(String url, String type, int depth);
+
+	/**
+	 * Root pages before anything else, then shallower pages before deeper ones
+	 */
+	UrlScorer DEFAULT = (url, type, depth) -> (Objects.equals(type, SiteCrawlerPipeActor.ROOT) ? 1e6 : 0.0) - depth;
+}
@@ -0,0 +1,106 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.msgs;
+
+import com.mentalresonance.dust.core.actors.ActorRef;
+import com.mentalresonance.dust.html.msgs.HtmlDocumentMsg;
+import lombok.Getter;
+
+import java.nio.charset.Charset;
+
+/**
+ * Html document which carries the page as fetched - its bytes and the charset they are in. The html is only decoded
+ * when something asks for it, so consumers which hash, persist or archive the bytes never pay for a String copy of
+ * the page.
+ */
+public class ByteHtmlDocumentMsg extends HtmlDocumentMsg {
+
+    /**
+     * The page as fetched, or null if the html was set as text
+     */
+    @Getter
+    private byte[] bytes = null;
+    /**
+     * Name of the charset of bytes (Charset is not Serializable)
+     */
+    private String charset = null;
+
+    /**
+     * Constructor
+     * @param sender of message
+     */
+    public ByteHtmlDocumentMsg(ActorRef sender) {
+        super(sender);
+    }
+
+    /**
+     * Constructor
+     * @param sender of message
+     * @param bytes of page
+     * @param charset of bytes
+     */
+    public ByteHtmlDocumentMsg(ActorRef sender, byte[] bytes, Charset charset) {
+        super(sender);
+        setBytes(bytes, charset);
+    }
+
+    /**
+     * Set the page as fetched
+     * @param bytes of page
+     * @param charset of bytes
+     */
+    public void setBytes(byte[] bytes, Charset charset) {
+        this.bytes = bytes;
+        this.charset = charset.name();
+        super.setHtml(null);
+    }
+
+    /**
+     * @return charset of the bytes or null if there are none
+     */
+    public Charset getCharset() {
+        return null != charset ? Charset.forName(charset) : null;
+    }
+
+    /**
+     * The html, decoded into the superclass's html on first use
+     * @return html
+     */
+    @Override
+    public String getHtml() {
+        if (null == super.getHtml() && null != bytes)
+            super.setHtml(new String(bytes, getCharset()));
+        return super.getHtml();
+    }
+
+    /**
+     * Set the html as text - the bytes no longer describe it so are dropped
+     * @param html of page
+     */
+    @Override
+    public void setHtml(String html) {
+        super.setHtml(html);
+        this.bytes = null;
+        this.charset = null;
+    }
+
+    @Override
+    public String getContent() {
+        return getHtml();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.page;
+
+import com.mentalresonance.dust.feeds.util.HttpResponseCache;
+import com.mentalresonance.dust.feeds.util.ResponseGate;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+
+/**
+ * Tuning knobs for how {@link PagePipeActor} and {@link PersistingPagePipeActor} fetch pages. An actor created
+ * without a config uses the defaults.
+ */
+@Getter
+@Setter
+public class FetchConfig implements Serializable {
+
+    /**
+     * If not null the directory of an {@link HttpResponseCache}. Actors (in this JVM) given the same directory share
+     * the cache, so the RSS actors can use it too.
+     */
+    private String cacheDir = null;
+    /**
+     * Bound on the size of the cache on disk
+     */
+    private long cacheBytes = 1L << 30;
+    /**
+     * Largest page body {@link PagePipeActor} will read - longer pages fail (and go to {@link #deadLetter})
+     */
+    private long maxBodyBytes = ResponseGate.HTML.getMaxBytes();
+    /**
+     * Most requests {@link PagePipeActor} will have outstanding at once, and to any one host. Hosts take turns so a
+     * slow host cannot starve the rest.
+     */
+    private int maxInFlight = 64;
+    private int maxPerHost = 8;
+    /**
+     * Most requests waiting for a slot. When it is full {@link #overflow} decides what is dropped, and the dropped
+     * request goes to {@link #deadLetter}.
+     */
+    private int maxBacklog = 10_000;
+    private Overflow overflow = Overflow.DROP_NEWEST;
+    /**
+     * Retries and hedging
+     */
+    private RetryPolicy retry = new RetryPolicy();
+    /**
+     * If not null the path of an Actor to send a {@link FetchFailedMsg} to for each page we give up on. Otherwise
+     * they are logged.
+     */
+    private String deadLetter = null;
+
+    /**
+     * What to drop when the backlog is full
+     */
+    public enum Overflow {
+        /**
+         * The incoming request
+         */
+        DROP_NEWEST,
+        /**
+         * The request which has waited longest
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * Constructor
+     */
+    public FetchConfig() {}
+
+    /**
+     * The response cache
+     * @return the shared cache or null if there is none
+     */
+    public HttpResponseCache cache() {
+        return null == cacheDir ? null : HttpResponseCache.open(cacheDir, cacheBytes);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.page;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+
+/**
+ * Sent to {@link FetchConfig#getDeadLetter()} when a {@link RetryingFetchActor} gives up on a page, or a
+ * {@link PagePipeActor} drops one because its backlog is full (after 0 attempts)
+ */
+@Getter
+public class FetchFailedMsg implements Serializable {
+    /**
+     * url of the page
+     */
+    private final String url;
+    /**
+     * The message which asked for the page (e.g. an HtmlDocumentMsg or PersistPageMsg)
+     */
+    private final Serializable request;
+    /**
+     * Status of the last response or -1 if there was none
+     */
+    private final int code;
+    /**
+     * What went wrong last
+     */
+    private final String error;
+    /**
+     * Attempts made
+     */
+    private final int attempts;
+
+    /**
+     * Constructor
+     * @param url of the page
+     * @param request which asked for the page
+     * @param code of the last response or -1
+     * @param error description
+     * @param attempts made
+     */
+    public FetchFailedMsg(String url, Serializable request, int code, String error, int attempts) {
+        this.url = url;
+        this.request = request;
+        this.code = code;
+        this.error = error;
+        this.attempts = attempts;
+    }
+
+    @Override
+    public String toString() {
+        return "FetchFailedMsg[%s %d '%s' after %d attempts]".formatted(url, code, error, attempts);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.page;
+
+import com.mentalresonance.dust.feeds.util.LogHistogram;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+
+/**
+ * Send to a {@link RetryingFetchActor} to find out how its fetching is going - it is sent back filled in. Only a
+ * {@link PagePipeActor} queues requests.
+ */
+@Getter
+@Setter
+public class FetchStatsMsg implements Serializable {
+    /**
+     * Requests outstanding
+     */
+    private int inFlight;
+    /**
+     * Requests waiting for a slot
+     */
+    private int queued;
+    /**
+     * Hosts with requests outstanding or waiting
+     */
+    private int hosts;
+    /**
+     * Requests completed (successfully or not)
+     */
+    private long fetched;
+    /**
+     * Requests dropped because the backlog was full
+     */
+    private long dropped;
+    /**
+     * ms requests waited for a slot
+     */
+    private LogHistogram queueWait;
+    /**
+     * Retries scheduled
+     */
+    private long retries;
+    /**
+     * Hedged requests sent, and how many of them answered first
+     */
+    private long hedges;
+    private long hedgeWins;
+    /**
+     * Fetches given up on
+     */
+    private long failed;
+    /**
+     * ms successful fetches took (from the network)
+     */
+    private LogHistogram latency;
+
+    /**
+     * Constructor
+     */
+    public FetchStatsMsg() {}
+}
@@ -18,27 +18,56 @@
 package com.mentalresonance.dust.feeds.page;
 
 import com.mentalresonance.dust.core.actors.ActorBehavior;
-import com.mentalresonance.dust.core.actors.PersistentActor;
+import com.mentalresonance.dust.core.actors.ActorRef;
 import com.mentalresonance.dust.core.actors.Props;
+import com.mentalresonance.dust.feeds.msgs.ByteHtmlDocumentMsg;
+import com.mentalresonance.dust.feeds.util.HostFairQueue;
+import com.mentalresonance.dust.feeds.util.HttpResponseCache;
+import com.mentalresonance.dust.feeds.util.LogHistogram;
+import com.mentalresonance.dust.feeds.util.ResponseGate;
+import com.mentalresonance.dust.feeds.warc.WarcRecordMsg;
+import com.mentalresonance.dust.feeds.warc.WarcWriterActor;
 import com.mentalresonance.dust.html.msgs.HtmlDocumentMsg;
 import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
 import com.mentalresonance.dust.http.service.HttpService;
-import com.mentalresonance.dust.http.trait.HttpClientActor;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.Request;
 
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.util.LinkedHashMap;
 
 /**
- * GET a given page defined in an HtmlDocumentMsg and send that page on.
+ * GET a given page defined in an HtmlDocumentMsg and send that page on. If {@link FetchConfig#getCacheDir()} is set
+ * fresh pages come from the shared {@link HttpResponseCache} instead. The html is decoded in the charset the page
+ * declares (see {@link ResponseGate#sniff(byte[], String)}), unless the message is a {@link ByteHtmlDocumentMsg} in
+ * which case it is given the bytes and decodes them only if asked.
+ *
+ * At most {@link FetchConfig#getMaxInFlight()} requests are outstanding at once (and {@link FetchConfig#getMaxPerHost()}
+ * to any one host). The rest wait in a bounded backlog, served round-robin by host. Failed fetches are retried (and
+ * slow ones hedged) according to {@link FetchConfig#getRetry()}. Send a {@link FetchStatsMsg} to see how it is going.
  */
 @Slf4j
-public class PagePipeActor extends PersistentActor implements HttpClientActor {
+public class PagePipeActor extends RetryingFetchActor {
 
     LinkedHashMap<String, String> headers;
+    /**
+     * Path of a {@link WarcWriterActor} to archive pages to, or null
+     */
+    String warcWriter;
+    private ActorRef warc = null;
+    /**
+     * Caps the bytes we read of a page
+     */
+    private ResponseGate gate;
+    /**
+     * Requests waiting for, or holding, a slot
+     */
+    private HostFairQueue<HttpRequestResponseMsg> queue;
+    private final LogHistogram queueWait = new LogHistogram();
+    private long fetched = 0L, dropped = 0L;
 
     /**
      * Default headers for http calls
@@ -57,12 +86,63 @@ public class PagePipeActor extends PersistentActor implements HttpClientActor {
         return Props.create(PagePipeActor.class, headers);
     }
 
+    /**
+     * Customer headers for http calls, and archive every page fetched
+     * @param headers to use in http calls
+     * @param warcWriter path of a {@link WarcWriterActor}
+     * @return Props
+     */
+    public static Props props(LinkedHashMap<String, String> headers, String warcWriter) {
+        return Props.create(PagePipeActor.class, headers, warcWriter);
+    }
+
+    /**
+     * Customer headers for http calls, archiving and fetch configuration
+     * @param headers to use in http calls
+     * @param warcWriter nullable path of a {@link WarcWriterActor}
+     * @param config how to fetch
+     * @return Props
+     */
+    public static Props props(LinkedHashMap<String, String> headers, String warcWriter, FetchConfig config) {
+        return Props.create(PagePipeActor.class, headers, warcWriter, config);
+    }
+
     /**
      * Constructor
      * @param headers for http calls
      */
     public PagePipeActor(LinkedHashMap<String, String> headers) {
+        this(headers, null);
+    }
+
+    /**
+     * Constructor
+     * @param headers for http calls
+     * @param warcWriter nullable path of a {@link WarcWriterActor}
+     */
+    public PagePipeActor(LinkedHashMap<String, String> headers, String warcWriter) {
+        this(headers, warcWriter, new FetchConfig());
+    }
+
+    /**
+     * Constructor
+     * @param headers for http calls
+     * @param warcWriter nullable path of a {@link WarcWriterActor}
+     * @param config how to fetch
+     */
+    public PagePipeActor(LinkedHashMap<String, String> headers, String warcWriter, FetchConfig config) {
+        super(config);
         this.headers = headers;
+        this.warcWriter = warcWriter;
+    }
+
+    @Override
+    protected void preStart() throws Exception {
+        super.preStart();
+        if (null != warcWriter)
+            warc = actorSelection(warcWriter);
+        gate = new ResponseGate(null, config.getMaxBodyBytes());
+        queue = new HostFairQueue<>(config.getMaxInFlight(), 0L, config.getMaxPerHost());
     }
 
     protected ActorBehavior createBehavior() {
@@ -70,35 +150,123 @@ public class PagePipeActor extends PersistentActor implements HttpClientActor {
             switch(message) {
                 case HtmlDocumentMsg msg -> {
                     Request req = HttpService.buildGetRequest(msg.getSource(), headers);
-                    request(new HttpRequestResponseMsg(self, req, msg));
-                }
-                case HttpRequestResponseMsg msg -> {
-                    try {
-                        if (null != msg.response) {
-                            HtmlDocumentMsg hdm = (HtmlDocumentMsg)msg.tag;
-
-                            hdm.setHtml(msg.response.body().string());
-                            parent.tell(msg.tag, self);
-                        }
-                        else if (null != msg.exception) {
-                            log.error("%s Error: %s".formatted(self.path, msg.exception.getMessage()));
-                        }
-                    }
-                    catch (Exception e) {
-                        log.error("%s Error: %s".formatted(self.path, e.getMessage()));
-                        if (null != msg.response)
-                            msg.response.close();
-                    }
-                    finally {
-                        if (null != msg.response)
-                            msg.response.close();
-                    }
+                    enqueue(new HttpRequestResponseMsg(self, req, msg));
+                    drain();
                 }
                 default -> super.createBehavior().onMessage(message);
             }
         };
     }
 
+    @Override
+    protected void onFetched(HttpRequestResponseMsg msg) {
+        queue.release(msg.request.url().host());
+        ++fetched;
+        try {
+            if (null != cache)
+                msg.response = cache.update(msg.request, msg.response);
+            HtmlDocumentMsg hdm = (HtmlDocumentMsg)msg.tag;
+            byte[] bytes = gate.read(msg.response);
+            Charset charset = ResponseGate.charset(msg.response, bytes);
+
+            // Only archive what we actually fetched
+            if (null != warc && null == msg.response.header(HttpResponseCache.CACHE_HEADER))
+                WarcWriterActor.send(warc, WarcRecordMsg.of(msg.response, bytes), self);
+            if (hdm instanceof ByteHtmlDocumentMsg bhdm)
+                bhdm.setBytes(bytes, charset);
+            else
+                hdm.setHtml(new String(bytes, charset));
+            parent.tell(msg.tag, self);
+        }
+        catch (ResponseGate.TooLargeException e) {
+            log.warn("{} skipping {}: {}", self.path, msg.request.url(), e.getMessage());
+            lost(msg, e.getMessage());
+        }
+        catch (Exception e) {
+            // e.g. the body could not be read, or a revalidated cache entry was evicted under us
+            log.error("%s Error: %s".formatted(self.path, e.getMessage()));
+            lost(msg, e.toString());
+        }
+        finally {
+            msg.response.close();
+            drain();
+        }
+    }
+
+    @Override
+    protected void onFailed(Request request, FetchFailedMsg failure) {
+        queue.release(request.url().host());
+        ++fetched;
+        drain();
+    }
+
+    @Override
+    protected FetchStatsMsg fillStats(FetchStatsMsg msg) {
+        msg.setInFlight(queue.getInFlight());
+        msg.setQueued(queue.getSize());
+        msg.setHosts(queue.numHosts());
+        msg.setFetched(fetched);
+        msg.setDropped(dropped);
+        msg.setQueueWait(queueWait.copy());
+        return super.fillStats(msg);
+    }
+
+    /**
+     * Queue a request for a slot, making room according to {@link FetchConfig#getOverflow()} if the backlog is full
+     * @param msg request
+     */
+    private void enqueue(HttpRequestResponseMsg msg) {
+        if (queue.getSize() >= config.getMaxBacklog()) {
+            HostFairQueue.Entry<HttpRequestResponseMsg> oldest =
+                FetchConfig.Overflow.DROP_OLDEST == config.getOverflow() ? queue.removeOldest() : null;
+
+            ++dropped;
+            if (null == oldest) {
+                overflowed(msg);
+                return;
+            }
+            overflowed(oldest.getItem());
+        }
+        queue.add(msg.request.url().host(), msg);
+    }
+
+    /**
+     * A page was fetched but could not be sent on - it goes to the dead letter Actor like any other failure
+     * @param msg with response
+     * @param error what went wrong
+     */
+    private void lost(HttpRequestResponseMsg msg, String error) {
+        if (null != deadLetter) {
+            HtmlDocumentMsg hdm = (HtmlDocumentMsg)msg.tag;
+            deadLetter.tell(new FetchFailedMsg(hdm.getSource(), hdm, msg.response.code(), error, 1), self);
+        }
+    }
+
+    /**
+     * A request was dropped because the backlog was full - it goes to the dead letter Actor like any other failure
+     * @param msg dropped
+     */
+    private void overflowed(HttpRequestResponseMsg msg) {
+        FetchFailedMsg failure = new FetchFailedMsg(msg.request.url().toString(), msg.tag, -1, "backlog full", 0);
+        if (null != deadLetter)
+            deadLetter.tell(failure, self);
+        else
+            log.warn("{} dropped: {}", self.path, failure);
+    }
+
+    /**
+     * Start every queued request there is a slot for
+     */
+    private void drain() {
+        long now = System.currentTimeMillis();
+        HostFairQueue.Entry<HttpRequestResponseMsg> entry;
+
+        while (null != (entry = queue.poll(now))) {
+            queueWait.record(now - entry.getQueuedTs());
+            fetch(entry.getItem().request, entry.getItem().tag);
+        }
+    }
+
     /**
      * Want flat directory structure so map urls to unique filenames by taking path and changing / -> -
      * @param url
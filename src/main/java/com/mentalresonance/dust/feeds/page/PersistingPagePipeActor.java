@@ -18,28 +18,63 @@
 package com.mentalresonance.dust.feeds.page;
 
 import com.mentalresonance.dust.core.actors.ActorBehavior;
-import com.mentalresonance.dust.core.actors.PersistentActor;
 import com.mentalresonance.dust.core.actors.Props;
+import com.mentalresonance.dust.feeds.store.FilePageStore;
+import com.mentalresonance.dust.feeds.store.PageStore;
+import com.mentalresonance.dust.feeds.util.HostFairQueue;
+import com.mentalresonance.dust.feeds.util.HttpResponseCache;
 import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
 import com.mentalresonance.dust.http.service.HttpService;
-import com.mentalresonance.dust.http.trait.HttpClientActor;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.Request;
-import org.apache.commons.io.IOUtils;
+import okhttp3.Response;
 
 import java.io.*;
-import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
-import java.util.Objects;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 /**
  * GET a given page and store at a given location or delete a file so obtained.
+ *
+ * Pages are streamed from the response straight into a {@link PageStore} (by default a {@link FilePageStore}) on a
+ * small pool of I/O threads, so the actor never blocks on the network or disk. The reply is sent when the page has
+ * been stored. If {@link FetchConfig#getCacheDir()} is set fresh pages come from the shared {@link HttpResponseCache}.
+ * Failed fetches are retried (and slow ones hedged) according to {@link FetchConfig#getRetry()}, and pages which
+ * cannot be fetched or stored go to {@link FetchConfig#getDeadLetter()}.
+ *
+ * {@link PersistPagesBatchMsg} and {@link DeletePagesBatchMsg} do the same for many pages at once, with one reply
+ * saying how each page went.
+ *
+ * At most {@link FetchConfig#getMaxInFlight()} pages (and {@link FetchConfig#getMaxPerHost()} from any one host) are
+ * being fetched or stored at once. The rest wait, served round-robin by host. The wait is not bounded by
+ * {@link FetchConfig#getMaxBacklog()} - every page of a batch gets an answer.
  */
 @Slf4j
-public class PersistingPagePipeActor extends PersistentActor implements HttpClientActor {
+public class PersistingPagePipeActor extends RetryingFetchActor {
 
     LinkedHashMap<String, String> headers;
+    /**
+     * Where pages go
+     */
+    PageStore store;
+    /**
+     * Threads doing store I/O - at most this many responses are being read at once
+     */
+    int ioThreads;
+    private ExecutorService io = null;
+    /**
+     * Pages waiting for, or holding, a slot
+     */
+    private HostFairQueue<HttpRequestResponseMsg> queue;
+    /**
+     * Batch each page of a PersistPagesBatchMsg in progress belongs to
+     */
+    private final IdentityHashMap<PersistPageMsg, Batch> batchOf = new IdentityHashMap<>();
 
     /**
      * Message to persist a page
@@ -54,9 +89,13 @@ public class PersistingPagePipeActor extends PersistentActor implements HttpClie
          */
         public String directory;
         /**
-         * filename of page
+         * filename of page - set to where the store put it, relative to directory
          */
         public String fileName;
+        /**
+         * In a {@link PersistPagesBatchMsg} - why this page was not persisted, or null if it was
+         */
+        public String error;
 
         /**
          * Construct
@@ -85,6 +124,10 @@ public class PersistingPagePipeActor extends PersistentActor implements HttpClie
          * filename of page
          */
         public String fileName;
+        /**
+         * In a {@link DeletePagesBatchMsg} - why this page was not deleted, or null if it was
+         */
+        public String error;
 
         /**
          * Constructor
@@ -97,6 +140,64 @@ public class PersistingPagePipeActor extends PersistentActor implements HttpClie
         }
     }
 
+    /**
+     * Message to persist many pages to the same directory. The pages are fetched concurrently (within the Actor's
+     * in flight limits) and one reply (this message) is sent when they have all been persisted or given up on.
+     */
+    public static class PersistPagesBatchMsg implements Serializable {
+        /**
+         * directory containing files
+         */
+        public String directory;
+        /**
+         * One per url - each says how it went
+         */
+        public List<PersistPageMsg> pages;
+        /**
+         * Pages not persisted
+         */
+        public int failed = 0;
+
+        /**
+         * Constructor
+         * @param urls of pages to persist
+         * @param directory to persist to
+         */
+        public PersistPagesBatchMsg(List<String> urls, String directory) {
+            this.directory = directory;
+            this.pages = urls.stream().map(url -> new PersistPageMsg(url, directory)).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Message to delete many persisted pages in the same directory. The deletes are spread over the I/O threads and
+     * one reply (this message) is sent when they are done.
+     */
+    public static class DeletePagesBatchMsg implements Serializable {
+        /**
+         * directory containing files
+         */
+        public String directory;
+        /**
+         * One per url - each says how it went
+         */
+        public List<DeletePageMsg> pages;
+        /**
+         * Pages not deleted
+         */
+        public int failed = 0;
+
+        /**
+         * Constructor
+         * @param urls pages that were persisted
+         * @param directory where persisted files to be deleted are
+         */
+        public DeletePagesBatchMsg(List<String> urls, String directory) {
+            this.directory = directory;
+            this.pages = urls.stream().map(url -> new DeletePageMsg(url, directory)).collect(Collectors.toList());
+        }
+    }
+
     /**
      * Default headers for http calls
      * @return Props
@@ -114,47 +215,131 @@ public class PersistingPagePipeActor extends PersistentActor implements HttpClie
         return Props.create(PersistingPagePipeActor.class, headers);
     }
 
+    /**
+     * Custom headers and store
+     * @param headers for http calls
+     * @param store where pages go
+     * @param ioThreads threads reading responses into the store
+     * @return Props
+     */
+    public static Props props(LinkedHashMap<String, String> headers, PageStore store, Integer ioThreads) {
+        return Props.create(PersistingPagePipeActor.class, headers, store, ioThreads);
+    }
+
+    /**
+     * Custom headers, store and fetch configuration
+     * @param headers for http calls
+     * @param store where pages go
+     * @param ioThreads threads reading responses into the store
+     * @param config how to fetch
+     * @return Props
+     */
+    public static Props props(LinkedHashMap<String, String> headers, PageStore store, Integer ioThreads, FetchConfig config) {
+        return Props.create(PersistingPagePipeActor.class, headers, store, ioThreads, config);
+    }
+
     /**
      * Constructor
      * @param headers for http calls
      */
     public PersistingPagePipeActor(LinkedHashMap<String, String> headers) {
+        this(headers, new FilePageStore(), 4);
+    }
+
+    /**
+     * Constructor
+     * @param headers for http calls
+     * @param store where pages go
+     * @param ioThreads threads reading responses into the store
+     */
+    public PersistingPagePipeActor(LinkedHashMap<String, String> headers, PageStore store, Integer ioThreads) {
+        this(headers, store, ioThreads, new FetchConfig());
+    }
+
+    /**
+     * Constructor
+     * @param headers for http calls
+     * @param store where pages go
+     * @param ioThreads threads reading responses into the store
+     * @param config how to fetch
+     */
+    public PersistingPagePipeActor(LinkedHashMap<String, String> headers, PageStore store, Integer ioThreads, FetchConfig config) {
+        super(config);
         this.headers = headers;
+        this.store = store;
+        this.ioThreads = ioThreads;
+    }
+
+    @Override
+    protected void preStart() throws Exception {
+        super.preStart();
+        io = Executors.newFixedThreadPool(ioThreads);
+        queue = new HostFairQueue<>(config.getMaxInFlight(), 0L, config.getMaxPerHost());
+    }
+
+    /**
+     * Let stores in progress finish - their replies will go nowhere
+     */
+    @Override
+    protected void postStop() {
+        if (null != io)
+            io.shutdown();
     }
 
     protected ActorBehavior createBehavior() {
         return message -> {
             switch(message) {
                 case PersistPageMsg msg -> {
-                    Request req = HttpService.buildGetRequest(msg.url, headers);
-                    request(new HttpRequestResponseMsg(self, req, msg));
+                    enqueue(msg);
+                    drain();
+                }
+                case PersistPagesBatchMsg msg -> {
+                    Batch batch = new Batch(msg);
+                    for (PersistPageMsg page : msg.pages) {
+                        batchOf.put(page, batch);
+                        enqueue(page);
+                    }
+                    if (msg.pages.isEmpty())
+                        parent.tell(msg, self);
+                    drain();
                 }
-                case HttpRequestResponseMsg msg -> {
+                case DeletePagesBatchMsg msg -> {
+                    int n = msg.pages.size(), parts = Math.max(1, Math.min(ioThreads, n));
+                    CompletableFuture<?>[] deletes = new CompletableFuture<?>[parts];
+
+                    for (int i = 0; i < parts; ++i) {
+                        List<DeletePageMsg> part = msg.pages.subList(i * n / parts, (i + 1) * n / parts);
+                        deletes[i] = CompletableFuture.runAsync(() -> part.forEach(this::delete), io);
+                    }
+                    CompletableFuture.allOf(deletes).whenComplete((v, e) -> {
+                        msg.failed = (int) msg.pages.stream().filter(page -> null != page.error).count();
+                        self.tell(new StoredMsg(msg, null), self);
+                    });
+                }
+                case DeletePageMsg msg -> io.execute(() -> {
                     try {
-                        if (null != msg.response) {
-                            InputStream bytes = msg.response.body().byteStream();
-                            PersistPageMsg ppm = (PersistPageMsg)msg.tag;
-                            String fileName = urlToFilename(ppm.url);
-                            FileOutputStream file = new FileOutputStream("%s/%s".formatted(ppm.directory, fileName));
-
-                            ((PersistPageMsg)msg.tag).fileName = fileName;
-                            IOUtils.copy(bytes, file);
-                            parent.tell(msg.tag, self);
-                        }
-                        else if (null != msg.exception) {
-                            log.error("%s Error: %s".formatted(self.path, msg.exception.getMessage()));
-                        }
+                        msg.fileName = store.delete(msg.directory, msg.url);
+                        self.tell(new StoredMsg(msg, null), self);
                     }
                     catch (Exception e) {
-                        log.error("%s Error: %s".formatted(self.path, e.getMessage()));
-                        if (null != msg.response)
-                            msg.response.close();
+                        self.tell(new StoredMsg(msg, e), self);
+                    }
+                });
+                case StoredMsg msg -> {
+                    if (null != msg.host) {
+                        queue.release(msg.host);
+                        drain();
+                    }
+                    if (msg.request instanceof PersistPageMsg ppm && batchOf.containsKey(ppm))
+                        completed(ppm, null != msg.exception ? msg.exception.toString() : null);
+                    else if (null == msg.exception)
+                        parent.tell(msg.request, self);
+                    else {
+                        log.error("%s Error: %s".formatted(self.path, msg.exception.getMessage()));
+                        // A page we fetched but could not store is lost too
+                        if (null != deadLetter && msg.request instanceof PersistPageMsg ppm)
+                            deadLetter.tell(new FetchFailedMsg(ppm.url, ppm, -1, msg.exception.toString(), 1), self);
                     }
-                }
-                case DeletePageMsg msg -> {
-                    File dest = new File("%s/%s".formatted(msg.directory, urlToFilename(msg.url)));
-                    dest.delete();
-                    parent.tell(msg, self);
                 }
                 default -> super.createBehavior().onMessage(message);
             }
@@ -162,16 +347,126 @@ public class PersistingPagePipeActor extends PersistentActor implements HttpClie
     }
 
     /**
-     * Want flat directory structure so map urls to unique filenames by taking path and changing / -> -
-     * @param address url
-     * @return filename
+     * Stream the page into the store on an I/O thread
+     * @param msg with response
+     */
+    @Override
+    protected void onFetched(HttpRequestResponseMsg msg) {
+        Request request = msg.request;
+        PersistPageMsg ppm = (PersistPageMsg)msg.tag;
+
+        io.execute(() -> {
+            Response response = msg.response;
+            try {
+                if (null != cache)
+                    response = cache.update(request, response);
+                ppm.fileName = store.put(ppm.directory, ppm.url, response.body().source());
+                self.tell(new StoredMsg(ppm, null, request.url().host()), self);
+            }
+            catch (Exception e) {
+                self.tell(new StoredMsg(ppm, e, request.url().host()), self);
+            }
+            finally {
+                response.close();
+            }
+        });
+    }
+
+    @Override
+    protected void onFailed(Request request, FetchFailedMsg failure) {
+        queue.release(request.url().host());
+        if (failure.getRequest() instanceof PersistPageMsg ppm && batchOf.containsKey(ppm))
+            completed(ppm, failure.getError());
+        drain();
+    }
+
+    @Override
+    protected FetchStatsMsg fillStats(FetchStatsMsg msg) {
+        msg.setInFlight(queue.getInFlight());
+        msg.setQueued(queue.getSize());
+        msg.setHosts(queue.numHosts());
+        return super.fillStats(msg);
+    }
+
+    /**
+     * Queue a page for a slot
+     * @param page to fetch
      */
-    private String urlToFilename(String address) throws URISyntaxException, MalformedURLException, UnsupportedEncodingException {
-        URL url = new URL(address);
+    private void enqueue(PersistPageMsg page) {
+        Request request = HttpService.buildGetRequest(page.url, headers);
+        queue.add(request.url().host(), new HttpRequestResponseMsg(self, request, page));
+    }
 
-        if (!Objects.equals(url.getPath(), ""))
-            return url.getPath().substring(1).replaceAll("/", "-");
-        else
-            return URLEncoder.encode(address, StandardCharsets.UTF_8);
+    /**
+     * Start every queued page there is a slot for. A slot is held until the page is stored or given up on.
+     */
+    private void drain() {
+        HostFairQueue.Entry<HttpRequestResponseMsg> entry;
+
+        while (null != (entry = queue.poll(System.currentTimeMillis())))
+            fetch(entry.getItem().request, entry.getItem().tag);
+    }
+
+    /**
+     * A page of a batch is done - reply if it was the last one
+     * @param page done
+     * @param error why it failed or null
+     */
+    private void completed(PersistPageMsg page, String error) {
+        Batch batch = batchOf.remove(page);
+
+        page.error = error;
+        if (null != error)
+            ++batch.msg.failed;
+        if (0 == --batch.remaining)
+            parent.tell(batch.msg, self);
+    }
+
+    /**
+     * Delete a page of a batch - from an I/O thread
+     * @param page to delete
+     */
+    private void delete(DeletePageMsg page) {
+        try {
+            page.fileName = store.delete(page.directory, page.url);
+        }
+        catch (Exception e) {
+            page.error = e.toString();
+        }
+    }
+
+    /**
+     * A PersistPagesBatchMsg in progress
+     */
+    private static class Batch {
+        final PersistPagesBatchMsg msg;
+        int remaining;
+
+        Batch(PersistPagesBatchMsg msg) {
+            this.msg = msg;
+            this.remaining = msg.pages.size();
+        }
+    }
+
+    /**
+     * From an I/O thread - a PersistPageMsg, DeletePageMsg or DeletePagesBatchMsg is done
+     */
+    private static class StoredMsg implements Serializable {
+        final Serializable request;
+        final Exception exception;
+        /**
+         * Host of a fetched page, whose slot is now free - else null
+         */
+        final String host;
+
+        StoredMsg(Serializable request, Exception exception) {
+            this(request, exception, null);
+        }
+
+        StoredMsg(Serializable request, Exception exception, String host) {
+            this.request = request;
+            this.exception = exception;
+            this.host = host;
+        }
     }
 }
@@ -0,0 +1,170 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.page;
+
+import com.mentalresonance.dust.feeds.util.LogHistogram;
+import lombok.Getter;
+import lombok.Setter;
+import okhttp3.Response;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How {@link RetryingFetchActor}s deal with failed and slow fetches.
+ *
+ * I/O errors (refused connections, timeouts, resets), 408, 425, 429 and 5xx other than 501 are worth retrying, after
+ * an exponentially growing delay with jitter (or the server's Retry-After if that is longer). Other 4xx, TLS failures
+ * and anything else are permanent, as is a Retry-After longer than {@link #maxRetryAfterMS}.
+ *
+ * If {@link #hedgePercentile} is set, a request which has taken longer than that percentile of recent latencies has a
+ * second identical request sent alongside it and whichever answers first wins.
+ */
+@Getter
+@Setter
+public class RetryPolicy implements Serializable {
+
+    /**
+     * Attempts in all, including the first. 1 means never retry.
+     */
+    private int maxAttempts = 3;
+    /**
+     * Delay before the first retry - it doubles each time up to maxDelayMS
+     */
+    private long baseDelayMS = 500L;
+    private long maxDelayMS = 30_000L;
+    /**
+     * A server's Retry-After is always honoured in full, but if it asks for longer than this we give up instead
+     */
+    private long maxRetryAfterMS = 10 * 60_000L;
+    /**
+     * Hedge requests slower than this fraction of latencies e.g. 0.95. 0 turns hedging off.
+     */
+    private double hedgePercentile = 0.0;
+    /**
+     * Latencies needed before we trust the percentile
+     */
+    private int hedgeMinSamples = 50;
+    /**
+     * Never hedge sooner than this
+     */
+    private long hedgeMinDelayMS = 50L;
+
+    /**
+     * What to do about a fetch
+     */
+    public enum Outcome {
+        /**
+         * Use the response
+         */
+        SUCCESS,
+        /**
+         * Try again later
+         */
+        RETRY,
+        /**
+         * Give up
+         */
+        PERMANENT
+    }
+
+    /**
+     * Constructor
+     */
+    public RetryPolicy() {}
+
+    /**
+     * Classify the result of a fetch
+     * @param response nullable response
+     * @param exception nullable exception if there is no response
+     * @return Outcome
+     */
+    public Outcome classify(Response response, Exception exception) {
+        if (null != response) {
+            int code = response.code();
+            if (code < 400)
+                return Outcome.SUCCESS;
+            if (408 == code || 425 == code || 429 == code || (code >= 500 && 501 != code))
+                return Outcome.RETRY;
+            return Outcome.PERMANENT;
+        }
+        if (exception instanceof SSLHandshakeException || exception instanceof SSLPeerUnverifiedException)
+            return Outcome.PERMANENT;
+        return exception instanceof IOException ? Outcome.RETRY : Outcome.PERMANENT;
+    }
+
+    /**
+     * Should we try again
+     * @param outcome of the last attempt
+     * @param attempts made so far
+     * @param retryAfter nullable Retry-After header from the last response
+     * @return true if so
+     */
+    public boolean shouldRetry(Outcome outcome, int attempts, String retryAfter) {
+        return Outcome.RETRY == outcome && attempts < maxAttempts && retryAfterMS(retryAfter) <= maxRetryAfterMS;
+    }
+
+    /**
+     * How long to wait before the next attempt - "equal jitter" so retries from a burst of failures spread out but
+     * never come back immediately. A longer Retry-After wins - it is not limited by maxDelayMS.
+     * @param attempts made so far (at least 1)
+     * @param retryAfter nullable Retry-After header from the last response
+     * @return delay in ms
+     */
+    public long delayMS(int attempts, String retryAfter) {
+        long backoff = Math.min(maxDelayMS, baseDelayMS << Math.min(30, Math.max(0, attempts - 1)));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        return Math.max(delay, retryAfterMS(retryAfter));
+    }
+
+    /**
+     * How long to let a request run before hedging it
+     * @param latency of recent successful fetches
+     * @return delay in ms or -1 if we should not hedge
+     */
+    public long hedgeDelayMS(LogHistogram latency) {
+        if (hedgePercentile <= 0.0 || latency.getCount() < hedgeMinSamples)
+            return -1L;
+        return Math.max(hedgeMinDelayMS, latency.percentile(hedgePercentile));
+    }
+
+    /**
+     * Parse Retry-After (delay in seconds or an HTTP date)
+     * @param retryAfter header value or null
+     * @return delay in ms or -1 if none or unparseable
+     */
+    public static long retryAfterMS(String retryAfter) {
+        if (null == retryAfter || retryAfter.isBlank())
+            return -1L;
+        try {
+            return Math.max(0L, Long.parseLong(retryAfter.trim()) * 1000L);
+        } catch (NumberFormatException e) {
+            try {
+                long at = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Math.max(0L, at - System.currentTimeMillis());
+            } catch (Exception ignored) {
+                return -1L;
+            }
+        }
+    }
+}
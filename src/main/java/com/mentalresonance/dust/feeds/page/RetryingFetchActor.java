@@ -0,0 +1,300 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.page;
+
+import com.mentalresonance.dust.core.actors.ActorBehavior;
+import com.mentalresonance.dust.core.actors.ActorRef;
+import com.mentalresonance.dust.core.actors.Cancellable;
+import com.mentalresonance.dust.core.actors.PersistentActor;
+import com.mentalresonance.dust.feeds.util.HttpResponseCache;
+import com.mentalresonance.dust.feeds.util.LogHistogram;
+import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
+import com.mentalresonance.dust.http.trait.HttpClientActor;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Request;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * Base for Actors which fetch pages according to a {@link FetchConfig}. A fetch started with
+ * {@link #fetch(Request, Serializable)} ends in exactly one call of {@link #onFetched(HttpRequestResponseMsg)} with a
+ * successful response, or of {@link #onFailed(Request, FetchFailedMsg)} once the {@link RetryPolicy} gives up - in
+ * which case the failure also goes to {@link FetchConfig#getDeadLetter()}. In between it may be retried and hedged.
+ *
+ * Subclasses must pass messages they do not handle on to this behavior.
+ */
+@Slf4j
+public abstract class RetryingFetchActor extends PersistentActor implements HttpClientActor {
+
+    /**
+     * How to fetch
+     */
+    protected FetchConfig config;
+    /**
+     * Shared response cache or null
+     */
+    protected HttpResponseCache cache = null;
+    /**
+     * Where failures go or null
+     */
+    protected ActorRef deadLetter = null;
+
+    /**
+     * Fetches not yet fetched or given up on, by id
+     */
+    private final HashMap<Long, Attempt> attempts = new HashMap<>();
+    private long nextId = 0L;
+    /**
+     * Latency of successful network fetches - for hedging
+     */
+    private final LogHistogram latency = new LogHistogram();
+    private long retries = 0L, hedges = 0L, hedgeWins = 0L, failed = 0L;
+
+    /**
+     * Constructor
+     * @param config how to fetch
+     */
+    protected RetryingFetchActor(FetchConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    protected void preStart() throws Exception {
+        super.preStart();
+        cache = config.cache();
+        if (null != config.getDeadLetter())
+            deadLetter = actorSelection(config.getDeadLetter());
+    }
+
+    @Override
+    protected ActorBehavior createBehavior() {
+        return message -> {
+            switch(message) {
+                case HttpRequestResponseMsg msg -> onResponse(msg);
+                case RetryMsg msg -> {
+                    Attempt attempt = attempts.get(msg.id);
+                    if (null != attempt)
+                        send(attempt);
+                }
+                case HedgeMsg msg -> {
+                    Attempt attempt = attempts.get(msg.id);
+                    if (null != attempt && attempt.attempts == msg.attempt && !attempt.hedged) {
+                        attempt.hedged = true;
+                        ++attempt.outstanding;
+                        ++hedges;
+                        request(new HttpRequestResponseMsg(self, attempt.request, new FetchTag(msg.id, msg.attempt, true)));
+                    }
+                }
+                case FetchStatsMsg msg -> sender.tell(fillStats(msg), self);
+                default -> super.createBehavior().onMessage(message);
+            }
+        };
+    }
+
+    /**
+     * Start fetching
+     * @param request to make
+     * @param tag passed back in {@link #onFetched(HttpRequestResponseMsg)} or {@link FetchFailedMsg#getRequest()}
+     */
+    protected void fetch(Request request, Serializable tag) {
+        Attempt attempt = new Attempt(++nextId, request, tag);
+        attempts.put(attempt.id, attempt);
+        send(attempt);
+    }
+
+    /**
+     * A fetch succeeded. msg.tag is the tag given to {@link #fetch(Request, Serializable)}. The subclass owns (and must
+     * close) the response.
+     * @param msg with response
+     */
+    protected abstract void onFetched(HttpRequestResponseMsg msg);
+
+    /**
+     * A fetch has been given up on - the failure has already gone to the dead letter Actor (or the log)
+     * @param request which failed
+     * @param failure what happened
+     */
+    protected void onFailed(Request request, FetchFailedMsg failure) {}
+
+    /**
+     * Fill in stats - subclasses add their own
+     * @param msg to fill
+     * @return msg
+     */
+    protected FetchStatsMsg fillStats(FetchStatsMsg msg) {
+        msg.setRetries(retries);
+        msg.setHedges(hedges);
+        msg.setHedgeWins(hedgeWins);
+        msg.setFailed(failed);
+        msg.setLatency(latency.copy());
+        return msg;
+    }
+
+    /**
+     * Make the next attempt - from the cache if it has a fresh copy
+     */
+    private void send(Attempt attempt) {
+        ++attempt.attempts;
+        attempt.outstanding = 1;
+        attempt.hedged = false;
+        attempt.startTs = System.currentTimeMillis();
+
+        HttpRequestResponseMsg msg = new HttpRequestResponseMsg(self, attempt.request, new FetchTag(attempt.id, attempt.attempts, false));
+        if (null != cache && cache.serve(msg))
+            self.tell(msg, self);
+        else {
+            request(msg);
+            long hedgeMS = config.getRetry().hedgeDelayMS(latency);
+            if (hedgeMS >= 0)
+                attempt.timer = scheduleIn(new HedgeMsg(attempt.id, attempt.attempts), hedgeMS);
+        }
+    }
+
+    private void onResponse(HttpRequestResponseMsg msg) {
+        FetchTag tag = (FetchTag)msg.tag;
+        Attempt attempt = attempts.get(tag.id);
+
+        // Loser of a hedge, or a late answer to an attempt we have moved on from
+        if (null == attempt || attempt.attempts != tag.attempt) {
+            if (null != msg.response)
+                msg.response.close();
+            return;
+        }
+        // A 304 to validators the cache added is no use if the entry has been evicted since - ask again in full
+        if (null != cache && null != msg.response && 304 == msg.response.code() && msg.request != attempt.request &&
+            !cache.has(msg.request)) {
+            msg.response.close();
+            request(new HttpRequestResponseMsg(self, attempt.request, tag));
+            return;
+        }
+        --attempt.outstanding;
+
+        RetryPolicy policy = config.getRetry();
+        RetryPolicy.Outcome outcome = policy.classify(msg.response, msg.exception);
+
+        if (RetryPolicy.Outcome.SUCCESS == outcome) {
+            attempts.remove(tag.id);
+            cancelTimer(attempt);
+            if (null == msg.response.header(HttpResponseCache.CACHE_HEADER))
+                latency.record(System.currentTimeMillis() - attempt.startTs);
+            if (tag.hedge)
+                ++hedgeWins;
+            msg.tag = attempt.tag;
+            onFetched(msg);
+            return;
+        }
+
+        int code = null != msg.response ? msg.response.code() : -1;
+        String retryAfter = null != msg.response ? msg.response.header("Retry-After") : null;
+        String error = null != msg.response ? msg.response.message() :
+            null != msg.exception ? msg.exception.toString() : "no response";
+        if (null != msg.response)
+            msg.response.close();
+
+        if (attempt.outstanding > 0) // The other half of a hedge may yet succeed
+            return;
+        cancelTimer(attempt);
+
+        if (policy.shouldRetry(outcome, attempt.attempts, retryAfter)) {
+            long delay = policy.delayMS(attempt.attempts, retryAfter);
+            log.debug("{} retrying {} in {}ms after {} {}", self.path, attempt.request.url(), delay, code, error);
+            ++retries;
+            attempt.timer = scheduleIn(new RetryMsg(tag.id), delay);
+            return;
+        }
+        attempts.remove(tag.id);
+        ++failed;
+
+        FetchFailedMsg failure = new FetchFailedMsg(attempt.request.url().toString(), attempt.tag, code, error, attempt.attempts);
+        if (null != deadLetter)
+            deadLetter.tell(failure, self);
+        else
+            log.warn("{} gave up: {}", self.path, failure);
+        onFailed(attempt.request, failure);
+    }
+
+    private static void cancelTimer(Attempt attempt) {
+        if (null != attempt.timer) {
+            attempt.timer.cancel();
+            attempt.timer = null;
+        }
+    }
+
+    /**
+     * A fetch in progress
+     */
+    private static class Attempt {
+        final long id;
+        final Request request;
+        final Serializable tag;
+        /**
+         * Attempts made so far
+         */
+        int attempts = 0;
+        /**
+         * Requests for this attempt not yet answered - 2 while hedged
+         */
+        int outstanding = 0;
+        boolean hedged = false;
+        long startTs = 0L;
+        /**
+         * Pending hedge or retry
+         */
+        Cancellable timer = null;
+
+        Attempt(long id, Request request, Serializable tag) {
+            this.id = id;
+            this.request = request;
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * Tags our requests so responses can be matched to their attempt
+     */
+    private static class FetchTag implements Serializable {
+        final long id;
+        final int attempt;
+        final boolean hedge;
+
+        FetchTag(long id, int attempt, boolean hedge) {
+            this.id = id;
+            this.attempt = attempt;
+            this.hedge = hedge;
+        }
+    }
+
+    private static class RetryMsg implements Serializable {
+        final long id;
+
+        RetryMsg(long id) {
+            this.id = id;
+        }
+    }
+
+    private static class HedgeMsg implements Serializable {
+        final long id;
+        final int attempt;
+
+        HedgeMsg(long id, int attempt) {
+            this.id = id;
+            this.attempt = attempt;
+        }
+    }
+}
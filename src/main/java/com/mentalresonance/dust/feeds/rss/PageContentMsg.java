@@ -19,8 +19,9 @@ package com.mentalresonance.dust.feeds.rss;
 
 
 import com.mentalresonance.dust.core.actors.ActorRef;
+import com.mentalresonance.dust.feeds.msgs.ByteHtmlDocumentMsg;
 import com.mentalresonance.dust.feeds.msgs.RawDocumentMsg;
-import com.mentalresonance.dust.html.msgs.HtmlDocumentMsg;
+import com.mentalresonance.dust.feeds.util.ResponseGate;
 import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
 import okhttp3.Request;
 
@@ -35,6 +36,10 @@ public class PageContentMsg extends HttpRequestResponseMsg {
      * The content
      */
     public RssContentMsg rcm; // The content
+    /**
+     * When the request was sent, if it went through a throttler, else 0
+     */
+    public long requestedTs = 0L;
 
     /**
      * Constructor
@@ -47,17 +52,17 @@ public class PageContentMsg extends HttpRequestResponseMsg {
 
     /**
      * Create HtmlDocumentMsg - note this can only be done <b>once</b> since it uses the response body which is
-     * consumed.
-     * @return HtmlDocumentMsg
+     * consumed. The page stays as bytes until something asks for its html.
+     * @return ByteHtmlDocumentMsg
      * @throws IOException if error getting body of response
      */
-    public HtmlDocumentMsg toHtmlDocumentMsg() throws IOException
+    public ByteHtmlDocumentMsg toHtmlDocumentMsg() throws IOException
     {
-        HtmlDocumentMsg doc = new HtmlDocumentMsg(getSender());
-
         assert response.body() != null;
 
-        doc.setHtml(response.body().string());
+        byte[] bytes = response.body().bytes();
+        ByteHtmlDocumentMsg doc = new ByteHtmlDocumentMsg(getSender(), bytes, ResponseGate.charset(response, bytes));
+
         doc.setContentTs(rcm.published.getTime());
         doc.setAuthor(rcm.author);
         doc.setTitle(rcm.title);
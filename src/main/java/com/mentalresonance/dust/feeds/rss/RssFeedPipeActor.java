@@ -18,8 +18,12 @@
 package com.mentalresonance.dust.feeds.rss;
 
 import com.mentalresonance.dust.core.actors.*;
+import com.mentalresonance.dust.feeds.crawler.FetchCompletedMsg;
+import com.mentalresonance.dust.feeds.crawler.HostThrottlerActor;
 import com.mentalresonance.dust.feeds.msgs.RawDocumentMsg;
 import com.mentalresonance.dust.feeds.msgs.UpdateUrlMsg;
+import com.mentalresonance.dust.feeds.util.HttpResponseCache;
+import com.mentalresonance.dust.feeds.util.UrlCanonicalizer;
 import com.mentalresonance.dust.html.msgs.HtmlDocumentMsg;
 import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
 import com.mentalresonance.dust.http.service.HttpService;
@@ -66,6 +70,11 @@ public class RssFeedPipeActor extends PersistentActor implements HttpClientActor
      * Throttler
      */
     protected ActorRef throttler;
+    /**
+     * Send the throttler a {@link FetchCompletedMsg} when a page request it granted completes - only a throttler
+     * which understands it (e.g. a {@link HostThrottlerActor}) wants one
+     */
+    protected boolean reportFetches = false;
     /**
      * url of feed
      */
@@ -96,6 +105,18 @@ public class RssFeedPipeActor extends PersistentActor implements HttpClientActor
     @Setter
     protected boolean returnContent;
 
+    /**
+     * Decides when two entry links are the same so each is only processed once
+     */
+    @Setter
+    protected UrlCanonicalizer canonicalizer = UrlCanonicalizer.DEFAULT;
+    /**
+     * If not null entry pages are fetched through this cache, e.g. HttpResponseCache.open(dir, bytes) to share one
+     * with the page pipelines
+     */
+    @Setter
+    protected HttpResponseCache contentCache = null;
+
     /**
      * State - last visit ts
      */
@@ -133,6 +154,18 @@ public class RssFeedPipeActor extends PersistentActor implements HttpClientActor
     public static Props props(String url, Long intervalMS, ActorRef throttler, Boolean returnContent) {
         return Props.create(RssFeedPipeActor.class, url, intervalMS, throttler, returnContent);
     }
+    /**
+     * Props - with a throttler which must hear when each page request completes
+     * @param url of feed
+     * @param intervalMS (in ms) between visits
+     * @param throttler throttler such as a {@link HostThrottlerActor}
+     * @param returnContent if true GET the linked content
+     * @param reportFetches if true send the throttler a {@link FetchCompletedMsg} for each page request it granted
+     * @return Props
+     */
+    public static Props props(String url, Long intervalMS, ActorRef throttler, Boolean returnContent, Boolean reportFetches) {
+        return Props.create(RssFeedPipeActor.class, url, intervalMS, throttler, returnContent, reportFetches);
+    }
     /**
      * Constructor
      * @param url of feed
@@ -147,6 +180,19 @@ public class RssFeedPipeActor extends PersistentActor implements HttpClientActor
         this.intervalMS = intervalMS;
         this.returnContent = returnContent == null || returnContent;
     }
+    /**
+     * Constructor
+     * @param url of feed
+     * @param intervalMS (in ms) between visits
+     * @param throttler nullable throttler
+     * @param returnContent if true GET the linked content
+     * @param reportFetches if true send the throttler a {@link FetchCompletedMsg} when a page request it granted
+     *                      completes
+     */
+    public RssFeedPipeActor(String url, Long intervalMS, ActorRef throttler, Boolean returnContent, Boolean reportFetches) {
+        this(url, intervalMS, throttler, returnContent);
+        this.reportFetches = Boolean.TRUE.equals(reportFetches);
+    }
     /**
      * Contructor
      * @param url of feed
@@ -231,7 +277,9 @@ public class RssFeedPipeActor extends PersistentActor implements HttpClientActor
                         );
                         pcm.rcm = msg;
                         log.trace("Getting page at {}", pcm.request.url());
-                        if (null != throttler)
+                        if (null != contentCache && contentCache.serve(pcm))
+                            self.tell(pcm, self);
+                        else if (null != throttler)
                             throttler.tell(pcm, self);
                         else
                             request(pcm);
@@ -240,11 +288,17 @@ public class RssFeedPipeActor extends PersistentActor implements HttpClientActor
                 case PageContentMsg pcm -> {
                     if (pcm.isProxied()) { // Request granted from throttler - so do it
                         pcm.setProxied(false);
+                        pcm.requestedTs = System.currentTimeMillis();
                         request(pcm);
                     }
                     else { // Response
+                        // A HostThrottlerActor holds the host's slot until it hears the request is done
+                        if (reportFetches && null != throttler && 0L != pcm.requestedTs)
+                            throttler.tell(FetchCompletedMsg.of(pcm, pcm.requestedTs), self);
                         if (null != pcm.response) {
                             try {
+                                if (null != contentCache)
+                                    pcm.response = contentCache.update(pcm.request, pcm.response);
                                 log.trace("Got page at {}", pcm.request.url());
                                 String contentType = pcm.response.header("content-type");
                                 if (null == contentType) contentType = "text/html";
@@ -300,6 +354,15 @@ public class RssFeedPipeActor extends PersistentActor implements HttpClientActor
         return rawDocumentMsg;
     }
 
+    /**
+     * Key used to dedup entry links
+     * @param link entry link - may be null
+     * @return canonical link or null
+     */
+    protected String linkKey(String link) {
+        return null != link ? canonicalizer.canonicalize(link) : null;
+    }
+
     /**
      * Process the XML from the feed
      * @param response - contains XML with feed content
@@ -375,8 +438,7 @@ public class RssFeedPipeActor extends PersistentActor implements HttpClientActor
                 rssContentMsg.published = entry.getPublishedDate();
                 rssContentMsg.content = content.getValue();
 
-                if ((null != rssContentMsg.link) && !links.containsKey(rssContentMsg.link)) {
-                    links.put(rssContentMsg.link, true);
+                if ((null != rssContentMsg.link) && null == links.putIfAbsent(linkKey(rssContentMsg.link), true)) {
                     self.tell(rssContentMsg, self);
                 } else if (null == rssContentMsg.link) {
                     self.tell(rssContentMsg, self);
@@ -389,8 +451,7 @@ public class RssFeedPipeActor extends PersistentActor implements HttpClientActor
                 rssContentMsg.link = sl.getHref();
                 rssContentMsg.author = entry.getAuthor();
                 rssContentMsg.published = entry.getPublishedDate();
-                if (! links.containsKey(rssContentMsg.link)) {
-                    links.put(rssContentMsg.link, true);
+                if (null == links.putIfAbsent(linkKey(rssContentMsg.link), true)) {
                     self.tell(rssContentMsg, self);
                 }
             }
@@ -400,8 +461,7 @@ public class RssFeedPipeActor extends PersistentActor implements HttpClientActor
                 rssContentMsg.link = entry.getLink();
                 rssContentMsg.author = entry.getAuthor();
                 rssContentMsg.published = entry.getPublishedDate();
-                if (! links.containsKey(rssContentMsg.link)) {
-                    links.put(rssContentMsg.link, true);
+                if (null == links.putIfAbsent(linkKey(rssContentMsg.link), true)) {
                     self.tell(rssContentMsg, self);
                 }
             }
@@ -0,0 +1,351 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.store;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Content addressable store - each distinct page body is stored once, under its SHA-256 (of the uncompressed body)
+ * and the suffix of the {@link Codec} it was written with:
+ * <pre>
+ *     directory/blobs/3f/a2/3fa2...(64 hex digits)[.gz|.zst]
+ *     directory/index.log
+ * </pre>
+ * index.log is an append-only log of url to blob mappings ({@code <blob> <url>}) and removals ({@code - <url>}).
+ * It is replayed when a directory is first used, and rewritten whenever most of it is obsolete. Blobs are reference
+ * counted so deleting a url only removes its blob when no other url has the same body. Blobs no url refers to (e.g.
+ * written just before a crash) are removed when the log is replayed.
+ */
+@Slf4j
+public class CasPageStore implements PageStore {
+
+    private static final String INDEX = "index.log";
+    private static final String BLOBS = "blobs";
+    private static final String REMOVED = "-";
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final FilePageStore.Fsync fsync;
+    @Getter
+    private final Codec codec;
+    /**
+     * Index of each directory in use
+     */
+    private final HashMap<Path, Index> indexes = new HashMap<>();
+
+    /**
+     * Constructor - no fsync
+     */
+    public CasPageStore() {
+        this(FilePageStore.Fsync.NONE, Codecs.NONE);
+    }
+
+    /**
+     * Constructor
+     * @param fsync policy for blobs and the index
+     * @param codec compression of blobs
+     */
+    public CasPageStore(FilePageStore.Fsync fsync, Codec codec) {
+        this.fsync = fsync;
+        this.codec = codec;
+    }
+
+    /**
+     * Store the body, unless an identical one is stored already
+     * @return path of the blob, relative to directory
+     */
+    @Override
+    public String put(String directory, String url, ReadableByteChannel source) throws IOException {
+        Index index = index(Path.of(directory));
+        Path tmp = Files.createTempFile(index.blobs, ".", ".tmp");
+
+        try {
+            String key = copy(source, tmp, url) + codec.suffix();
+            Path blob = index.dir.resolve(blobName(key));
+
+            synchronized (index) {
+                if (Files.exists(blob))
+                    Files.delete(tmp);
+                else {
+                    Files.createDirectories(blob.getParent());
+                    FilePageStore.commit(tmp, blob, fsync);
+                }
+                index.put(url, key);
+            }
+            return blobName(key);
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * Forget the url and remove its blob if no other url refers to it
+     * @return path of the blob the url referred to, or null if it was not stored
+     */
+    @Override
+    public String delete(String directory, String url) throws IOException {
+        Index index = index(Path.of(directory));
+
+        synchronized (index) {
+            String hash = index.remove(url);
+            return null == hash ? null : blobName(hash);
+        }
+    }
+
+    /**
+     * Where a url's body is
+     * @param directory of the store
+     * @param url of page
+     * @return path of the blob, relative to directory, or null if the url is not stored
+     * @throws IOException if the index cannot be read
+     */
+    public String blob(String directory, String url) throws IOException {
+        Index index = index(Path.of(directory));
+
+        synchronized (index) {
+            String hash = index.urls.get(url);
+            return null == hash ? null : blobName(hash);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (indexes) {
+            for (Index index : indexes.values()) {
+                synchronized (index) {
+                    index.journal.close();
+                }
+            }
+            indexes.clear();
+        }
+    }
+
+    private Index index(Path dir) throws IOException {
+        dir = dir.toAbsolutePath().normalize();
+        synchronized (indexes) {
+            Index index = indexes.get(dir);
+            if (null == index) {
+                index = new Index(dir);
+                indexes.put(dir, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Read a stored page, decompressing it if need be
+     * @param directory of the store
+     * @param url of page
+     * @return the page's content or null if the url is not stored
+     * @throws IOException on error
+     */
+    public InputStream open(String directory, String url) throws IOException {
+        String blob = blob(directory, url);
+        return null == blob ?
+            null :
+            Codecs.bySuffix(blob, codec).decoder(Files.newInputStream(Path.of(directory, blob)));
+    }
+
+    /**
+     * Copy (and compress) source to a file, hashing it as we go
+     * @return hex SHA-256 of the uncompressed content
+     */
+    private String copy(ReadableByteChannel source, Path dest, String url) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        try (OutputStream out = codec.encoder(Files.newOutputStream(dest), url)) {
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer.array(), 0, buffer.limit());
+                out.write(buffer.array(), 0, buffer.limit());
+                buffer.clear();
+            }
+        }
+        if (FilePageStore.Fsync.NONE != fsync)
+            FilePageStore.force(dest);
+        return HEX.formatHex(digest.digest());
+    }
+
+    private static String blobName(String hash) {
+        return "%s/%s/%s/%s".formatted(BLOBS, hash.substring(0, 2), hash.substring(2, 4), hash);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // Every JVM has SHA-256
+        }
+    }
+
+    /**
+     * The url to hash map of one directory, and the reference count of each blob. Callers synchronize on it.
+     */
+    private class Index {
+        final Path dir, blobs;
+        final HashMap<String, String> urls = new HashMap<>();
+        final HashMap<String, Integer> refs = new HashMap<>();
+        FileChannel journal;
+        /**
+         * Lines in the log - when this is much more than urls.size() the log is rewritten
+         */
+        long logLines = 0L;
+
+        Index(Path dir) throws IOException {
+            this.dir = dir;
+            this.blobs = dir.resolve(BLOBS);
+            Files.createDirectories(blobs);
+
+            Path logFile = dir.resolve(INDEX);
+            if (Files.exists(logFile)) {
+                List<String> lines = Files.readAllLines(logFile, StandardCharsets.UTF_8);
+                for (String line : lines) {
+                    int space = line.indexOf(' ');
+                    if (line.startsWith(REMOVED + " "))
+                        unref(urls.remove(line.substring(2)), false);
+                    else if (space > 0)
+                        ref(line.substring(space + 1), line.substring(0, space), false);
+                }
+                logLines = lines.size();
+            }
+            sweep();
+            if (obsolete())
+                rewrite();
+            else
+                journal = FileChannel.open(logFile, CREATE, WRITE, APPEND);
+        }
+
+        /**
+         * Is most of the log obsolete
+         */
+        private boolean obsolete() {
+            return logLines > 1024 && logLines > 2L * urls.size();
+        }
+
+        /**
+         * Remove blobs no url refers to and temporary files left by a crash
+         */
+        private void sweep() throws IOException {
+            int removed = 0;
+
+            try (Stream<Path> files = Files.walk(blobs)) {
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.startsWith(".") || !refs.containsKey(name)) {
+                        Files.deleteIfExists(file);
+                        ++removed;
+                    }
+                }
+            }
+            if (removed > 0)
+                log.info("Removed {} unreferenced blobs from {}", removed, dir);
+        }
+
+        void put(String url, String hash) throws IOException {
+            if (!hash.equals(urls.get(url))) {
+                append(hash + " " + url);
+                ref(url, hash, true);
+                rewriteIfObsolete();
+            }
+        }
+
+        String remove(String url) throws IOException {
+            String hash = urls.remove(url);
+            if (null != hash) {
+                append(REMOVED + " " + url);
+                unref(hash, true);
+                rewriteIfObsolete();
+            }
+            return hash;
+        }
+
+        /**
+         * Rewrite the log while running once most of it is obsolete, rather than leaving it to grow until the next
+         * open. Checked every 1024 lines.
+         */
+        private void rewriteIfObsolete() throws IOException {
+            if (0 == logLines % 1024 && obsolete()) {
+                journal.close();
+                rewrite();
+            }
+        }
+
+        /**
+         * Point url at a blob, dropping its reference to any previous blob
+         */
+        private void ref(String url, String hash, boolean delete) throws IOException {
+            unref(urls.put(url, hash), delete);
+            refs.merge(hash, 1, Integer::sum);
+        }
+
+        /**
+         * Drop a reference to a blob, deleting the blob if it was the last and delete is true. (On replay blobs are
+         * kept as a later line may refer to them again - the sweep after replay removes the rest.)
+         */
+        private void unref(String hash, boolean delete) throws IOException {
+            if (null != hash && null == refs.computeIfPresent(hash, (h, n) -> n > 1 ? n - 1 : null) && delete)
+                Files.deleteIfExists(dir.resolve(blobName(hash)));
+        }
+
+        private void append(String line) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining())
+                journal.write(bytes);
+            if (FilePageStore.Fsync.NONE != fsync)
+                journal.force(false);
+            ++logLines;
+        }
+
+        /**
+         * Replace the log with one line per live url
+         */
+        private void rewrite() throws IOException {
+            Path tmp = Files.createTempFile(dir, ".", ".tmp");
+            StringBuilder lines = new StringBuilder();
+
+            urls.forEach((url, hash) -> lines.append(hash).append(' ').append(url).append('\n'));
+            Files.writeString(tmp, lines, StandardCharsets.UTF_8);
+            FilePageStore.commit(tmp, dir.resolve(INDEX), fsync);
+            logLines = urls.size();
+            journal = FileChannel.open(dir.resolve(INDEX), CREATE, WRITE, APPEND);
+            log.debug("Rewrote index of {} - {} urls, {} blobs", dir, urls.size(), refs.size());
+        }
+    }
+}
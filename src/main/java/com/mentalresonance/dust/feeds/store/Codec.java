@@ -0,0 +1,59 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression applied to pages as they are streamed to disk. Stores record which codec wrote each page (as a file
+ * suffix or an id in the record) so readers decompress transparently - see {@link Codecs}.
+ */
+public interface Codec {
+
+    /**
+     * Id stored with the data (0 - 15). Ids 0 - 2 are taken by {@link Codecs#NONE}, {@link Codecs#GZIP} and
+     * {@link ZstdCodec}.
+     * @return id
+     */
+    int id();
+
+    /**
+     * Added to names of files holding data written with this codec
+     * @return suffix with leading . or "" for none
+     */
+    String suffix();
+
+    /**
+     * Compress
+     * @param out where compressed data goes - closed when the returned stream is
+     * @param url of the page being written (a codec may tune itself per host)
+     * @return stream to write the page to
+     * @throws IOException on error
+     */
+    OutputStream encoder(OutputStream out, String url) throws IOException;
+
+    /**
+     * Decompress
+     * @param in compressed data - closed when the returned stream is
+     * @return decompressed data
+     * @throws IOException on error
+     */
+    InputStream decoder(InputStream in) throws IOException;
+}
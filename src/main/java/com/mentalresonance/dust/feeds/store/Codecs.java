@@ -0,0 +1,148 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.store;
+
+import java.io.*;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The built-in codecs, and finding the codec which wrote some data
+ */
+public class Codecs {
+
+    private static final int BUFFER = 64 * 1024;
+
+    private Codecs() {}
+
+    /**
+     * Stored as is
+     */
+    public static final Codec NONE = new Codec() {
+        public int id() { return 0; }
+        public String suffix() { return ""; }
+        public OutputStream encoder(OutputStream out, String url) { return out; }
+        public InputStream decoder(InputStream in) { return in; }
+    };
+
+    /**
+     * gzip - everything can read it
+     */
+    public static final Codec GZIP = new Codec() {
+        public int id() { return 1; }
+        public String suffix() { return ".gz"; }
+        public OutputStream encoder(OutputStream out, String url) throws IOException { return new GZIPOutputStream(out, BUFFER); }
+        public InputStream decoder(InputStream in) throws IOException { return new GZIPInputStream(in, BUFFER); }
+    };
+
+    /**
+     * Reads zstd data for a store configured with another codec. It has no dictionaries, so a page written with one
+     * fails to open with an IOException naming the dictionary - give the store a {@link ZstdCodec} over the
+     * dictionary directory to read such pages.
+     */
+    private static final ZstdCodec ZSTD = new ZstdCodec();
+
+    /**
+     * Suffixes a {@link FilePageStore} may have given a page
+     */
+    static final List<String> SUFFIXES = List.of(NONE.suffix(), GZIP.suffix(), ZstdCodec.SUFFIX);
+
+    /**
+     * Codec with the given id
+     * @param id from the data
+     * @param configured the store's codec - used if it has the id, so its settings (e.g. dictionaries) apply
+     * @return the codec - zstd without dictionaries if the data is zstd and the store's codec is not
+     * @throws IOException if the id is unknown
+     */
+    public static Codec byId(int id, Codec configured) throws IOException {
+        if (configured.id() == id)
+            return configured;
+        return switch (id) {
+            case 0 -> NONE;
+            case 1 -> GZIP;
+            case ZstdCodec.ID -> ZSTD;
+            default -> throw new IOException("Unknown codec " + id);
+        };
+    }
+
+    /**
+     * Codec with the given suffix
+     * @param suffix exactly as added to the file name ("" for none)
+     * @param configured the store's codec - used if it has the suffix
+     * @return the codec
+     */
+    public static Codec forSuffix(String suffix, Codec configured) {
+        if (suffix.equals(configured.suffix()))
+            return configured;
+        if (suffix.equals(GZIP.suffix()))
+            return GZIP;
+        if (suffix.equals(ZstdCodec.SUFFIX))
+            return ZSTD;
+        return NONE;
+    }
+
+    /**
+     * Codec which wrote a file - only for names which cannot end in a suffix of their own (e.g. hashes)
+     * @param fileName of the file
+     * @param configured the store's codec - used if it has the file's suffix
+     * @return the codec
+     */
+    public static Codec bySuffix(String fileName, Codec configured) {
+        if (!configured.suffix().isEmpty() && fileName.endsWith(configured.suffix()))
+            return configured;
+        if (fileName.endsWith(GZIP.suffix()))
+            return GZIP;
+        if (fileName.endsWith(ZstdCodec.SUFFIX))
+            return ZSTD;
+        return NONE;
+    }
+
+    /**
+     * Compress bytes
+     * @param codec to use
+     * @param bytes to compress
+     * @param url of the page
+     * @return compressed bytes
+     * @throws IOException on error
+     */
+    public static byte[] encode(Codec codec, byte[] bytes, String url) throws IOException {
+        if (NONE == codec)
+            return bytes;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (OutputStream encoder = codec.encoder(out, url)) {
+            encoder.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompress bytes
+     * @param codec which compressed them
+     * @param bytes compressed
+     * @return decompressed bytes
+     * @throws IOException on error
+     */
+    public static byte[] decode(Codec codec, byte[] bytes) throws IOException {
+        if (NONE == codec)
+            return bytes;
+        try (InputStream decoder = codec.decoder(new ByteArrayInputStream(bytes))) {
+            return decoder.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.store;
+
+import lombok.Getter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * One file per page, placed by a {@link PageLayout}. Pages are streamed into a temporary file in the destination directory, optionally forced to
+ * disk, then renamed over the destination so a reader sees the old page or the new one but never part of one.
+ * If a {@link Codec} is given pages are compressed on the way and the file name gets the codec's suffix, which
+ * {@link #open} uses to decompress.
+ */
+public class FilePageStore implements PageStore {
+
+    /**
+     * How hard to try to make a stored page survive a crash
+     */
+    public enum Fsync {
+        /**
+         * Leave it to the OS - a crash may lose recent pages (but never leaves a partial one)
+         */
+        NONE,
+        /**
+         * Force the page's content to disk before it is renamed into place
+         */
+        FILE,
+        /**
+         * As FILE and also force the directory after the rename so the new name is durable
+         */
+        DIRECTORY
+    }
+
+    /**
+     * Bytes asked for per transferFrom()
+     */
+    private static final long CHUNK = 1L << 20;
+
+    @Getter
+    private final PageLayout layout;
+    @Getter
+    private final Fsync fsync;
+    @Getter
+    private final Codec codec;
+
+    /**
+     * Constructor - flat layout (for compatibility with existing directories), no fsync and no compression
+     */
+    public FilePageStore() {
+        this(new FlatLayout(), Fsync.NONE);
+    }
+
+    /**
+     * Constructor - no compression
+     * @param layout of pages, e.g. {@link ShardedLayout}
+     * @param fsync policy
+     */
+    public FilePageStore(PageLayout layout, Fsync fsync) {
+        this(layout, fsync, Codecs.NONE);
+    }
+
+    /**
+     * Constructor
+     * @param layout of pages, e.g. {@link ShardedLayout}
+     * @param fsync policy
+     * @param codec compression
+     */
+    public FilePageStore(PageLayout layout, Fsync fsync, Codec codec) {
+        this.layout = layout;
+        this.fsync = fsync;
+        this.codec = codec;
+    }
+
+    /**
+     * Store the page. A copy written earlier with a different codec is removed (see {@link #suffixes}).
+     */
+    @Override
+    public String put(String directory, String url, ReadableByteChannel source) throws IOException {
+        String base = fileName(url), fileName = base + codec.suffix();
+
+        write(Path.of(directory, fileName), source, fsync, codec, url);
+        for (String suffix : suffixes()) {
+            if (!suffix.equals(codec.suffix()))
+                Files.deleteIfExists(Path.of(directory, base + suffix));
+        }
+        return fileName;
+    }
+
+    @Override
+    public String delete(String directory, String url) throws IOException {
+        String base = fileName(url), deleted = null;
+
+        for (String suffix : suffixes()) {
+            if (Files.deleteIfExists(Path.of(directory, base + suffix)) && null == deleted)
+                deleted = base + suffix;
+        }
+        return deleted;
+    }
+
+    /**
+     * Read a stored page, decompressing it if need be
+     * @param directory of the store
+     * @param url of page
+     * @return the page's content or null if it is not stored
+     * @throws IOException on error
+     */
+    public InputStream open(String directory, String url) throws IOException {
+        String base = fileName(url);
+
+        for (String suffix : suffixes()) {
+            Path file = Path.of(directory, base + suffix);
+            if (Files.isRegularFile(file))
+                // The suffix we found it by - the page's own name may end in .gz (archive.tar.gz stored as is)
+                return Codecs.forSuffix(suffix, codec).decoder(Files.newInputStream(file));
+        }
+        return null;
+    }
+
+    /**
+     * Suffixes a page of ours may have been stored under. Every codec's if we compress (so all our names end in our
+     * codec's suffix) or the layout says no other url can have our name plus a suffix. Otherwise (e.g. uncompressed
+     * with {@link FlatLayout}) a.gz may be another url's page, so only the page's own name is ours.
+     * @return suffixes to look for
+     */
+    private List<String> suffixes() {
+        return Codecs.NONE != codec || layout.suffixesAreOwn() ? Codecs.SUFFIXES : List.of(codec.suffix());
+    }
+
+    /**
+     * Name of the file holding a page
+     * @param url of page
+     * @return file name relative to the store's directory
+     * @throws IOException if the url is not valid
+     */
+    protected String fileName(String url) throws IOException {
+        return layout.path(url);
+    }
+
+    /**
+     * Atomically replace dest with everything read from source. Missing parent directories are created.
+     * @param dest file to write
+     * @param source content - read to the end but not closed
+     * @param fsync policy
+     * @return bytes written
+     * @throws IOException on error, in which case dest is untouched
+     */
+    public static long write(Path dest, ReadableByteChannel source, Fsync fsync) throws IOException {
+        return write(dest, source, fsync, Codecs.NONE, null);
+    }
+
+    /**
+     * Atomically replace dest with everything read from source, compressed. Missing parent directories are created.
+     * @param dest file to write
+     * @param source content - read to the end but not closed
+     * @param fsync policy
+     * @param codec compression
+     * @param url of the page
+     * @return bytes read from source
+     * @throws IOException on error, in which case dest is untouched
+     */
+    public static long write(Path dest, ReadableByteChannel source, Fsync fsync, Codec codec, String url) throws IOException {
+        Path dir = dest.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, ".", ".tmp");
+        long size = 0L, n;
+
+        try {
+            if (Codecs.NONE == codec) {
+                try (FileChannel out = FileChannel.open(tmp, WRITE, TRUNCATE_EXISTING)) {
+                    while ((n = out.transferFrom(source, size, CHUNK)) > 0)
+                        size += n;
+                    if (Fsync.NONE != fsync)
+                        out.force(false);
+                }
+            }
+            else {
+                try (OutputStream out = codec.encoder(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024), url)) {
+                    size = Channels.newInputStream(source).transferTo(out);
+                }
+                if (Fsync.NONE != fsync)
+                    force(tmp);
+            }
+            commit(tmp, dest, fsync);
+            return size;
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * Rename a fully written temporary file over its destination (which must be in the same directory)
+     * @param tmp written file
+     * @param dest destination
+     * @param fsync policy
+     * @throws IOException on error
+     */
+    public static void commit(Path tmp, Path dest, Fsync fsync) throws IOException {
+        try {
+            Files.move(tmp, dest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (Fsync.DIRECTORY == fsync)
+            forceDirectory(dest.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Force a file's content to disk
+     * @param file to force
+     * @throws IOException on error
+     */
+    static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Force a directory's entries to disk. Not every platform lets us open a directory, in which case this does nothing.
+     * @param dir directory
+     */
+    public static void forceDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, READ)) {
+            channel.force(true);
+        }
+        catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.store;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Every page in one directory, named by its url's path with / changed to -, or by the whole url (encoded) if it
+ * has no path. This is the original layout - it ignores the host so pages with the same path on different hosts
+ * overwrite each other. Prefer {@link ShardedLayout}.
+ */
+public class FlatLayout implements PageLayout {
+
+    /**
+     * Constructor
+     */
+    public FlatLayout() {}
+
+    /**
+     * As the original PersistingPagePipeActor named files - java.net.URL leaves the path as it appears in the url
+     * (%xx escapes and all) and accepts urls java.net.URI rejects, so existing directories are still found
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public String path(String address) throws IOException {
+        String path = new URL(address).getPath();
+
+        if (path.length() > 1)
+            return path.substring(1).replaceAll("/", "-");
+        else
+            return URLEncoder.encode(address, StandardCharsets.UTF_8);
+    }
+}
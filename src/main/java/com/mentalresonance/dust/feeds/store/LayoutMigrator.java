@@ -0,0 +1,129 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.store;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Move the pages of a {@link FilePageStore} from one {@link PageLayout} to another, e.g. an existing flat directory
+ * to a {@link ShardedLayout}. File names do not always say which url a page came from, so the urls must be supplied.
+ * In a flat directory several urls may have been written to the same file - we cannot tell which one it holds, so
+ * those are left where they are and reported.
+ *
+ * From the command line: LayoutMigrator directory url-file [--dry-run], where url-file has one url per line.
+ */
+@Slf4j
+public class LayoutMigrator {
+
+    private LayoutMigrator() {}
+
+    /**
+     * What happened
+     */
+    @Getter
+    public static class Result {
+        /**
+         * Pages moved (or which would be on a dry run)
+         */
+        private int moved = 0;
+        /**
+         * Urls with no page in the old layout
+         */
+        private int missing = 0;
+        /**
+         * Urls sharing a file in the old layout - not moved
+         */
+        private final List<String> ambiguous = new ArrayList<>();
+
+        @Override
+        public String toString() {
+            return "moved %d, missing %d, ambiguous %d".formatted(moved, missing, ambiguous.size());
+        }
+    }
+
+    /**
+     * Migrate
+     * @param directory of the store
+     * @param urls of the stored pages
+     * @param from old layout
+     * @param to new layout
+     * @param dryRun if true nothing is moved
+     * @return what was (or would be) done
+     * @throws IOException on error - pages already moved stay moved
+     */
+    public static Result migrate(Path directory, Iterable<String> urls, PageLayout from, PageLayout to, boolean dryRun) throws IOException {
+        LinkedHashMap<String, List<String>> byOldPath = new LinkedHashMap<>();
+        Result result = new Result();
+
+        for (String url : urls)
+            byOldPath.computeIfAbsent(from.path(url), k -> new ArrayList<>()).add(url);
+
+        for (var entry : byOldPath.entrySet()) {
+            // The page may have been compressed - see Codec - but not if the compressed name is another url's page
+            String suffix = Codecs.SUFFIXES.stream()
+                .filter(s -> s.isEmpty() || from.suffixesAreOwn() || !byOldPath.containsKey(entry.getKey() + s))
+                .filter(s -> Files.isRegularFile(directory.resolve(entry.getKey() + s))).findFirst().orElse(null);
+
+            if (null == suffix)
+                result.missing += entry.getValue().size();
+            else if (entry.getValue().size() > 1)
+                result.ambiguous.addAll(entry.getValue());
+            else {
+                Path source = directory.resolve(entry.getKey() + suffix);
+                Path dest = directory.resolve(to.path(entry.getValue().getFirst()) + suffix);
+
+                if (!dryRun && !source.equals(dest)) {
+                    Files.createDirectories(dest.getParent());
+                    FilePageStore.commit(source, dest, FilePageStore.Fsync.NONE);
+                }
+                ++result.moved;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Migrate a flat directory to the default sharded layout
+     * @param args directory url-file [--dry-run]
+     * @throws IOException on error
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: LayoutMigrator directory url-file [--dry-run]");
+            System.exit(1);
+        }
+        List<String> urls;
+        try (Stream<String> lines = Files.lines(Path.of(args[1]))) {
+            urls = lines.map(String::trim).filter(l -> !l.isEmpty()).toList();
+        }
+        boolean dryRun = args.length > 2 && "--dry-run".equals(args[2]);
+        Result result = migrate(Path.of(args[0]), urls, new FlatLayout(), new ShardedLayout(), dryRun);
+
+        log.info("{}{}", dryRun ? "Dry run: " : "", result);
+        result.ambiguous.forEach(url -> log.warn("Not moved - shares a file with another url: {}", url));
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.store;
+
+import java.io.IOException;
+
+/**
+ * Maps a page's url to where a {@link FilePageStore} keeps it
+ */
+public interface PageLayout {
+
+    /**
+     * Path of the page relative to the store's directory, using / as the separator
+     * @param url of page
+     * @return relative path
+     * @throws IOException if the url is not valid
+     */
+    String path(String url) throws IOException;
+
+    /**
+     * Whether a url's path with a codec suffix added can never be another url's path (e.g. because the path holds a
+     * hash of the url). If so a {@link FilePageStore} may look for a page under every codec's suffix.
+     * @return false unless the layout says otherwise
+     */
+    default boolean suffixesAreOwn() { return false; }
+}
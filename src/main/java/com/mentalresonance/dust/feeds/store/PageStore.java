@@ -0,0 +1,55 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Where {@link com.mentalresonance.dust.feeds.page.PersistingPagePipeActor} keeps pages. Implementations are called
+ * from I/O threads, not the actor, so must be thread safe. Whoever creates a store closes it.
+ */
+public interface PageStore extends Closeable {
+
+    /**
+     * Store a page, replacing any previous copy. Readers never see a partly written page.
+     * @param directory root directory of the store
+     * @param url of the page
+     * @param source page content - read to the end but not closed
+     * @return name the page was stored under, relative to directory
+     * @throws IOException on error - nothing is stored
+     */
+    String put(String directory, String url, ReadableByteChannel source) throws IOException;
+
+    /**
+     * Remove a stored page
+     * @param directory root directory of the store
+     * @param url of the page
+     * @return name the page was stored under, or null if it was not stored
+     * @throws IOException on error
+     */
+    String delete(String directory, String url) throws IOException;
+
+    /**
+     * Release any open files. By default there are none.
+     * @throws IOException on error
+     */
+    @Override
+    default void close() throws IOException {}
+}
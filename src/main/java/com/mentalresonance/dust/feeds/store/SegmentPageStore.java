@@ -0,0 +1,602 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.store;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Pages are appended to rolling segment files (seg-000001.pack, seg-000002.pack ..) rather than being a file each,
+ * which saves inodes and turns page writes into sequential appends. Each record is
+ * <pre>
+ *     int magic, byte flags (compression | tombstone), int url length, int body length, int CRC32 of body, url, body
+ * </pre>
+ * and bodies may be compressed by a {@link Codec}, whose id is kept in the flags so the codec can be changed at any time. An in memory url to record index is rebuilt by scanning the segments when a directory is
+ * first used. Bodies are streamed into the active segment and the header is written last, so a page is never held
+ * whole on the heap and a crash mid append leaves no valid record. Appends to a directory are serialised, but reads
+ * do not wait for them. Pages are read back with {@link #read} - full segments through a memory mapping made once,
+ * the active segment through its channel. Deletes append a tombstone.
+ *
+ * Overwritten and deleted records are dead space. {@link #compact} copies the live records out of segments which are
+ * mostly dead and removes them - it is run in the background if a compaction interval is given.
+ */
+@Slf4j
+public class SegmentPageStore implements PageStore {
+
+    private static final int MAGIC = 0x44505331;
+    private static final int HEADER_BYTES = 17;
+    private static final int TOMBSTONE = 0x80;
+    private static final int CODEC_MASK = 0x0f;
+    private static final Pattern SEGMENT = Pattern.compile("seg-(\\d{6})\\.pack");
+
+    @Getter
+    private final long maxSegmentBytes;
+    @Getter
+    private final Codec codec;
+    /**
+     * Segments with less than this fraction of live bytes are compacted
+     */
+    @Getter
+    private final double compactBelow;
+    private final FilePageStore.Fsync fsync;
+    private final HashMap<Path, Pack> packs = new HashMap<>();
+    private ScheduledExecutorService compactor = null;
+
+    /**
+     * Constructor - 256MB segments, no compression, compact segments less than half live, no background compaction
+     */
+    public SegmentPageStore() {
+        this(256L << 20, Codecs.NONE, 0.5, 0L, FilePageStore.Fsync.NONE);
+    }
+
+    /**
+     * Constructor
+     * @param maxSegmentBytes segments roll when they reach this size (at most 1GB as they are memory mapped and a
+     *                        streamed page may take one past it)
+     * @param codec compression of bodies
+     * @param compactBelow segments with less than this fraction of live bytes are compacted
+     * @param compactIntervalMS if &gt; 0 compact every directory in use this often
+     * @param fsync policy - if not NONE every append is forced to disk
+     */
+    public SegmentPageStore(long maxSegmentBytes, Codec codec, double compactBelow, long compactIntervalMS, FilePageStore.Fsync fsync) {
+        if (maxSegmentBytes <= HEADER_BYTES || maxSegmentBytes > Integer.MAX_VALUE / 2)
+            throw new IllegalArgumentException("Bad segment size " + maxSegmentBytes);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.codec = codec;
+        this.compactBelow = compactBelow;
+        this.fsync = fsync;
+
+        if (compactIntervalMS > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "segment-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(this::compactAll, compactIntervalMS, compactIntervalMS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Append the page, streaming it from source
+     * @return segment:offset of the record
+     * @throws IOException on error or if the page (compressed) is bigger than a segment
+     */
+    @Override
+    public String put(String directory, String url, ReadableByteChannel source) throws IOException {
+        Pack pack = pack(directory);
+
+        synchronized (pack.appending) {
+            return pack.append(url, codec.id(), 0L, out -> {
+                try (OutputStream encoder = codec.encoder(out, url)) {
+                    Channels.newInputStream(source).transferTo(encoder);
+                }
+            }).toString();
+        }
+    }
+
+    /**
+     * Append a tombstone for the page
+     * @return segment:offset of the record deleted or null if there was none
+     */
+    @Override
+    public String delete(String directory, String url) throws IOException {
+        Pack pack = pack(directory);
+        Location old;
+
+        synchronized (pack.appending) {
+            synchronized (pack) {
+                old = pack.index.get(url);
+            }
+            if (null == old)
+                return null;
+            pack.append(url, TOMBSTONE, 0L, out -> {});
+            return old.toString();
+        }
+    }
+
+    /**
+     * Read a stored page
+     * @param directory of the store
+     * @param url of page
+     * @return the page's content (decompressed) or null if it is not stored
+     * @throws IOException on error or if the record is corrupt
+     */
+    public byte[] read(String directory, String url) throws IOException {
+        Pack pack = pack(directory);
+        Location loc;
+        ByteBuffer mapped;
+
+        synchronized (pack) {
+            loc = pack.index.get(url);
+            if (null == loc)
+                return null;
+            // The active segment is still growing - mapping it would mean a new mapping after every append
+            mapped = loc.segment == pack.active ? null : loc.segment.map().duplicate();
+        }
+        byte[] body = new byte[loc.bodyBytes];
+
+        if (null != mapped)
+            mapped.position((int) loc.bodyOffset()).get(body);
+        else {
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            while (buffer.hasRemaining()) {
+                if (loc.segment.channel.read(buffer, loc.bodyOffset() + buffer.position()) < 0)
+                    throw new IOException("Truncated record for %s at %s".formatted(url, loc));
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != loc.crc)
+            throw new IOException("Corrupt record for %s at %s".formatted(url, loc));
+        return Codecs.decode(Codecs.byId(loc.flags & CODEC_MASK, codec), body);
+    }
+
+    /**
+     * Urls stored in a directory
+     * @param directory of the store
+     * @return copy of the urls
+     * @throws IOException if the segments cannot be read
+     */
+    public Set<String> urls(String directory) throws IOException {
+        Pack pack = pack(directory);
+
+        synchronized (pack) {
+            return new HashSet<>(pack.index.keySet());
+        }
+    }
+
+    /**
+     * Copy the live records out of every full segment whose live fraction is below {@link #compactBelow}, then
+     * remove the segment. Records are copied one at a time between other appends and reads are not held up.
+     * @param directory of the store
+     * @return number of segments removed
+     * @throws IOException on error
+     */
+    public int compact(String directory) throws IOException {
+        Pack pack = pack(directory);
+        List<Segment> sparse;
+
+        synchronized (pack.compacting) {
+            synchronized (pack) {
+                sparse = pack.segments.stream()
+                    .filter(segment -> segment != pack.active && segment.live < compactBelow * segment.size)
+                    .toList();
+            }
+            for (Segment segment : sparse)
+                pack.compact(segment);
+        }
+        return sparse.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null != compactor)
+            compactor.shutdownNow();
+        synchronized (packs) {
+            for (Pack pack : packs.values()) {
+                synchronized (pack.appending) {
+                    synchronized (pack) {
+                        for (Segment segment : pack.segments)
+                            segment.channel.close();
+                    }
+                }
+            }
+            packs.clear();
+        }
+    }
+
+    private void compactAll() {
+        List<Path> dirs;
+        synchronized (packs) {
+            dirs = new ArrayList<>(packs.keySet());
+        }
+        for (Path dir : dirs) {
+            try {
+                int n = compact(dir.toString());
+                if (n > 0)
+                    log.info("Compacted {} segments in {}", n, dir);
+            }
+            catch (Exception e) {
+                log.error("Compacting {}: {}", dir, e.getMessage());
+            }
+        }
+    }
+
+    private Pack pack(String directory) throws IOException {
+        Path dir = Path.of(directory).toAbsolutePath().normalize();
+        synchronized (packs) {
+            Pack pack = packs.get(dir);
+            if (null == pack) {
+                pack = new Pack(dir);
+                packs.put(dir, pack);
+            }
+            return pack;
+        }
+    }
+
+    /**
+     * Where a live record is
+     */
+    private static class Location {
+        final Segment segment;
+        final long offset;
+        final int urlBytes, bodyBytes, flags, crc;
+
+        Location(Segment segment, long offset, int flags, int urlBytes, int bodyBytes, int crc) {
+            this.segment = segment;
+            this.offset = offset;
+            this.flags = flags;
+            this.urlBytes = urlBytes;
+            this.bodyBytes = bodyBytes;
+            this.crc = crc;
+        }
+
+        long length() { return HEADER_BYTES + urlBytes + bodyBytes; }
+
+        long bodyOffset() { return offset + HEADER_BYTES + urlBytes; }
+
+        @Override
+        public String toString() { return segment.path.getFileName() + ":" + offset; }
+    }
+
+    /**
+     * Writes a record's body
+     */
+    private interface BodyWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A record's body on its way into a segment - counted, checksummed and limited. Closing it does not close the
+     * segment.
+     */
+    private static class BodyOutputStream extends OutputStream {
+        final FileChannel channel;
+        final long limit;
+        final CRC32 crc = new CRC32();
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position, count = 0L;
+
+        BodyOutputStream(FileChannel channel, long position, long limit) {
+            this.channel = channel;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (count + len > limit)
+                throw new IOException("Record bigger than a segment");
+            crc.update(b, off, len);
+            count += len;
+            while (len > 0) {
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+                if (!buffer.hasRemaining())
+                    flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * A segment file, its size and how much of it is live
+     */
+    private static class Segment {
+        final int id;
+        final Path path;
+        FileChannel channel;
+        long size, live = 0L;
+        MappedByteBuffer mapped = null;
+
+        Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, CREATE, READ, WRITE);
+            this.size = channel.size();
+        }
+
+        /**
+         * Mapping of a segment which is no longer appended to
+         */
+        MappedByteBuffer map() throws IOException {
+            if (null == mapped)
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return mapped;
+        }
+    }
+
+    /**
+     * The segments and index of one directory. Callers synchronize on it to use the index and segment list, but not
+     * while writing to a segment. Appends (which may stream for as long as their source takes) are serialised on
+     * appending and compactions on compacting, both taken before the Pack.
+     */
+    private class Pack {
+        final Object appending = new Object(), compacting = new Object();
+        final Path dir;
+        final ArrayList<Segment> segments = new ArrayList<>();
+        final HashMap<String, Location> index = new HashMap<>();
+        Segment active;
+
+        Pack(Path dir) throws IOException {
+            this.dir = dir;
+            Files.createDirectories(dir);
+
+            TreeMap<Integer, Path> found = new TreeMap<>();
+            try (Stream<Path> files = Files.list(dir)) {
+                files.forEach(f -> {
+                    Matcher m = SEGMENT.matcher(f.getFileName().toString());
+                    if (m.matches())
+                        found.put(Integer.parseInt(m.group(1)), f);
+                });
+            }
+            for (var entry : found.entrySet()) {
+                Segment segment = new Segment(entry.getKey(), entry.getValue());
+                segments.add(segment);
+                scan(segment, entry.getKey().equals(found.lastKey()));
+            }
+            active = segments.isEmpty() ? roll() : segments.getLast();
+        }
+
+        /**
+         * Index a segment's records. A torn record at the end of the last segment (we crashed mid append) is cut off.
+         */
+        private void scan(Segment segment, boolean last) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            long pos = 0L;
+
+            while (pos < segment.size) {
+                header.clear();
+                segment.channel.read(header, pos);
+                header.flip();
+                int magic = header.remaining() == HEADER_BYTES ? header.getInt() : 0;
+                if (MAGIC != magic) {
+                    truncateOrIgnore(segment, pos, last);
+                    break;
+                }
+                int flags = header.get() & 0xff, urlBytes = header.getInt(), bodyBytes = header.getInt(), crc = header.getInt();
+                long length = (long) HEADER_BYTES + urlBytes + bodyBytes;
+
+                if (urlBytes < 0 || bodyBytes < 0 || pos + length > segment.size) {
+                    truncateOrIgnore(segment, pos, last);
+                    break;
+                }
+                ByteBuffer url = ByteBuffer.allocate(urlBytes);
+                segment.channel.read(url, pos + HEADER_BYTES);
+                index(new String(url.array(), StandardCharsets.UTF_8), new Location(segment, pos, flags, urlBytes, bodyBytes, crc));
+                pos += length;
+            }
+        }
+
+        private void truncateOrIgnore(Segment segment, long pos, boolean last) throws IOException {
+            if (last) {
+                log.warn("{} truncated at {} - incomplete record", segment.path, pos);
+                segment.channel.truncate(pos);
+                segment.size = pos;
+            }
+            else
+                log.error("{} corrupt at {} - rest of segment ignored", segment.path, pos);
+        }
+
+        /**
+         * Record loc as the latest record for url
+         */
+        private void index(String url, Location loc) {
+            Location old = (0 == (loc.flags & TOMBSTONE)) ? index.put(url, loc) : index.remove(url);
+
+            if (null != old)
+                old.segment.live -= old.length();
+            if (0 == (loc.flags & TOMBSTONE))
+                loc.segment.live += loc.length();
+        }
+
+        /**
+         * Append a record and index it. The body is written first and the header last, and on error the segment is cut
+         * back so nothing of the record remains. Callers hold appending.
+         * @param bodyBytes length of the body if known, else 0 (the segment is rolled if the record would not fit)
+         */
+        Location append(String url, int flags, long bodyBytes, BodyWriter body) throws IOException {
+            byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+            Segment segment;
+            long pos;
+
+            synchronized (this) {
+                if (active.size > 0 && active.size + HEADER_BYTES + urlBytes.length + bodyBytes > maxSegmentBytes)
+                    active = roll();
+                segment = active;
+                pos = segment.size;
+            }
+            BodyOutputStream out = new BodyOutputStream(
+                segment.channel, pos + HEADER_BYTES + urlBytes.length, maxSegmentBytes - HEADER_BYTES - urlBytes.length
+            );
+            try {
+                write(segment.channel, ByteBuffer.wrap(urlBytes), pos + HEADER_BYTES);
+                body.write(out);
+                out.flush();
+                write(segment.channel, ByteBuffer.allocate(HEADER_BYTES)
+                    .putInt(MAGIC).put((byte) flags).putInt(urlBytes.length).putInt((int) out.count).putInt((int) out.crc.getValue())
+                    .flip(), pos);
+                if (FilePageStore.Fsync.NONE != fsync)
+                    segment.channel.force(false);
+            }
+            catch (IOException e) {
+                segment.channel.truncate(pos);
+                throw e;
+            }
+            Location loc = new Location(segment, pos, flags, urlBytes.length, (int) out.count, (int) out.crc.getValue());
+            synchronized (this) {
+                segment.size = pos + loc.length();
+                index(url, loc);
+            }
+            return loc;
+        }
+
+        private void write(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+            while (buffer.hasRemaining())
+                pos += channel.write(buffer, pos);
+        }
+
+        private Segment roll() throws IOException {
+            int id = segments.isEmpty() ? 1 : segments.getLast().id + 1;
+            Segment segment = new Segment(id, dir.resolve("seg-%06d.pack".formatted(id)));
+            segments.add(segment);
+            if (FilePageStore.Fsync.DIRECTORY == fsync)
+                FilePageStore.forceDirectory(dir);
+            return segment;
+        }
+
+        /**
+         * Move a segment's live records (and any tombstones which may still hide a record in an older segment) to the
+         * active segment and delete it
+         */
+        void compact(Segment segment) throws IOException {
+            ArrayList<Map.Entry<String, Location>> live = new ArrayList<>();
+            boolean oldest;
+
+            synchronized (this) {
+                index.forEach((url, loc) -> { if (loc.segment == segment) live.add(Map.entry(url, loc)); });
+                oldest = segments.getFirst() == segment;
+            }
+            live.sort(Comparator.comparingLong(e -> e.getValue().offset));
+
+            for (var entry : live) {
+                Location loc = entry.getValue();
+                synchronized (appending) {
+                    synchronized (this) {
+                        if (index.get(entry.getKey()) != loc)    // Overwritten or deleted since
+                            continue;
+                    }
+                    append(entry.getKey(), loc.flags, loc.bodyBytes, out -> copy(segment, loc, out));
+                }
+            }
+            if (!oldest) {
+                for (String url : tombstones(segment)) {
+                    synchronized (appending) {
+                        boolean hidden;
+                        synchronized (this) {
+                            hidden = !index.containsKey(url);
+                        }
+                        if (hidden)
+                            append(url, TOMBSTONE, 0L, out -> {});
+                    }
+                }
+            }
+            synchronized (this) {
+                segments.remove(segment);
+                segment.channel.close();
+                segment.mapped = null;
+            }
+            Files.delete(segment.path);
+        }
+
+        private void copy(Segment segment, Location loc, OutputStream out) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+            for (long pos = loc.bodyOffset(), end = pos + loc.bodyBytes; pos < end; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - pos));
+                int n = segment.channel.read(buffer, pos);
+                if (n < 0)
+                    throw new IOException("Truncated record at " + loc);
+                out.write(buffer.array(), 0, n);
+                pos += n;
+            }
+        }
+
+        private List<String> tombstones(Segment segment) throws IOException {
+            ArrayList<String> urls = new ArrayList<>();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+            for (long pos = 0L; pos + HEADER_BYTES <= segment.size; ) {
+                header.clear();
+                segment.channel.read(header, pos);
+                header.flip();
+                header.getInt();
+                int flags = header.get() & 0xff, urlBytes = header.getInt(), bodyBytes = header.getInt();
+
+                if (0 != (flags & TOMBSTONE)) {
+                    ByteBuffer url = ByteBuffer.allocate(urlBytes);
+                    segment.channel.read(url, pos + HEADER_BYTES);
+                    urls.add(new String(url.array(), StandardCharsets.UTF_8));
+                }
+                pos += HEADER_BYTES + urlBytes + bodyBytes;
+            }
+            return urls;
+        }
+    }
+}
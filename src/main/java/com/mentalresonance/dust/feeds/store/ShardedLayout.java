@@ -0,0 +1,130 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.store;
+
+import okhttp3.HttpUrl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Pages are grouped by host and then fanned out over a tree of directories by a hash of the whole url, so no
+ * directory gets too big and different urls never share a file:
+ * <pre>
+ *     example.com/3f/a2/3fa2...9c-page.html
+ * </pre>
+ * The file name is the url's SHA-256 (128 bits of it, in hex) followed by a readable slug from the last path segment.
+ * Hosts with a non-default port get a directory host_port.
+ */
+public class ShardedLayout implements PageLayout {
+
+    private static final int MAX_SLUG = 40;
+    private static final HexFormat HEX = HexFormat.of();
+
+    /**
+     * Levels of hash directories under each host and hex digits per level
+     */
+    private final int levels, width;
+
+    /**
+     * Constructor - two levels of 256 directories, enough for tens of millions of pages per host
+     */
+    public ShardedLayout() {
+        this(2, 2);
+    }
+
+    /**
+     * Constructor
+     * @param levels directories between the host and the page (0 - 8)
+     * @param width hex digits in each directory name (1 - 4)
+     */
+    public ShardedLayout(int levels, int width) {
+        if (levels < 0 || width < 1 || width > 4 || levels * width > 32)
+            throw new IllegalArgumentException("Bad shard levels %d / width %d".formatted(levels, width));
+        this.levels = levels;
+        this.width = width;
+    }
+
+    @Override
+    public String path(String address) throws IOException {
+        HttpUrl url = HttpUrl.parse(address);
+
+        if (null == url)
+            throw new IOException("Bad url " + address);
+        String hash = HEX.formatHex(sha256(address), 0, 16);
+        StringBuilder path = new StringBuilder(host(url)).append('/');
+
+        for (int i = 0; i < levels; ++i)
+            path.append(hash, i * width, (i + 1) * width).append('/');
+        path.append(hash);
+
+        String slug = slug(url.encodedPath());
+        if (!slug.isEmpty())
+            path.append('-').append(slug);
+        return path.toString();
+    }
+
+    /**
+     * Names start with a hash of the url, so no other url's name is this one's plus a suffix
+     */
+    @Override
+    public boolean suffixesAreOwn() { return true; }
+
+    /**
+     * Directory name for the url's host - lower case, with the port if there is one
+     */
+    private static String host(HttpUrl url) {
+        String host = sanitize(url.host(), Integer.MAX_VALUE);
+        return HttpUrl.defaultPort(url.scheme()) == url.port() ? host : host + "_" + url.port();
+    }
+
+    /**
+     * Last segment of the path, restricted to characters safe in any file system
+     */
+    private static String slug(String path) {
+        int end = path.endsWith("/") ? path.length() - 1 : path.length();
+        return sanitize(path.substring(path.lastIndexOf('/', end - 1) + 1, Math.max(0, end)), MAX_SLUG);
+    }
+
+    private static String sanitize(String s, int max) {
+        StringBuilder out = new StringBuilder(Math.min(s.length(), max));
+
+        for (int i = 0; i < s.length() && out.length() < max; ++i) {
+            char c = s.charAt(i);
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                c == '.' || c == '-' || c == '_';
+            out.append(safe ? c : '_');
+        }
+        // No hidden files, and never . or ..
+        while (!out.isEmpty() && '.' == out.charAt(0))
+            out.setCharAt(0, '_');
+        return out.toString();
+    }
+
+    static byte[] sha256(String s) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // Every JVM has SHA-256
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.util;
+
+/**
+ * Cheap 64 bit fingerprints (FNV-1a) for change detection and dedup keys. Not cryptographic.
+ */
+public class Fingerprints {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Fingerprints() {}
+
+    /**
+     * Fingerprint of characters
+     * @param chars to fingerprint
+     * @return 64 bit fingerprint
+     */
+    public static long fnv1a64(CharSequence chars) {
+        long hash = FNV_OFFSET;
+        for (int i = 0, n = chars.length(); i < n; ++i) {
+            char c = chars.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Fingerprint of characters ignoring digits and whitespace, so pages differing only in dates, counters and
+     * layout get the same fingerprint
+     * @param chars to fingerprint
+     * @return 64 bit fingerprint
+     */
+    public static long skeleton(CharSequence chars) {
+        long hash = FNV_OFFSET;
+        for (int i = 0, n = chars.length(); i < n; ++i) {
+            char c = chars.charAt(i);
+            if (!Character.isDigit(c) && !Character.isWhitespace(c)) {
+                hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+                hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Fingerprint of bytes
+     * @param bytes to fingerprint
+     * @return 64 bit fingerprint
+     */
+    public static long fnv1a64(byte[] bytes) {
+        long hash = FNV_OFFSET;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.util;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Per-host FIFO queues served round-robin. An item is only handed out if its host has fewer than its maximum
+ * in flight, its minimum interval since the last hand out has elapsed, and the global in flight count is below the
+ * global maximum. Callers must {@link #release(String)} each item handed out when it completes.
+ *
+ * Not thread safe - it is meant to be owned by a single Actor.
+ *
+ * @param <T> type of queued item
+ */
+public class HostFairQueue<T> {
+
+    /**
+     * Global maximum in flight
+     */
+    @Getter
+    @Setter
+    private int maxInFlight;
+    /**
+     * Defaults for new hosts
+     */
+    private final long defaultIntervalMS;
+    private final int defaultMaxInFlightPerHost;
+
+    @Getter
+    private int inFlight = 0;
+    @Getter
+    private int size = 0;
+
+    /**
+     * Hosts in round-robin order. A host is moved to the back when it is served.
+     */
+    private final LinkedHashMap<String, Host<T>> hosts = new LinkedHashMap<>();
+
+    /**
+     * Constructor
+     * @param maxInFlight global maximum in flight
+     * @param defaultIntervalMS minimum time between hand outs to the same host
+     * @param defaultMaxInFlightPerHost maximum in flight to the same host
+     */
+    public HostFairQueue(int maxInFlight, long defaultIntervalMS, int defaultMaxInFlightPerHost) {
+        this.maxInFlight = maxInFlight;
+        this.defaultIntervalMS = defaultIntervalMS;
+        this.defaultMaxInFlightPerHost = defaultMaxInFlightPerHost;
+    }
+
+    /**
+     * Queue an item
+     * @param host the item is for
+     * @param item to queue
+     */
+    public void add(String host, T item) {
+        host(host).queue.add(new Entry<>(item, System.currentTimeMillis()));
+        ++size;
+    }
+
+    /**
+     * Next item which may go now, taking hosts in turn
+     * @param now current time ms
+     * @return Entry or null if nothing may go yet
+     */
+    public Entry<T> poll(long now) {
+        if (inFlight >= maxInFlight)
+            return null;
+
+        Iterator<Host<T>> it = hosts.values().iterator();
+        while (it.hasNext()) {
+            Host<T> h = it.next();
+            if (!h.queue.isEmpty() && h.isReady(now)) {
+                Entry<T> entry = h.queue.poll();
+                h.lastGrantTs = now;
+                ++h.inFlight;
+                ++inFlight;
+                --size;
+                // Back of the line
+                hosts.remove(h.name);
+                hosts.put(h.name, h);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the item which has been queued longest, whatever its host - e.g. to make room when a backlog is full
+     * @return Entry or null if nothing is queued
+     */
+    public Entry<T> removeOldest() {
+        Host<T> oldest = null;
+
+        for (Host<T> h : hosts.values()) {
+            if (!h.queue.isEmpty() && (null == oldest || h.queue.peek().queuedTs < oldest.queue.peek().queuedTs))
+                oldest = h;
+        }
+        if (null == oldest)
+            return null;
+
+        Entry<T> entry = oldest.queue.poll();
+        --size;
+        if (0 == oldest.inFlight && oldest.queue.isEmpty() && oldest.isForgettable(System.currentTimeMillis()))
+            hosts.remove(oldest.name);
+        return entry;
+    }
+
+    /**
+     * An item handed out for host has completed
+     * @param host of the item
+     */
+    public void release(String host) {
+        Host<T> h = hosts.get(host);
+        if (null != h && h.inFlight > 0) {
+            --h.inFlight;
+            --inFlight;
+            if (0 == h.inFlight && h.queue.isEmpty() && h.isForgettable(System.currentTimeMillis()))
+                hosts.remove(host);
+        }
+    }
+
+    /**
+     * How long until something might be ready, assuming nothing is released in the meantime
+     * @param now current time ms
+     * @return ms to wait or -1 if waiting will not help (empty, or blocked on in flight limits)
+     */
+    public long nextReadyIn(long now) {
+        if (inFlight >= maxInFlight)
+            return -1L;
+
+        long wait = -1L;
+        for (Host<T> h : hosts.values()) {
+            if (!h.queue.isEmpty() && h.inFlight < h.maxInFlight) {
+                long w = Math.max(0L, h.readyAt() - now);
+                if (wait < 0 || w < wait)
+                    wait = w;
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * The state of a host, creating it if necessary. Callers may change its interval and limits.
+     * @param host name
+     * @return Host
+     */
+    public Host<T> host(String host) {
+        return hosts.computeIfAbsent(host, k -> new Host<>(k, defaultIntervalMS, defaultMaxInFlightPerHost));
+    }
+
+    /**
+     * Forget idle hosts we have learned nothing about so the host table does not grow without bound
+     * @param now current time ms
+     */
+    public void prune(long now) {
+        prune(now, Long.MAX_VALUE);
+    }
+
+    /**
+     * Forget idle hosts we have learned nothing about, and hosts which have had nothing handed out for idleMS
+     * (and are not blocked) even if we have
+     * @param now current time ms
+     * @param idleMS forget any idle host not used for this long
+     */
+    public void prune(long now, long idleMS) {
+        hosts.values().removeIf(h ->
+            0 == h.inFlight && h.queue.isEmpty() &&
+            (h.isForgettable(now) || (now - h.lastGrantTs >= idleMS && now >= h.readyAt()))
+        );
+    }
+
+    /**
+     * Do we know about host
+     * @param host name
+     * @return true if host has state here
+     */
+    public boolean has(String host) {
+        return hosts.containsKey(host);
+    }
+
+    /**
+     * Number of hosts we know about
+     * @return count
+     */
+    public int numHosts() {
+        return hosts.size();
+    }
+
+    /**
+     * Queued item
+     * @param <T> type of item
+     */
+    @Getter
+    public static class Entry<T> {
+        private final T item;
+        /**
+         * When the item was queued
+         */
+        private final long queuedTs;
+
+        Entry(T item, long queuedTs) {
+            this.item = item;
+            this.queuedTs = queuedTs;
+        }
+    }
+
+    /**
+     * Per host queue and limits
+     * @param <T> type of item
+     */
+    @Getter
+    @Setter
+    public static class Host<T> {
+        private final String name;
+        private final ArrayDeque<Entry<T>> queue = new ArrayDeque<>();
+        private final long defaultIntervalMS;
+        private final int defaultMaxInFlight;
+        /**
+         * Minimum ms between hand outs
+         */
+        private long intervalMS;
+        /**
+         * Maximum in flight
+         */
+        private int maxInFlight;
+        /**
+         * Nothing is handed out before this time (e.g. server sent Retry-After)
+         */
+        private long blockedUntil = 0L;
+        private long lastGrantTs = 0L;
+        private int inFlight = 0;
+
+        Host(String name, long intervalMS, int maxInFlight) {
+            this.name = name;
+            this.intervalMS = this.defaultIntervalMS = intervalMS;
+            this.maxInFlight = this.defaultMaxInFlight = maxInFlight;
+        }
+
+        long readyAt() {
+            return Math.max(lastGrantTs + intervalMS, blockedUntil);
+        }
+
+        boolean isReady(long now) {
+            return inFlight < maxInFlight && now >= readyAt();
+        }
+
+        /**
+         * Nothing learned about this host and forgetting it cannot break its interval, so it may be dropped when idle
+         */
+        boolean isForgettable(long now) {
+            return intervalMS == defaultIntervalMS && maxInFlight == defaultMaxInFlight && now >= readyAt();
+        }
+    }
+}
@@ -0,0 +1,663 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.util;
+
+import com.mentalresonance.dust.http.service.HttpRequestResponseMsg;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.*;
+import okio.Okio;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Shared HTTP cache (RFC 9111) on local disk for GETs made by pipeline actors, so a page fetched by one pipeline is
+ * not fetched again by another while it is fresh. Use it round a request:
+ * <pre>
+ *     if (cache.serve(msg))            // fresh copy - msg.response is set
+ *         self.tell(msg, self);
+ *     else                             // msg.request may now be conditional
+ *         request(msg);
+ *     ...
+ *     msg.response = cache.update(msg.request, msg.response);   // when the response arrives
+ * </pre>
+ * Freshness comes from Cache-Control (s-maxage, max-age), Expires or, failing those, 10% of the time since
+ * Last-Modified (at most a day). Stale entries are revalidated with If-None-Match / If-Modified-Since and a 304
+ * is answered from the cache. As a shared cache it does not store private or no-store responses. Only one variant per
+ * url is kept - a request whose Vary headers differ is a miss.
+ *
+ * Each entry is one file (meta data then body) replaced atomically. The cache is bounded in bytes, evicting the least
+ * recently used entries. Responses from the cache carry {@link #CACHE_HEADER}.
+ */
+@Slf4j
+public class HttpResponseCache {
+
+    /**
+     * Added to responses served from the cache - {@link #HIT} or {@link #REVALIDATED}
+     */
+    public static final String CACHE_HEADER = "X-Dust-Cache";
+    public static final String HIT = "hit";
+    public static final String REVALIDATED = "revalidated";
+
+    private static final String MAGIC = "DUSTCACHE 1";
+    private static final long MAX_HEURISTIC_MS = 24L * 3600 * 1000;
+    private static final long CHUNK = 1L << 20;
+    private static final Set<String> NOT_UPDATED = Set.of("content-length", "content-encoding", "transfer-encoding", "connection");
+    private static final HexFormat HEX = HexFormat.of();
+    private static final ConcurrentHashMap<Path, HttpResponseCache> shared = new ConcurrentHashMap<>();
+
+    @Getter
+    private final Path dir;
+    @Getter
+    private final long maxBytes;
+    /**
+     * Key -> bytes on disk, least recently used first
+     */
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<>(1024, 0.75f, true);
+    private long totalBytes = 0L;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), revalidations = new AtomicLong(),
+        stores = new AtomicLong(), evictions = new AtomicLong();
+
+    /**
+     * The cache in a directory - everyone opening the same directory shares it
+     * @param dir directory of the cache
+     * @param maxBytes bound on the size of the cache (if this opens it)
+     * @return the cache
+     * @throws UncheckedIOException if the directory cannot be read
+     */
+    public static HttpResponseCache open(String dir, long maxBytes) {
+        return shared.computeIfAbsent(Path.of(dir).toAbsolutePath().normalize(), path -> {
+            try {
+                return new HttpResponseCache(path, maxBytes);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Constructor - prefer {@link #open} so the cache is shared
+     * @param dir directory of the cache
+     * @param maxBytes bound on the size of the cache
+     * @throws IOException if the directory cannot be read
+     */
+    public HttpResponseCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+
+        // Oldest first so the LRU order survives a restart (roughly). Temporary files are left from a crash.
+        try (Stream<Path> files = Files.walk(dir, 2)) {
+            files.filter(f -> {
+                    if (f.toString().endsWith(".tmp"))
+                        f.toFile().delete();
+                    return f.toString().endsWith(".cache");
+                })
+                .map(f -> f.toFile())
+                .sorted(Comparator.comparingLong(File::lastModified))
+                .forEach(f -> {
+                    String name = f.getName();
+                    lru.put(name.substring(0, name.length() - 6), f.length());
+                    totalBytes += f.length();
+                });
+        }
+        synchronized (this) {
+            evict(null);
+        }
+    }
+
+    /**
+     * If we have a fresh response to the request set msg.response to it. If we have a stale one make msg.request
+     * conditional so the server can tell us it has not changed.
+     * @param msg request
+     * @return true if msg.response was set
+     */
+    public boolean serve(HttpRequestResponseMsg msg) {
+        Request request = msg.request;
+        Map<String, String> requestCC = directives(request.headers().values("Cache-Control"));
+
+        if (!"GET".equals(request.method()) || requestCC.containsKey("no-store"))
+            return false;
+        try {
+            String key = key(request);
+            Entry entry = read(key, request);
+
+            if (null == entry)
+                return false;
+
+            long age = entry.age(System.currentTimeMillis());
+            boolean noCache = requestCC.containsKey("no-cache") || "no-cache".equals(request.header("Pragma")) ||
+                entry.cc.containsKey("no-cache");
+            long maxAge = seconds(requestCC.get("max-age"));
+
+            if (!noCache && age < entry.lifetime() && (maxAge < 0 || age < maxAge * 1000)) {
+                msg.response = entry.response(request, HIT, age);
+                touch(key);
+                hits.incrementAndGet();
+                return true;
+            }
+            if (null != entry.etag() || null != entry.lastModified()) {
+                Request.Builder conditional = request.newBuilder();
+                if (null != entry.etag())
+                    conditional.header("If-None-Match", entry.etag());
+                if (null != entry.lastModified())
+                    conditional.header("If-Modified-Since", entry.lastModified());
+                msg.request = conditional.build();
+            }
+        }
+        catch (IOException e) {
+            log.warn("Cache read for {} failed: {}", request.url(), e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * A response has arrived. Store it if we can, or if it is a 304 to our conditional request refresh our copy and
+     * answer with that.
+     * @param request as sent
+     * @param response from the server - it may be consumed
+     * @return the response to use in its place
+     * @throws IOException if the response body could not be read, or {@link OrphanedRevalidationException} if
+     * the response is a 304 to our conditional request but the entry has gone in the meantime
+     */
+    public Response update(Request request, Response response) throws IOException {
+        if (null == response || null != response.header(CACHE_HEADER) || !"GET".equals(request.method()))
+            return response;
+
+        String key = key(request);
+        if (304 == response.code()) {
+            Entry entry = read(key, request);
+            if (null != entry) {
+                response.close();
+                entry = refresh(key, entry, response);
+                revalidations.incrementAndGet();
+                return entry.response(request, REVALIDATED, entry.age(System.currentTimeMillis()));
+            }
+            if (isConditional(request)) {
+                response.close();
+                throw new OrphanedRevalidationException(request.url() + " was revalidated but is no longer cached");
+            }
+        }
+        misses.incrementAndGet();
+        if (!storable(request, response) || response.body().contentLength() > maxBytes)
+            return response;
+
+        Path file = store(key, request, response);
+        Entry entry = readHead(file);
+        long size = Files.size(file);
+
+        if (size > maxBytes) {  // Could never be kept - answer from the file then let it go
+            Response stored = entry.response(request, null, 0L);
+            Files.deleteIfExists(file);
+            return stored;
+        }
+        synchronized (this) {
+            Long old = lru.put(key, size);
+            totalBytes += size - (null == old ? 0L : old);
+            stores.incrementAndGet();
+            evict(key);
+        }
+        return entry.response(request, null, 0L);
+    }
+
+    /**
+     * Is this a conditional request a 304 to which only makes sense if we have the entry
+     * @param request made
+     * @return true if it carries validators
+     */
+    public static boolean isConditional(Request request) {
+        return null != request.header("If-None-Match") || null != request.header("If-Modified-Since");
+    }
+
+    /**
+     * Do we have an entry for the request
+     * @param request to look up
+     * @return true if there is an entry (fresh or not) matching the request
+     */
+    public boolean has(Request request) {
+        try {
+            return null != read(key(request), request);
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return responses served from the cache without asking the server
+     */
+    public long getHits() { return hits.get(); }
+    /**
+     * @return responses which had to come from the server
+     */
+    public long getMisses() { return misses.get(); }
+    /**
+     * @return stale responses the server told us were still good (304)
+     */
+    public long getRevalidations() { return revalidations.get(); }
+    /**
+     * @return responses stored
+     */
+    public long getStores() { return stores.get(); }
+    /**
+     * @return entries evicted to keep within maxBytes
+     */
+    public long getEvictions() { return evictions.get(); }
+    /**
+     * @return bytes on disk
+     */
+    public synchronized long getSize() { return totalBytes; }
+
+    @Override
+    public String toString() {
+        return "%s: %d hits, %d revalidated, %d misses, %d stored, %d evicted, %d bytes".formatted(
+            dir, getHits(), getRevalidations(), getMisses(), getStores(), getEvictions(), getSize()
+        );
+    }
+
+    private synchronized void touch(String key) {
+        lru.get(key);
+    }
+
+    /**
+     * Evict least recently used entries until we are within bounds
+     * @param keep nullable key which must not be evicted (it is about to be answered from)
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> eldest = lru.entrySet().iterator();
+
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> victim = eldest.next();
+            if (victim.getKey().equals(keep))
+                continue;
+            try {
+                Files.deleteIfExists(path(victim.getKey()));
+            }
+            catch (IOException e) {
+                log.warn("Cannot evict {}: {}", victim.getKey(), e.getMessage());
+            }
+            totalBytes -= victim.getValue();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * May a shared cache store the response (RFC 9111 section 3)
+     */
+    private static boolean storable(Request request, Response response) {
+        if (200 != response.code())
+            return false;
+        Map<String, String> cc = directives(response.headers().values("Cache-Control"));
+
+        if (cc.containsKey("no-store") || cc.containsKey("private") ||
+            directives(request.headers().values("Cache-Control")).containsKey("no-store"))
+            return false;
+        if (null != request.header("Authorization") &&
+            !(cc.containsKey("public") || cc.containsKey("s-maxage") || cc.containsKey("must-revalidate")))
+            return false;
+        if (response.headers().values("Vary").stream().anyMatch(v -> v.contains("*")))
+            return false;
+        // Pointless if it is never fresh and can never be revalidated
+        return null != response.header("ETag") || null != response.header("Last-Modified") ||
+            lifetime(cc, response.headers(), response.receivedResponseAtMillis()) > 0;
+    }
+
+    /**
+     * Write the response's head and body to the entry's file
+     */
+    private Path store(String key, Request request, Response response) throws IOException {
+        Path file = path(key);
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), ".", ".tmp");
+
+        try (ResponseBody body = response.body(); FileChannel out = FileChannel.open(tmp, WRITE, TRUNCATE_EXISTING)) {
+            StringBuilder head = new StringBuilder(MAGIC).append('\n');
+            head.append("url ").append(request.url()).append('\n');
+            head.append("status ").append(response.code()).append(' ').append(response.protocol()).append(' ')
+                .append(response.message()).append('\n');
+            head.append("sent ").append(response.sentRequestAtMillis()).append('\n');
+            head.append("received ").append(response.receivedResponseAtMillis()).append('\n');
+            for (String name : varyNames(response.headers())) {
+                String value = request.header(name);
+                head.append("vary ").append(name).append(':').append(null == value ? "" : value).append('\n');
+            }
+            appendHeaders(head, response.headers());
+            head.append('\n');
+
+            long pos = out.write(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1))), n;
+            while ((n = out.transferFrom(body.source(), pos, CHUNK)) > 0)
+                pos += n;
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        commit(tmp, file);
+        return file;
+    }
+
+    /**
+     * Merge the headers of a 304 into the entry (RFC 9111 section 4.3.4) and rewrite it
+     */
+    private Entry refresh(String key, Entry entry, Response notModified) throws IOException {
+        Headers.Builder headers = entry.headers.newBuilder();
+        Headers fresh = notModified.headers();
+
+        for (String name : new LinkedHashSet<>(namesOf(fresh))) {
+            if (!NOT_UPDATED.contains(name.toLowerCase())) {
+                headers.removeAll(name);
+                fresh.values(name).forEach(v -> headers.add(name, v));
+            }
+        }
+        Path file = path(key), tmp = Files.createTempFile(file.getParent(), ".", ".tmp");
+        try (FileChannel in = FileChannel.open(file, READ); FileChannel out = FileChannel.open(tmp, WRITE, TRUNCATE_EXISTING)) {
+            StringBuilder head = new StringBuilder(MAGIC).append('\n');
+            head.append("url ").append(entry.url).append('\n');
+            head.append("status ").append(entry.code).append(' ').append(entry.protocol).append(' ')
+                .append(entry.message).append('\n');
+            head.append("sent ").append(notModified.sentRequestAtMillis()).append('\n');
+            head.append("received ").append(notModified.receivedResponseAtMillis()).append('\n');
+            entry.vary.forEach((name, value) -> head.append("vary ").append(name).append(':').append(value).append('\n'));
+            appendHeaders(head, headers.build());
+            head.append('\n');
+
+            out.write(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)));
+            for (long pos = entry.bodyOffset, n; pos < in.size(); pos += n)
+                n = in.transferTo(pos, in.size() - pos, out);
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        commit(tmp, file);
+        touch(key);
+        return readHead(file);
+    }
+
+    private static void commit(Path tmp, Path file) throws IOException {
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The entry for a request, or null if there is none or it is for a different variant
+     */
+    private Entry read(String key, Request request) throws IOException {
+        Path file = path(key);
+        if (!Files.exists(file))
+            return null;
+        Entry entry;
+        try {
+            entry = readHead(file);
+        }
+        catch (NoSuchFileException e) {  // Evicted under us
+            return null;
+        }
+        for (Map.Entry<String, String> vary : entry.vary.entrySet()) {
+            String value = request.header(vary.getKey());
+            if (!Objects.equals(null == value ? "" : value, vary.getValue()))
+                return null;
+        }
+        return entry;
+    }
+
+    private static Entry readHead(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 8192)) {
+            Entry entry = new Entry(file);
+            Headers.Builder headers = new Headers.Builder();
+            long offset = 0L;
+            String line;
+
+            while (null != (line = readLine(in))) {
+                offset += line.length() + 1;
+                if (line.isEmpty())
+                    break;
+                int space = line.indexOf(' ');
+                String field = space > 0 ? line.substring(0, space) : line, value = line.substring(space + 1);
+
+                switch (field) {
+                    case "DUSTCACHE" -> {}
+                    case "url" -> entry.url = value;
+                    case "status" -> {
+                        String[] parts = value.split(" ", 3);
+                        entry.code = Integer.parseInt(parts[0]);
+                        entry.protocol = Protocol.get(parts[1]);
+                        entry.message = parts.length > 2 ? parts[2] : "";
+                    }
+                    case "sent" -> entry.sent = Long.parseLong(value);
+                    case "received" -> entry.received = Long.parseLong(value);
+                    case "vary" -> {
+                        int colon = value.indexOf(':');
+                        entry.vary.put(value.substring(0, colon), value.substring(colon + 1));
+                    }
+                    case "header" -> {
+                        int colon = value.indexOf(':');
+                        headers.add(value.substring(0, colon), value.substring(colon + 2));
+                    }
+                    default -> throw new IOException("Bad cache entry " + file);
+                }
+            }
+            entry.headers = headers.build();
+            entry.cc = directives(entry.headers.values("Cache-Control"));
+            entry.bodyOffset = offset;
+            return entry;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while (-1 != (c = in.read()) && '\n' != c)
+            line.append((char) c);
+        return -1 == c && line.isEmpty() ? null : line.toString();
+    }
+
+    private static void appendHeaders(StringBuilder head, Headers headers) {
+        for (int i = 0; i < headers.size(); ++i)
+            head.append("header ").append(headers.name(i)).append(": ").append(headers.value(i)).append('\n');
+    }
+
+    private static List<String> namesOf(Headers headers) {
+        ArrayList<String> names = new ArrayList<>(headers.size());
+        for (int i = 0; i < headers.size(); ++i)
+            names.add(headers.name(i));
+        return names;
+    }
+
+    private static List<String> varyNames(Headers headers) {
+        return headers.values("Vary").stream()
+            .flatMap(v -> Arrays.stream(v.split(",")))
+            .map(String::trim)
+            .filter(v -> !v.isEmpty() && !"accept-encoding".equalsIgnoreCase(v))   // okhttp decodes for us
+            .toList();
+    }
+
+    /**
+     * Parse Cache-Control values into directive -> argument ("" if none)
+     */
+    static Map<String, String> directives(List<String> values) {
+        HashMap<String, String> directives = new HashMap<>();
+
+        for (String value : values) {
+            for (String directive : value.split(",")) {
+                String d = directive.trim();
+                if (d.isEmpty())
+                    continue;
+                int eq = d.indexOf('=');
+                if (eq < 0)
+                    directives.put(d.toLowerCase(), "");
+                else
+                    directives.put(d.substring(0, eq).trim().toLowerCase(), d.substring(eq + 1).trim().replace("\"", ""));
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * Freshness lifetime in ms (RFC 9111 section 4.2.1, 4.2.2)
+     */
+    static long lifetime(Map<String, String> cc, Headers headers, long received) {
+        long seconds = seconds(cc.get("s-maxage"));
+        if (seconds < 0)
+            seconds = seconds(cc.get("max-age"));
+        if (seconds >= 0)
+            return seconds * 1000;
+
+        long date = date(headers.get("Date"), received);
+        if (null != headers.get("Expires"))
+            return Math.max(0L, date(headers.get("Expires"), 0L) - date);
+
+        long lastModified = date(headers.get("Last-Modified"), -1L);
+        return lastModified < 0 ? 0L : Math.min(MAX_HEURISTIC_MS, Math.max(0L, date - lastModified) / 10);
+    }
+
+    private static long seconds(String value) {
+        if (null == value)
+            return -1L;
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private static long date(String value, long otherwise) {
+        if (null == value)
+            return otherwise;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        }
+        catch (Exception e) {
+            return otherwise;
+        }
+    }
+
+    private Path path(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key + ".cache");
+    }
+
+    private static String key(Request request) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256")
+                .digest(request.url().toString().getBytes(StandardCharsets.UTF_8));
+            return HEX.formatHex(hash, 0, 20);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // Every JVM has SHA-256
+        }
+    }
+
+    /**
+     * A stored response
+     */
+    private static class Entry {
+        final Path file;
+        String url, message;
+        int code;
+        Protocol protocol;
+        long sent, received, bodyOffset;
+        Headers headers;
+        Map<String, String> cc;
+        final LinkedHashMap<String, String> vary = new LinkedHashMap<>();
+
+        Entry(Path file) {
+            this.file = file;
+        }
+
+        String etag() { return headers.get("ETag"); }
+
+        String lastModified() { return headers.get("Last-Modified"); }
+
+        long lifetime() { return HttpResponseCache.lifetime(cc, headers, received); }
+
+        /**
+         * Current age in ms (RFC 9111 section 4.2.3)
+         */
+        long age(long now) {
+            long apparent = Math.max(0L, received - date(headers.get("Date"), received));
+            long corrected = Math.max(0L, seconds(headers.get("Age"))) * 1000 + (received - sent);
+            return Math.max(apparent, corrected) + (now - received);
+        }
+
+        /**
+         * Response with the stored head and a body read from the file
+         */
+        Response response(Request request, String via, long age) throws IOException {
+            FileChannel channel = FileChannel.open(file, READ);
+            long length = channel.size() - bodyOffset;
+            channel.position(bodyOffset);
+
+            Headers.Builder h = headers.newBuilder();
+            if (null != via) {
+                h.set(CACHE_HEADER, via);
+                h.set("Age", Long.toString(age / 1000));
+            }
+            String type = headers.get("Content-Type");
+            return new Response.Builder()
+                .request(request)
+                .protocol(protocol)
+                .code(code)
+                .message(message)
+                .headers(h.build())
+                .body(ResponseBody.create(
+                    Okio.buffer(Okio.source(Channels.newInputStream(channel))),
+                    null == type ? null : MediaType.parse(type),
+                    length
+                ))
+                .sentRequestAtMillis(sent)
+                .receivedResponseAtMillis(received)
+                .build();
+        }
+    }
+
+    /**
+     * A 304 arrived for a conditional request made from an entry which has since been evicted - there is nothing to
+     * answer with. Make the request again without validators.
+     */
+    public static class OrphanedRevalidationException extends IOException {
+        /**
+         * Constructor
+         * @param message why
+         */
+        public OrphanedRevalidationException(String message) {
+            super(message);
+        }
+    }
+}
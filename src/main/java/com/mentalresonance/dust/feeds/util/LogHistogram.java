@@ -0,0 +1,179 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.util;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative longs (typically ms) with HdrHistogram style log-linear buckets - exact below 64 then
+ * 32 buckets per power of 2, so any recorded value is reported to within about 3%. Recording is a couple of shifts
+ * and an array increment and the bucket array only grows as far as the largest value recorded.
+ *
+ * Not thread safe - it is meant to be owned by a single Actor. Send copies elsewhere.
+ */
+public class LogHistogram implements Serializable {
+
+    private static final int LINEAR = 64;
+    private static final int SUB = 32;
+    private static final int SUB_BITS = 5;
+
+    private long[] counts = new long[LINEAR];
+    @Getter
+    private long count = 0L;
+    private long sum = 0L;
+    @Getter
+    private long min = Long.MAX_VALUE;
+    @Getter
+    private long max = 0L;
+
+    /**
+     * Constructor
+     */
+    public LogHistogram() {}
+
+    /**
+     * Record a value - negative values are recorded as 0
+     * @param value to record
+     */
+    public void record(long value) {
+        value = Math.max(0L, value);
+        int index = index(value);
+        if (index >= counts.length)
+            counts = Arrays.copyOf(counts, Math.max(index + 1, counts.length + SUB));
+        ++counts[index];
+        ++count;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Value below which the given fraction of recorded values fall
+     * @param fraction 0.0 - 1.0 e.g. 0.99 for the 99th percentile
+     * @return value or 0 if nothing recorded
+     */
+    public long percentile(double fraction) {
+        if (0 == count)
+            return 0L;
+        long rank = Math.max(1L, (long) Math.ceil(fraction * count));
+        long seen = 0L;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(max, Math.max(min, valueAt(i)));
+        }
+        return max;
+    }
+
+    /**
+     * Mean of recorded values
+     * @return mean or 0 if nothing recorded
+     */
+    public double getMean() {
+        return 0 == count ? 0.0 : (double) sum / count;
+    }
+
+    /**
+     * Add everything recorded in other to this
+     * @param other histogram
+     */
+    public void add(LogHistogram other) {
+        if (other.counts.length > counts.length)
+            counts = Arrays.copyOf(counts, other.counts.length);
+        for (int i = 0; i < other.counts.length; ++i)
+            counts[i] += other.counts[i];
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Independent copy
+     * @return copy
+     */
+    public LogHistogram copy() {
+        LogHistogram copy = new LogHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * Summary statistics
+     * @return Summary
+     */
+    public Summary summary() {
+        return new Summary(count, 0 == count ? 0L : min, getMean(), percentile(0.5), percentile(0.9), percentile(0.99), max);
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return LINEAR + (shift - 1) * SUB + (int) ((value >>> shift) - SUB);
+    }
+
+    /**
+     * Middle of the bucket at index
+     */
+    private static long valueAt(int index) {
+        if (index < LINEAR)
+            return index;
+        int shift = (index - LINEAR) / SUB + 1;
+        long lower = (long) ((index - LINEAR) % SUB + SUB) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+
+    /**
+     * Summary of a histogram (usable as a JMX composite value)
+     */
+    @Getter
+    public static class Summary implements Serializable {
+        private final long count, min;
+        private final double mean;
+        private final long p50, p90, p99, max;
+
+        /**
+         * Constructor
+         * @param count values recorded
+         * @param min smallest
+         * @param mean average
+         * @param p50 median
+         * @param p90 90th percentile
+         * @param p99 99th percentile
+         * @param max largest
+         */
+        public Summary(long count, long min, double mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.min = min;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return "n=%d min=%d mean=%.1f p50=%d p90=%d p99=%d max=%d".formatted(count, min, mean, p50, p90, p99, max);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.util;
+
+import lombok.Getter;
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides from its headers whether a response is worth reading, and reads the body with a hard byte cap. Closing a
+ * rejected response without reading it means we pay for the headers, not the download.
+ */
+@Getter
+public class ResponseGate implements Serializable {
+
+    /**
+     * charset= in a Content-Type, or in a meta tag (either form)
+     */
+    private static final Pattern CHARSET = Pattern.compile("charset\\s*=\\s*[\"']?\\s*([a-z0-9_:.\\-]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern META = Pattern.compile("<meta\\s[^>]*>", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Html pages up to 5MB
+     */
+    public static final ResponseGate HTML = new ResponseGate(List.of("text/html", "application/xhtml+xml"), 5L << 20);
+
+    /**
+     * Allowed media types e.g. text/html or text/* - a response with no Content-Type is allowed
+     */
+    private final List<String> allowedTypes;
+    /**
+     * Largest body we will read
+     */
+    private final long maxBytes;
+
+    /**
+     * Constructor
+     * @param allowedTypes media types to accept (type/subtype or type/*). If null or empty any type is accepted.
+     * @param maxBytes largest body to read
+     */
+    public ResponseGate(List<String> allowedTypes, long maxBytes) {
+        this.allowedTypes = allowedTypes;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Check the headers of a response
+     * @param response to check
+     * @return why the response should not be read, or null if it may be
+     */
+    public String rejects(Response response) {
+        ResponseBody body = response.body();
+        if (null == body)
+            return "no body";
+
+        MediaType mediaType = body.contentType();
+        if (null != mediaType && null != allowedTypes && !allowedTypes.isEmpty()) {
+            String type = mediaType.type().toLowerCase(Locale.ROOT);
+            String full = type + "/" + mediaType.subtype().toLowerCase(Locale.ROOT);
+            if (allowedTypes.stream().noneMatch(t -> t.equalsIgnoreCase(full) || t.equalsIgnoreCase(type + "/*")))
+                return "content type " + full;
+        }
+        long length = body.contentLength();  // -1 if unknown
+        if (length > maxBytes)
+            return "content length " + length;
+        return null;
+    }
+
+    /**
+     * Read the body, giving up as soon as it is longer than maxBytes. When the length is known the buffer is
+     * allocated once at exactly that size (and a body declared longer than maxBytes is not read at all), otherwise it
+     * starts small and doubles. Does not close the response.
+     * @param response to read
+     * @return body bytes
+     * @throws TooLargeException if the body is longer than maxBytes
+     * @throws IOException on read errors
+     */
+    public byte[] read(Response response) throws IOException {
+        ResponseBody body = response.body();
+        long length = body.contentLength();
+        int cap = (int) Math.max(1L, Math.min(maxBytes, Integer.MAX_VALUE - 8));
+
+        if (length > cap)
+            throw new TooLargeException(response.request().url() + " longer than " + maxBytes + " bytes");
+        byte[] buf = new byte[length >= 0 ? (int) length : (int) Math.min(cap, 16384L)];
+        int n = 0;
+
+        try (InputStream in = body.byteStream()) {
+            while (true) {
+                if (n == buf.length) {
+                    // Full - more only if the length was unknown, or wrong
+                    int next = in.read();
+                    if (next < 0)
+                        break;
+                    if (n >= cap)
+                        throw new TooLargeException(response.request().url() + " longer than " + maxBytes + " bytes");
+                    buf = Arrays.copyOf(buf, (int) Math.min(Math.max(1024L, (long) buf.length * 2), cap));
+                    buf[n++] = (byte) next;
+                }
+                int r = in.read(buf, n, buf.length - n);
+                if (r < 0)
+                    break;
+                n += r;
+            }
+        }
+        return n == buf.length ? buf : Arrays.copyOf(buf, n);
+    }
+
+    /**
+     * Charset from the Content-Type header, else UTF-8
+     * @param response the body came from
+     * @return Charset
+     */
+    public static Charset charset(Response response) {
+        MediaType mediaType = null != response.body() ? response.body().contentType() : null;
+        Charset charset = null;
+        try {
+            charset = null != mediaType ? mediaType.charset() : null;
+        } catch (Exception e) {
+            // Unknown charset name - fall through
+        }
+        return null != charset ? charset : StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Charset of an html body as a browser would decide it: byte order mark, then the Content-Type header, then a
+     * meta tag in the first 1024 bytes, else UTF-8
+     * @param response the body came from
+     * @param bytes of the body
+     * @return Charset
+     */
+    public static Charset charset(Response response, byte[] bytes) {
+        return sniff(bytes, response.header("Content-Type"));
+    }
+
+    /**
+     * Charset of an html body: byte order mark, then contentType, then a meta tag in the first 1024 bytes, else UTF-8
+     * @param bytes of the body
+     * @param contentType nullable Content-Type header
+     * @return Charset
+     */
+    public static Charset sniff(byte[] bytes, String contentType) {
+        if (bytes.length >= 3 && (bytes[0] & 0xff) == 0xef && (bytes[1] & 0xff) == 0xbb && (bytes[2] & 0xff) == 0xbf)
+            return StandardCharsets.UTF_8;
+        if (bytes.length >= 2 && (bytes[0] & 0xff) == 0xfe && (bytes[1] & 0xff) == 0xff)
+            return StandardCharsets.UTF_16BE;
+        if (bytes.length >= 2 && (bytes[0] & 0xff) == 0xff && (bytes[1] & 0xff) == 0xfe)
+            return StandardCharsets.UTF_16LE;
+
+        Charset charset = null != contentType ? named(CHARSET.matcher(contentType)) : null;
+        if (null != charset)
+            return charset;
+
+        // Meta tags are ASCII whatever the page's charset (short of UTF-16, which has a BOM)
+        Matcher meta = META.matcher(new String(bytes, 0, Math.min(bytes.length, 1024), StandardCharsets.ISO_8859_1));
+        while (meta.find()) {
+            charset = named(CHARSET.matcher(meta.group()));
+            if (null != charset)
+                // A page which says it is UTF-16 in ASCII is not
+                return charset.name().startsWith("UTF-16") ? StandardCharsets.UTF_8 : charset;
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private static Charset named(Matcher matcher) {
+        try {
+            return matcher.find() ? Charset.forName(matcher.group(1)) : null;
+        } catch (Exception e) {
+            return null; // Unknown charset name
+        }
+    }
+
+    /**
+     * Body was longer than allowed
+     */
+    public static class TooLargeException extends IOException {
+        /**
+         * Constructor
+         * @param message why
+         */
+        public TooLargeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.util;
+
+/**
+ * 64 bit SimHash of the visible text of an html page. Pages whose SimHashes differ in only a few bits are
+ * near-duplicates. Features are overlapping 3 word shingles, so page chrome shared by every page of a site
+ * counts for little against differences in the body.
+ */
+public class SimHash {
+
+    private static final int SHINGLE = 3;
+
+    private SimHash() {}
+
+    /**
+     * SimHash of the text of html - tags, comments, scripts and styles are skipped
+     * @param html page
+     * @return 64 bit SimHash, or null if the page has no text to hash (every such page would otherwise hash to 0 and
+     * be a near-duplicate of every other)
+     */
+    public static Long of(CharSequence html) {
+        int[] weights = new int[64];
+        long[] window = new long[SHINGLE];
+        int tokens = 0;
+        int i = 0, n = html.length();
+
+        while (i < n) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                i = skipTag(html, i, n);
+            }
+            else if (c == '&') {    // Entity - treat as a separator
+                int semi = i + 1;
+                while (semi < n && semi - i <= 10 && (Character.isLetterOrDigit(html.charAt(semi)) || html.charAt(semi) == '#'))
+                    ++semi;
+                i = (semi < n && html.charAt(semi) == ';') ? semi + 1 : i + 1;
+            }
+            else if (Character.isLetterOrDigit(c)) {
+                long h = 0xcbf29ce484222325L;
+                while (i < n && Character.isLetterOrDigit(c = html.charAt(i))) {
+                    h = (h ^ Character.toLowerCase(c)) * 0x100000001b3L;
+                    ++i;
+                }
+                window[tokens % SHINGLE] = h;
+                if (++tokens >= SHINGLE)
+                    add(weights, shingle(window, tokens));
+            }
+            else
+                ++i;
+        }
+        if (0 == tokens)
+            return null;
+        if (tokens < SHINGLE)   // Very short text - use what we have
+            add(weights, shingle(window, tokens));
+
+        long hash = 0L;
+        for (int b = 0; b < 64; ++b) {
+            if (weights[b] > 0)
+                hash |= 1L << b;
+        }
+        return hash;
+    }
+
+    /**
+     * Number of bits in which two SimHashes differ
+     * @param a SimHash
+     * @param b SimHash
+     * @return Hamming distance
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    private static long shingle(long[] window, int tokens) {
+        long h = 0L;
+        int count = Math.min(tokens, SHINGLE);
+        for (int k = tokens - count; k < tokens; ++k) {
+            h = h * 0x9E3779B97F4A7C15L + window[k % SHINGLE];
+        }
+        // murmur3 fmix64 so every bit depends on every token
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void add(int[] weights, long feature) {
+        for (int b = 0; b < 64; ++b) {
+            weights[b] += ((feature >>> b) & 1L) != 0 ? 1 : -1;
+        }
+    }
+
+    /**
+     * Skip the tag starting at i, and for script and style everything up to the matching end tag
+     * @return index after the tag
+     */
+    private static int skipTag(CharSequence html, int i, int n) {
+        if (startsWith(html, i, "<!--")) {
+            int end = indexOf(html, "-->", i + 4, n);
+            return end < 0 ? n : end + 3;
+        }
+        String closer = startsWith(html, i, "<script") ? "</script" : startsWith(html, i, "<style") ? "</style" : null;
+        int gt = i + 1;
+        while (gt < n && html.charAt(gt) != '>') ++gt;
+        if (null != closer) {
+            int end = indexOf(html, closer, gt, n);
+            if (end < 0)
+                return n;
+            gt = end + closer.length();
+            while (gt < n && html.charAt(gt) != '>') ++gt;
+        }
+        return gt + 1;
+    }
+
+    private static boolean startsWith(CharSequence s, int at, String prefix) {
+        if (at + prefix.length() > s.length()) return false;
+        for (int k = 0; k < prefix.length(); ++k) {
+            if (Character.toLowerCase(s.charAt(at + k)) != prefix.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence s, String target, int from, int n) {
+        for (int i = from; i + target.length() <= n; ++i) {
+            if (startsWith(s, i, target)) return i;
+        }
+        return -1;
+    }
+}
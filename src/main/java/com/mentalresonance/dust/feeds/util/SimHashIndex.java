@@ -0,0 +1,134 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In memory index of SimHashes for finding near-duplicates (banded LSH). The 64 bits are cut into maxDistance + 1
+ * bands, so two hashes within maxDistance bits of each other must agree exactly on at least one band, and only
+ * hashes sharing a band with the query are compared.
+ */
+public class SimHashIndex implements Serializable {
+
+    private final int maxDistance;
+    private final int[] bandShift;
+    private final long[] bandMask;
+    /**
+     * One table per band - maps band value -> items with that value
+     */
+    private final List<HashMap<Long, List<Item>>> bands;
+    private int size = 0;
+
+    /**
+     * Constructor
+     * @param maxDistance hashes this many bits or fewer apart are near-duplicates (0 - 63)
+     */
+    public SimHashIndex(int maxDistance) {
+        this.maxDistance = Math.max(0, Math.min(63, maxDistance));
+        int numBands = this.maxDistance + 1;
+        bandShift = new int[numBands];
+        bandMask = new long[numBands];
+        bands = new ArrayList<>(numBands);
+
+        int shift = 0;
+        for (int b = 0; b < numBands; ++b) {
+            int width = 64 / numBands + (b < 64 % numBands ? 1 : 0);
+            bandShift[b] = shift;
+            bandMask[b] = width == 64 ? -1L : (1L << width) - 1;
+            shift += width;
+            bands.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * Find a near-duplicate
+     * @param hash SimHash to look for
+     * @return key of an indexed hash within maxDistance of hash or null if there is none
+     */
+    public String near(long hash) {
+        for (int b = 0; b < bands.size(); ++b) {
+            List<Item> candidates = bands.get(b).get((hash >>> bandShift[b]) & bandMask[b]);
+            if (null != candidates) {
+                for (Item item : candidates) {
+                    if (SimHash.distance(item.hash, hash) <= maxDistance)
+                        return item.key;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find every near-duplicate - for checking the banding finds everything {@link #near} should
+     * @param hash SimHash to look for
+     * @return keys of the indexed hashes within maxDistance of hash, in the order they were found
+     */
+    List<String> allNear(long hash) {
+        Set<Item> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<String> keys = new ArrayList<>();
+
+        for (int b = 0; b < bands.size(); ++b) {
+            List<Item> candidates = bands.get(b).get((hash >>> bandShift[b]) & bandMask[b]);
+            if (null != candidates) {
+                for (Item item : candidates) {
+                    if (SimHash.distance(item.hash, hash) <= maxDistance && found.add(item))
+                        keys.add(item.key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Index a hash
+     * @param hash SimHash
+     * @param key returned by {@link #near(long)} for hashes near this one
+     */
+    public void add(long hash, String key) {
+        Item item = new Item(hash, key);
+        for (int b = 0; b < bands.size(); ++b) {
+            bands.get(b).computeIfAbsent((hash >>> bandShift[b]) & bandMask[b], k -> new ArrayList<>(1)).add(item);
+        }
+        ++size;
+    }
+
+    /**
+     * Number of hashes indexed
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    private static class Item implements Serializable {
+        final long hash;
+        final String key;
+
+        Item(long hash, String key) {
+            this.hash = hash;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.util;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Canonical form of a URL for use as a dedup key (RFC 3986 section 6 normalization plus some web heuristics):
+ * <ul>
+ *     <li>scheme and host are lower cased, path and query keep their case</li>
+ *     <li>default ports, user info and the fragment are removed</li>
+ *     <li>dot segments are resolved and an empty path becomes '/'</li>
+ *     <li>percent encodings of unreserved characters are decoded and all others upper cased</li>
+ *     <li>tracking and session id query (and ;path) parameters are removed and the rest optionally sorted</li>
+ *     <li>optionally http is folded to https, a leading www. dropped and a trailing '/' ignored</li>
+ * </ul>
+ * The canonical form is built in a single char buffer per call, and {@link #fingerprint(CharSequence)} hashes that
+ * buffer directly without making a String. Immutable and thread safe - customise with {@link #builder()} or
+ * {@link #toBuilder()}.
+ */
+@Getter
+public class UrlCanonicalizer implements Serializable {
+
+    /**
+     * Query parameters with these names (case insensitive) are removed
+     */
+    private final List<String> stripParams;
+    /**
+     * Query parameters whose names start with these (case insensitive) are removed
+     */
+    private final List<String> stripParamPrefixes;
+    /**
+     * Sort the remaining query parameters
+     */
+    private final boolean sortParams;
+    /**
+     * Treat http and https as the same
+     */
+    private final boolean foldHttps;
+    /**
+     * Treat www.host and host as the same
+     */
+    private final boolean stripWww;
+    /**
+     * Treat /path and /path/ as the same
+     */
+    private final boolean ignoreTrailingSlash;
+
+    /**
+     * Shared instance with the default settings
+     */
+    public static final UrlCanonicalizer DEFAULT = new UrlCanonicalizer();
+
+    /**
+     * Constructor - default settings
+     */
+    public UrlCanonicalizer() {
+        this(new Builder());
+    }
+
+    private UrlCanonicalizer(Builder builder) {
+        this.stripParams = builder.stripParams;
+        this.stripParamPrefixes = builder.stripParamPrefixes;
+        this.sortParams = builder.sortParams;
+        this.foldHttps = builder.foldHttps;
+        this.stripWww = builder.stripWww;
+        this.ignoreTrailingSlash = builder.ignoreTrailingSlash;
+    }
+
+    /**
+     * Settings used by the site crawler - http/https, www. and trailing '/' variants of a page are the same page.
+     * @return UrlCanonicalizer
+     */
+    public static UrlCanonicalizer crawler() {
+        return builder().foldHttps(true).stripWww(true).ignoreTrailingSlash(true).build();
+    }
+
+    /**
+     * Start from the default settings
+     * @return Builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Start from these settings - e.g. {@code DEFAULT.toBuilder().stripParams(more).build()}
+     * @return Builder
+     */
+    public Builder toBuilder() {
+        return new Builder()
+            .stripParams(stripParams)
+            .stripParamPrefixes(stripParamPrefixes)
+            .sortParams(sortParams)
+            .foldHttps(foldHttps)
+            .stripWww(stripWww)
+            .ignoreTrailingSlash(ignoreTrailingSlash);
+    }
+
+    /**
+     * Settings for a new UrlCanonicalizer - see its fields for what they mean. Instances are immutable so they can be
+     * shared, and this is how to customise one.
+     */
+    public static class Builder {
+        private List<String> stripParams = List.of(
+            "gclid", "dclid", "fbclid", "msclkid", "yclid", "mc_cid", "mc_eid", "_ga", "_gl",
+            "jsessionid", "phpsessid", "aspsessionid", "sessionid", "sid"
+        );
+        private List<String> stripParamPrefixes = List.of("utm_");
+        private boolean sortParams = true;
+        private boolean foldHttps = false;
+        private boolean stripWww = false;
+        private boolean ignoreTrailingSlash = false;
+
+        private Builder() {}
+
+        /**
+         * @param names query parameters to remove
+         * @return this
+         */
+        public Builder stripParams(List<String> names) {
+            stripParams = List.copyOf(names);
+            return this;
+        }
+
+        /**
+         * @param prefixes of query parameters to remove
+         * @return this
+         */
+        public Builder stripParamPrefixes(List<String> prefixes) {
+            stripParamPrefixes = List.copyOf(prefixes);
+            return this;
+        }
+
+        /**
+         * @param sortParams sort the remaining query parameters
+         * @return this
+         */
+        public Builder sortParams(boolean sortParams) {
+            this.sortParams = sortParams;
+            return this;
+        }
+
+        /**
+         * @param foldHttps treat http and https as the same
+         * @return this
+         */
+        public Builder foldHttps(boolean foldHttps) {
+            this.foldHttps = foldHttps;
+            return this;
+        }
+
+        /**
+         * @param stripWww treat www.host and host as the same
+         * @return this
+         */
+        public Builder stripWww(boolean stripWww) {
+            this.stripWww = stripWww;
+            return this;
+        }
+
+        /**
+         * @param ignoreTrailingSlash treat /path and /path/ as the same
+         * @return this
+         */
+        public Builder ignoreTrailingSlash(boolean ignoreTrailingSlash) {
+            this.ignoreTrailingSlash = ignoreTrailingSlash;
+            return this;
+        }
+
+        /**
+         * @return UrlCanonicalizer with these settings
+         */
+        public UrlCanonicalizer build() {
+            return new UrlCanonicalizer(this);
+        }
+    }
+
+    /**
+     * Canonical form of url. Strings which do not look like absolute hierarchical urls are returned trimmed but
+     * otherwise unchanged.
+     * @param url to canonicalize
+     * @return canonical url
+     */
+    public String canonicalize(CharSequence url) {
+        char[] buf = new char[url.length() + 8];
+        int n = canonicalize(url, buf);
+        return new String(buf, 0, n);
+    }
+
+    /**
+     * 64 bit fingerprint of the canonical form of url
+     * @param url to fingerprint
+     * @return fingerprint
+     */
+    public long fingerprint(CharSequence url) {
+        char[] buf = new char[url.length() + 8];
+        int n = canonicalize(url, buf);
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < n; ++i) {
+            hash = (hash ^ buf[i]) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Write canonical form of url into buf, which must be at least url.length() + 8 long (canonicalization only
+     * shrinks a url apart from an added '/' path and an 's' in https)
+     * @return number of chars written
+     */
+    private int canonicalize(CharSequence s, char[] buf) {
+        int start = 0, end = s.length();
+        while (start < end && s.charAt(start) <= ' ') ++start;
+        while (end > start && s.charAt(end - 1) <= ' ') --end;
+
+        // Scheme
+        int colon = -1;
+        for (int i = start; i < end; ++i) {
+            char c = s.charAt(i);
+            if (c == ':') { colon = i; break; }
+            if (!(Character.isLetterOrDigit(c) || c == '+' || c == '-' || c == '.')) break;
+        }
+        if (colon <= start || colon + 2 >= end || s.charAt(colon + 1) != '/' || s.charAt(colon + 2) != '/')
+            return copy(s, start, end, buf);
+
+        int n = 0;
+        boolean http = regionEqualsIgnoreCase(s, start, colon, "http");
+        boolean https = regionEqualsIgnoreCase(s, start, colon, "https");
+        if (foldHttps && http)
+            n = put(buf, n, "https");
+        else
+            for (int i = start; i < colon; ++i) buf[n++] = Character.toLowerCase(s.charAt(i));
+        n = put(buf, n, "://");
+
+        // Authority
+        int authStart = colon + 3, authEnd = authStart;
+        while (authEnd < end && "/?#".indexOf(s.charAt(authEnd)) < 0) ++authEnd;
+        int hostStart = authStart;
+        for (int i = authEnd - 1; i >= authStart; --i) {
+            if (s.charAt(i) == '@') { hostStart = i + 1; break; }
+        }
+        int hostEnd = authEnd, portStart = -1;
+        for (int i = authEnd - 1; i >= hostStart; --i) {
+            char c = s.charAt(i);
+            if (c == ':') { hostEnd = i; portStart = i + 1; break; }
+            if (c == ']' || !Character.isDigit(c)) break;
+        }
+        while (hostEnd > hostStart && s.charAt(hostEnd - 1) == '.') --hostEnd;
+        if (stripWww && hostEnd - hostStart > 4 && regionEqualsIgnoreCase(s, hostStart, hostStart + 4, "www."))
+            hostStart += 4;
+        for (int i = hostStart; i < hostEnd; ++i) buf[n++] = Character.toLowerCase(s.charAt(i));
+        if (portStart > 0 && portStart < authEnd) {
+            int p = portStart;
+            while (p < authEnd - 1 && s.charAt(p) == '0') ++p;
+            boolean defaultPort = (http && regionEquals(s, p, authEnd, "80")) || (https && regionEquals(s, p, authEnd, "443"));
+            if (!defaultPort) {
+                buf[n++] = ':';
+                for (int i = p; i < authEnd; ++i) buf[n++] = s.charAt(i);
+            }
+        }
+
+        // Path
+        int pathEnd = authEnd;
+        while (pathEnd < end && s.charAt(pathEnd) != '?' && s.charAt(pathEnd) != '#') ++pathEnd;
+        int pathOut = n;
+        n = writePath(s, authEnd, pathEnd, buf, n);
+        if (n == pathOut)
+            buf[n++] = '/';
+        if (ignoreTrailingSlash && n - pathOut > 1 && buf[n - 1] == '/')
+            --n;
+
+        // Query
+        if (pathEnd < end && s.charAt(pathEnd) == '?') {
+            int queryEnd = pathEnd + 1;
+            while (queryEnd < end && s.charAt(queryEnd) != '#') ++queryEnd;
+            n = writeQuery(s, pathEnd + 1, queryEnd, buf, n);
+        }
+        return n;
+    }
+
+    /**
+     * Write path resolving dot segments (RFC 3986 5.2.4) and dropping stripped ;params
+     */
+    private int writePath(CharSequence s, int from, int to, char[] buf, int n) {
+        int base = n;
+        int i = from;
+        while (i < to) {
+            // s[i] is '/' (or the first char of a path missing its '/')
+            if (s.charAt(i) == '/') ++i;
+            int segEnd = i;
+            while (segEnd < to && s.charAt(segEnd) != '/') ++segEnd;
+            int segContentEnd = segEnd;
+            // ;name=value path parameters e.g. ;jsessionid=...
+            for (int j = i; j < segEnd; ++j) {
+                if (s.charAt(j) == ';') {
+                    int nameEnd = j + 1;
+                    while (nameEnd < segEnd && s.charAt(nameEnd) != '=') ++nameEnd;
+                    if (isStripped(s, j + 1, nameEnd)) {
+                        segContentEnd = j;
+                        break;
+                    }
+                }
+            }
+            boolean last = segEnd >= to;
+            if (regionEquals(s, i, segContentEnd, ".")) {
+                if (last) buf[n++] = '/';
+            }
+            else if (regionEquals(s, i, segContentEnd, "..")) {
+                while (n > base && buf[n - 1] != '/') --n;   // drop the previous segment and its '/'
+                if (n > base) --n;
+                if (last) buf[n++] = '/';
+            }
+            else {
+                buf[n++] = '/';
+                n = writeEncoded(s, i, segContentEnd, buf, n);
+            }
+            i = segEnd;
+        }
+        return n;
+    }
+
+    /**
+     * Write query without stripped parameters, sorted if required. Sorting is done on (start, end) ranges of the
+     * input so no strings are made.
+     */
+    private int writeQuery(CharSequence s, int from, int to, char[] buf, int n) {
+        int[] ranges = new int[16];
+        int count = 0;
+        int i = from;
+        while (i <= to) {
+            int e = i;
+            while (e < to && s.charAt(e) != '&') ++e;
+            if (e > i) {
+                int nameEnd = i;
+                while (nameEnd < e && s.charAt(nameEnd) != '=') ++nameEnd;
+                if (!isStripped(s, i, nameEnd)) {
+                    if (2 * count + 2 > ranges.length) {
+                        int[] bigger = new int[ranges.length * 2];
+                        System.arraycopy(ranges, 0, bigger, 0, ranges.length);
+                        ranges = bigger;
+                    }
+                    ranges[2 * count] = i;
+                    ranges[2 * count + 1] = e;
+                    ++count;
+                }
+            }
+            i = e + 1;
+        }
+        if (sortParams) {
+            // Insertion sort - stable and queries are short
+            for (int a = 1; a < count; ++a) {
+                int ks = ranges[2 * a], ke = ranges[2 * a + 1];
+                int b = a - 1;
+                while (b >= 0 && compare(s, ranges[2 * b], ranges[2 * b + 1], ks, ke) > 0) {
+                    ranges[2 * b + 2] = ranges[2 * b];
+                    ranges[2 * b + 3] = ranges[2 * b + 1];
+                    --b;
+                }
+                ranges[2 * b + 2] = ks;
+                ranges[2 * b + 3] = ke;
+            }
+        }
+        for (int k = 0; k < count; ++k) {
+            buf[n++] = (0 == k) ? '?' : '&';
+            n = writeEncoded(s, ranges[2 * k], ranges[2 * k + 1], buf, n);
+        }
+        return n;
+    }
+
+    /**
+     * Copy normalizing percent encodings - unreserved characters are decoded, other escapes upper cased
+     */
+    private static int writeEncoded(CharSequence s, int from, int to, char[] buf, int n) {
+        for (int i = from; i < to; ++i) {
+            char c = s.charAt(i);
+            if (c == '%' && i + 2 < to && isHex(s.charAt(i + 1)) && isHex(s.charAt(i + 2))) {
+                int v = Character.digit(s.charAt(i + 1), 16) * 16 + Character.digit(s.charAt(i + 2), 16);
+                if (isUnreserved((char) v))
+                    buf[n++] = (char) v;
+                else {
+                    buf[n++] = '%';
+                    buf[n++] = Character.toUpperCase(s.charAt(i + 1));
+                    buf[n++] = Character.toUpperCase(s.charAt(i + 2));
+                }
+                i += 2;
+            }
+            else
+                buf[n++] = c;
+        }
+        return n;
+    }
+
+    private boolean isStripped(CharSequence s, int from, int to) {
+        for (String name : stripParams) {
+            if (regionEqualsIgnoreCase(s, from, to, name))
+                return true;
+        }
+        for (String prefix : stripParamPrefixes) {
+            if (to - from >= prefix.length() && regionEqualsIgnoreCase(s, from, from + prefix.length(), prefix))
+                return true;
+        }
+        return false;
+    }
+
+    private static int compare(CharSequence s, int as, int ae, int bs, int be) {
+        int la = ae - as, lb = be - bs;
+        for (int k = 0; k < Math.min(la, lb); ++k) {
+            int c = s.charAt(as + k) - s.charAt(bs + k);
+            if (0 != c) return c;
+        }
+        return la - lb;
+    }
+
+    private static boolean regionEquals(CharSequence s, int from, int to, String other) {
+        if (to - from != other.length()) return false;
+        for (int k = 0; k < other.length(); ++k) {
+            if (s.charAt(from + k) != other.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    private static boolean regionEqualsIgnoreCase(CharSequence s, int from, int to, String other) {
+        if (to - from != other.length()) return false;
+        for (int k = 0; k < other.length(); ++k) {
+            if (Character.toLowerCase(s.charAt(from + k)) != Character.toLowerCase(other.charAt(k))) return false;
+        }
+        return true;
+    }
+
+    private static int copy(CharSequence s, int from, int to, char[] buf) {
+        for (int i = from; i < to; ++i) buf[i - from] = s.charAt(i);
+        return to - from;
+    }
+
+    private static int put(char[] buf, int n, String str) {
+        for (int k = 0; k < str.length(); ++k) buf[n++] = str.charAt(k);
+        return n;
+    }
+
+    private static boolean isHex(char c) {
+        return Character.digit(c, 16) >= 0 && c < 128;
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+}
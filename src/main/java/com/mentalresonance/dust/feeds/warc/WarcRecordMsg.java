@@ -0,0 +1,116 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.warc;
+
+import lombok.Getter;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.Serializable;
+
+/**
+ * Fetcher -> {@link WarcWriterActor}. An http request and its response, with the body bytes the fetcher has
+ * already read - so we keep no second copy, and the body is bounded by the fetcher's byte cap
+ * ({@link com.mentalresonance.dust.feeds.util.ResponseGate}). The writer streams the record to disk but the body
+ * itself is on the heap until it has been written.
+ *
+ * The body is the entity as OkHttp handed it to us, not the bytes on the wire: chunking is undone and, if OkHttp
+ * asked for gzip itself, the body is decompressed and Content-Encoding removed. Recording the wire bytes would need
+ * a network interceptor on the (shared) http client, which this library does not own.
+ */
+@Getter
+public class WarcRecordMsg implements Serializable {
+    /**
+     * Url fetched
+     */
+    private final String url;
+    /**
+     * When the response was received (ms since epoch)
+     */
+    private final long fetchedTs;
+    /**
+     * Request line and headers, CRLF terminated with a blank line
+     */
+    private final String requestHead;
+    /**
+     * Status line and headers, CRLF terminated with a blank line
+     */
+    private final String responseHead;
+    /**
+     * Response body
+     */
+    private final byte[] body;
+
+    /**
+     * Constructor
+     * @param url fetched
+     * @param fetchedTs when
+     * @param requestHead request line and headers
+     * @param responseHead status line and headers
+     * @param body response body
+     */
+    public WarcRecordMsg(String url, long fetchedTs, String requestHead, String responseHead, byte[] body) {
+        this.url = url;
+        this.fetchedTs = fetchedTs;
+        this.requestHead = requestHead;
+        this.responseHead = responseHead;
+        this.body = body;
+    }
+
+    /**
+     * Build from a response whose body has been read. Transfer-Encoding and Content-Length are rewritten to
+     * describe the body we have (OkHttp has already de-chunked and, if it asked for gzip, decompressed it).
+     * @param response the body came from - headers only are used
+     * @param body bytes read from response
+     * @return WarcRecordMsg
+     */
+    public static WarcRecordMsg of(Response response, byte[] body) {
+        Request request = response.request();
+        HttpUrl url = request.url();
+        StringBuilder req = new StringBuilder(256);
+
+        req.append(request.method()).append(' ').append(url.encodedPath());
+        if (null != url.encodedQuery())
+            req.append('?').append(url.encodedQuery());
+        req.append(" HTTP/1.1\r\n");
+        if (null == request.header("Host"))
+            req.append("Host: ").append(url.host()).append("\r\n");
+        appendHeaders(req, request.headers(), false);
+        req.append("\r\n");
+
+        StringBuilder resp = new StringBuilder(512);
+        resp.append(Protocol.HTTP_1_0 == response.protocol() ? "HTTP/1.0 " : "HTTP/1.1 ")
+            .append(response.code()).append(' ').append(null != response.message() ? response.message() : "").append("\r\n");
+        appendHeaders(resp, response.headers(), true);
+        resp.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+
+        return new WarcRecordMsg(url.toString(), response.receivedResponseAtMillis(), req.toString(), resp.toString(), body);
+    }
+
+    private static void appendHeaders(StringBuilder sb, Headers headers, boolean response) {
+        for (int i = 0; i < headers.size(); ++i) {
+            String name = headers.name(i);
+            if (response && (name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Content-Length")))
+                continue;
+            sb.append(name).append(": ").append(headers.value(i)).append("\r\n");
+        }
+    }
+}
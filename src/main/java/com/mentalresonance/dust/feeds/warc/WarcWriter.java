@@ -0,0 +1,212 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.warc;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes WARC 1.1 request/response record pairs into rolling segment files. Each record is its own gzip member
+ * (so readers can seek to any record) and is streamed through a FileChannel. A segment is written as
+ * name.warc.gz.open and renamed to name.warc.gz when it is full or the writer is closed, so only complete
+ * segments carry the .warc.gz name.
+ *
+ * Not thread safe - it is meant to be owned by a single Actor.
+ */
+@Slf4j
+public class WarcWriter implements Closeable {
+
+    private static final DateTimeFormatter WARC_DATE = DateTimeFormatter.ISO_INSTANT;
+    private static final DateTimeFormatter SEGMENT_DATE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final Path dir;
+    private final String prefix;
+    private final long maxSegmentBytes;
+
+    private FileChannel channel = null;
+    private Path current = null;
+    private int segmentNo = 0;
+    @Getter
+    private long numRecords = 0L;
+
+    /**
+     * Constructor
+     * @param dir segments are written here (created if necessary)
+     * @param prefix of segment names
+     * @param maxSegmentBytes a new segment is started once the current one is this big
+     * @throws IOException if dir cannot be created
+     */
+    public WarcWriter(Path dir, String prefix, long maxSegmentBytes) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.prefix = prefix;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Append a request record and a response record for an exchange
+     * @param msg the exchange
+     * @throws IOException on write errors
+     */
+    public void write(WarcRecordMsg msg) throws IOException {
+        if (null == channel)
+            open();
+
+        String date = WARC_DATE.format(Instant.ofEpochMilli(msg.getFetchedTs()));
+        String requestId = recordId(), responseId = recordId();
+        byte[] requestHead = msg.getRequestHead().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] responseHead = msg.getResponseHead().getBytes(StandardCharsets.ISO_8859_1);
+
+        writeRecord("response", responseId, date, msg.getUrl(), "application/http;msgtype=response", responseHead, msg.getBody(),
+            "WARC-Payload-Digest: " + sha1(msg.getBody()) + "\r\n");
+        writeRecord("request", requestId, date, msg.getUrl(), "application/http;msgtype=request", requestHead, null,
+            "WARC-Concurrent-To: " + responseId + "\r\n");
+        numRecords += 2;
+
+        if (channel.size() >= maxSegmentBytes)
+            close(); // Next write starts a new segment
+    }
+
+    /**
+     * Finish the current segment
+     * @throws IOException on errors
+     */
+    @Override
+    public void close() throws IOException {
+        if (null != channel) {
+            channel.force(true);
+            channel.close();
+            channel = null;
+            Files.move(current, dir.resolve(current.getFileName().toString().replaceFirst("\\.open$", "")), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void open() throws IOException {
+        String name = "%s-%s-%05d.warc.gz".formatted(prefix, SEGMENT_DATE.format(Instant.now()), segmentNo++);
+        current = dir.resolve(name + ".open");
+        channel = FileChannel.open(current, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        byte[] info = ("software: dust-feeds\r\nformat: WARC File Format 1.1\r\n").getBytes(StandardCharsets.UTF_8);
+        writeRecord("warcinfo", recordId(), WARC_DATE.format(Instant.ofEpochMilli(System.currentTimeMillis())), null, "application/warc-fields", info, null,
+            "WARC-Filename: " + name + "\r\n");
+        log.info("Writing WARC segment {}", name);
+    }
+
+    /**
+     * Write one record as its own gzip member. The block is head followed by body (if any).
+     */
+    private void writeRecord(String type, String id, String date, String uri, String contentType,
+                             byte[] head, byte[] body, String extra) throws IOException {
+        long length = head.length + (null != body ? body.length : 0);
+        StringBuilder sb = new StringBuilder(512)
+            .append("WARC/1.1\r\n")
+            .append("WARC-Type: ").append(type).append("\r\n")
+            .append("WARC-Record-ID: ").append(id).append("\r\n")
+            .append("WARC-Date: ").append(date).append("\r\n");
+        if (null != uri)
+            sb.append("WARC-Target-URI: ").append(uri).append("\r\n");
+        sb.append(extra)
+            .append("WARC-Block-Digest: ").append(sha1(head, body)).append("\r\n")
+            .append("Content-Type: ").append(contentType).append("\r\n")
+            .append("Content-Length: ").append(length).append("\r\n\r\n");
+
+        try (GZIPOutputStream gz = new GZIPOutputStream(new ChannelStream(channel), 65536)) {
+            gz.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            gz.write(head);
+            if (null != body)
+                gz.write(body);
+            gz.write(CRLF);
+            gz.write(CRLF);
+        }
+    }
+
+    private static String recordId() {
+        return "<urn:uuid:" + UUID.randomUUID() + ">";
+    }
+
+    private static String sha1(byte[]... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (byte[] part : parts) {
+                if (null != part)
+                    md.update(part);
+            }
+            return "sha1:" + base32(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * RFC 4648 base32 as used in WARC digests
+     */
+    private static String base32(byte[] bytes) {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+        StringBuilder sb = new StringBuilder((bytes.length * 8 + 4) / 5);
+        int buffer = 0, bits = 0;
+        for (byte b : bytes) {
+            buffer = (buffer << 8) | (b & 0xff);
+            bits += 8;
+            while (bits >= 5) {
+                sb.append(alphabet.charAt((buffer >>> (bits - 5)) & 31));
+                bits -= 5;
+            }
+        }
+        if (bits > 0)
+            sb.append(alphabet.charAt((buffer << (5 - bits)) & 31));
+        return sb.toString();
+    }
+
+    /**
+     * Writes straight to the channel and does not close it when the gzip member is closed
+     */
+    private static class ChannelStream extends FilterOutputStream {
+        ChannelStream(FileChannel channel) {
+            super(Channels.newOutputStream(channel));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+package com.mentalresonance.dust.feeds.warc;
+
+import com.mentalresonance.dust.core.actors.Actor;
+import com.mentalresonance.dust.core.actors.ActorBehavior;
+import com.mentalresonance.dust.core.actors.ActorRef;
+import com.mentalresonance.dust.core.actors.Props;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Archives the {@link WarcRecordMsg}s it is sent to rolling WARC segments (see {@link WarcWriter}). Fetchers
+ * (PageCrawlerActor, PagePipeActor) send their records here given this actor's path. It can also sit in a pipeline:
+ * anything other than a WarcRecordMsg is passed on unchanged.
+ *
+ * Each record holds its body on the heap until it is written, so if the disk falls behind the fetchers our mailbox
+ * would grow without limit. Fetchers therefore {@link #send} records, which counts the body bytes sent to us and not
+ * yet written: once that backlog would pass maxBacklogBytes (default 256MB) records are dropped, and logged, rather
+ * than queued. The count is kept per writer in this JVM - a record told to us directly is not counted.
+ */
+@Slf4j
+public class WarcWriterActor extends Actor {
+
+    private static final long MAX_BACKLOG = 256L << 20;
+    /**
+     * Backlog of each running writer by path
+     */
+    private static final ConcurrentHashMap<String, Backlog> backlogs = new ConcurrentHashMap<>();
+
+    private final Path dir;
+    private final String prefix;
+    private final long maxSegmentBytes;
+    private final Backlog backlog;
+    private WarcWriter writer = null;
+
+    /**
+     * Props
+     * @param dir to write segments into
+     * @param prefix of segment names
+     * @param maxSegmentBytes segments roll over once this big
+     * @return Props
+     */
+    public static Props props(String dir, String prefix, Long maxSegmentBytes) {
+        return props(dir, prefix, maxSegmentBytes, MAX_BACKLOG);
+    }
+
+    /**
+     * Props
+     * @param dir to write segments into
+     * @param prefix of segment names
+     * @param maxSegmentBytes segments roll over once this big
+     * @param maxBacklogBytes bodies sent to us and not yet written are kept below this - records past it are dropped
+     * @return Props
+     */
+    public static Props props(String dir, String prefix, Long maxSegmentBytes, Long maxBacklogBytes) {
+        return Props.create(WarcWriterActor.class, dir, prefix, maxSegmentBytes, maxBacklogBytes);
+    }
+
+    /**
+     * Props - 1GB segments
+     * @param dir to write segments into
+     * @param prefix of segment names
+     * @return Props
+     */
+    public static Props props(String dir, String prefix) {
+        return props(dir, prefix, 1L << 30);
+    }
+
+    /**
+     * Constructor - 256MB backlog
+     * @param dir to write segments into
+     * @param prefix of segment names
+     * @param maxSegmentBytes segments roll over once this big
+     */
+    public WarcWriterActor(String dir, String prefix, Long maxSegmentBytes) {
+        this(dir, prefix, maxSegmentBytes, MAX_BACKLOG);
+    }
+
+    /**
+     * Constructor
+     * @param dir to write segments into
+     * @param prefix of segment names
+     * @param maxSegmentBytes segments roll over once this big
+     * @param maxBacklogBytes bodies sent to us and not yet written are kept below this
+     */
+    public WarcWriterActor(String dir, String prefix, Long maxSegmentBytes, Long maxBacklogBytes) {
+        this.dir = Path.of(dir);
+        this.prefix = prefix;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.backlog = new Backlog(maxBacklogBytes);
+    }
+
+    /**
+     * Send a record to a writer unless its backlog is full, in which case the record is dropped
+     * @param writer a WarcWriterActor
+     * @param record to archive
+     * @param sender of the record
+     * @return true if sent
+     */
+    public static boolean send(ActorRef writer, WarcRecordMsg record, ActorRef sender) {
+        Backlog backlog = backlogs.get(key(writer.path));
+        long bytes = record.getBody().length;
+
+        if (null != backlog) {
+            if (backlog.bytes.addAndGet(bytes) > backlog.max) {
+                backlog.bytes.addAndGet(-bytes);
+                log.warn("{} is {} bytes behind - not archiving {}", writer.path, backlog.bytes.get(), record.getUrl());
+                return false;
+            }
+            backlog.counted.add(record);
+        }
+        writer.tell(record, sender);
+        return true;
+    }
+
+    @Override
+    protected void preStart() {
+        backlogs.put(key(self.path), backlog);
+        try {
+            writer = new WarcWriter(dir, prefix, maxSegmentBytes);
+        } catch (IOException e) {
+            log.error("{} cannot write to {}: {}", self.path, dir, e.getMessage());
+        }
+    }
+
+    @Override
+    protected void postStop() {
+        backlogs.remove(key(self.path), backlog);
+        try {
+            if (null != writer)
+                writer.close();
+        } catch (IOException e) {
+            log.error("{} could not close segment: {}", self.path, e.getMessage());
+        }
+    }
+
+    @Override
+    protected ActorBehavior createBehavior() {
+        return message -> {
+            switch (message) {
+                case WarcRecordMsg msg -> {
+                    if (null != writer) {
+                        try {
+                            writer.write(msg);
+                        } catch (IOException e) {
+                            log.error("{} could not archive {}: {}", self.path, msg.getUrl(), e.getMessage());
+                        }
+                    }
+                    if (backlog.counted.remove(msg))
+                        backlog.bytes.addAndGet(-msg.getBody().length);
+                }
+                default -> parent.tell(message, self);
+            }
+        };
+    }
+
+    private static String key(String path) {
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    /**
+     * Body bytes sent to a writer and not yet written
+     */
+    private static class Backlog {
+        final long max;
+        final AtomicLong bytes = new AtomicLong();
+        /**
+         * Records counted in bytes - WarcRecordMsg has no equals() so this is by identity
+         */
+        final Set<WarcRecordMsg> counted = ConcurrentHashMap.newKeySet();
+
+        Backlog(long max) {
+            this.max = max;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+import com.mentalresonance.dust.core.actors.Actor
+import com.mentalresonance.dust.core.actors.ActorBehavior
+import com.mentalresonance.dust.core.actors.ActorRef
+import com.mentalresonance.dust.core.actors.ActorSystem
+import com.mentalresonance.dust.core.actors.Props
+import com.mentalresonance.dust.core.msgs.StartMsg
+import com.mentalresonance.dust.core.msgs.Terminated
+import com.mentalresonance.dust.core.services.FSTPersistenceService
+import com.mentalresonance.dust.feeds.crawler.CrawlConfig
+import com.mentalresonance.dust.feeds.crawler.CrawlStatsMsg
+import com.mentalresonance.dust.feeds.crawler.PageCrawlMsg
+import com.mentalresonance.dust.feeds.crawler.SiteCrawlerPipeActor
+import com.mentalresonance.dust.html.msgs.HtmlDocumentMsg
+import com.sun.net.httpserver.HttpServer
+import groovy.util.logging.Slf4j
+import spock.lang.Specification
+
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryPoolMXBean
+import java.lang.management.MemoryType
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Offline crawl benchmark against a synthetic local site. Tune with system properties:
+ * <ul>
+ *     <li>bench.pages - pages on the site (2000)</li>
+ *     <li>bench.fanout - links per page (8)</li>
+ *     <li>bench.latencyMS, bench.jitterMS - server latency is latencyMS plus an exponential with mean jitterMS (5, 20)</li>
+ *     <li>bench.crawlers - CrawlConfig.maxActiveCrawlers (64)</li>
+ *     <li>bench.minPagesPerSec - fail below this throughput (0, i.e. never)</li>
+ * </ul>
+ */
+@Slf4j
+class CrawlThroughputBenchmarkTest extends Specification {
+
+	static final int PAGES = Integer.getInteger('bench.pages', 2000)
+	static final int FANOUT = Integer.getInteger('bench.fanout', 8)
+	static final long LATENCY_MS = Long.getLong('bench.latencyMS', 5L)
+	static final long JITTER_MS = Long.getLong('bench.jitterMS', 20L)
+	static final int CRAWLERS = Integer.getInteger('bench.crawlers', 64)
+	static final double MIN_PAGES_PER_SEC = Double.parseDouble(System.getProperty('bench.minPagesPerSec', '0'))
+
+	static String pagePath(int i) { i == 0 ? '/' : "/p/$i" }
+
+	/**
+	 * Maps path -> times the server served it, and page url -> times it was sent on
+	 */
+	static ConcurrentHashMap<String, AtomicInteger> served = new ConcurrentHashMap<>()
+	static ConcurrentHashMap<String, AtomicInteger> sent = new ConcurrentHashMap<>()
+	static CountDownLatch done = new CountDownLatch(1)
+	static volatile int peakCrawlers = 0
+	static volatile CrawlStatsMsg lastStats = null
+
+	/**
+	 * Runs the crawler, collects what it sends on and samples its stats
+	 */
+	@Slf4j
+	static class Driver extends Actor {
+
+		String root
+		CrawlConfig config
+		ActorRef crawler
+
+		static Props props(String root, CrawlConfig config) {
+			Props.create(Driver, root, config)
+		}
+
+		Driver(String root, CrawlConfig config) {
+			this.root = root
+			this.config = config
+		}
+
+		@Override
+		void preStart() {
+			crawler = actorOf(SiteCrawlerPipeActor.props([['.*', SiteCrawlerPipeActor.PAGE]], [], config), 'crawler')
+			watch(crawler)
+		}
+
+		ActorBehavior createBehavior() {
+			(message) -> {
+				switch (message) {
+					case StartMsg:
+						crawler.tell(new PageCrawlMsg(self, root, SiteCrawlerPipeActor.ROOT), self)
+						scheduleIn(new CrawlStatsMsg(), 100L)
+						break
+					case CrawlStatsMsg:
+						if (message.root == null)	// Our own timer - ask the crawler
+							crawler.tell(message, self)
+						else {
+							peakCrawlers = Math.max(peakCrawlers, message.peakActiveCrawlers)
+							lastStats = message
+							scheduleIn(new CrawlStatsMsg(), 100L)
+						}
+						break
+					case HtmlDocumentMsg:
+						sent.computeIfAbsent(message.source, k -> new AtomicInteger()).incrementAndGet()
+						break
+					case Terminated:
+						done.countDown()
+						break
+				}
+			}
+		}
+	}
+
+	/**
+	 * Synthetic site. Page i links to pages i * FANOUT + 1 .. i * FANOUT + FANOUT (so every page is reachable) plus
+	 * some random pages (so the crawler sees plenty of links it already has) and a page under /private/, which robots.txt
+	 * disallows.
+	 */
+	static HttpServer site() {
+		HttpServer server = HttpServer.create(new InetSocketAddress('localhost', 0), 256)
+		server.executor = Executors.newVirtualThreadPerTaskExecutor()
+		server.createContext('/') { exchange ->
+			String path = exchange.requestURI.path
+			served.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet()
+			byte[] body
+			String type = 'text/html; charset=utf-8'
+
+			if (path == '/robots.txt') {
+				body = 'User-agent: *\nDisallow: /private/\n'.bytes
+				type = 'text/plain'
+			}
+			else {
+				ThreadLocalRandom random = ThreadLocalRandom.current()
+				Thread.sleep(LATENCY_MS + (long) (-JITTER_MS * Math.log(1.0 - random.nextDouble())))
+				int i = path == '/' ? 0 : path.substring(path.lastIndexOf('/') + 1) as int
+				List<Integer> targets = ((i * FANOUT + 1)..(i * FANOUT + FANOUT)).findAll { it < PAGES }
+				(0..<FANOUT.intdiv(2)).each { targets << random.nextInt(PAGES) }
+				String links = targets.collect { "<li><a href=\"${pagePath(it)}\">Page $it</a></li>" }.join('\n') +
+					"<li><a href=\"/private/$i\">Private</a></li>"
+				body = """<html><head><title>Page $i</title></head><body><h1>Page $i</h1>
+					<p>${'Lorem ipsum dolor sit amet. ' * 40}</p><ul>$links</ul></body></html>""".bytes
+			}
+			exchange.responseHeaders.add('Content-Type', type)
+			exchange.sendResponseHeaders(200, body.length)
+			exchange.responseBody.withCloseable { it.write(body) }
+		}
+		server.start()
+		server
+	}
+
+	def "CrawlThroughput"() {
+		when:
+			HttpServer server = site()
+			String root = "http://localhost:${server.address.port}/"
+			ActorSystem system = new ActorSystem("CrawlBenchmark")
+			system.setPersistenceService(FSTPersistenceService.create())
+
+			CrawlConfig config = new CrawlConfig()
+			config.throttleIntervalMS = 0L
+			config.maxFetchesPerHost = CRAWLERS
+			config.maxActiveCrawlers = CRAWLERS
+
+			List<MemoryPoolMXBean> heap = ManagementFactory.memoryPoolMXBeans.findAll { it.type == MemoryType.HEAP }
+			System.gc()
+			heap.each { it.resetPeakUsage() }
+			long start = System.currentTimeMillis()
+
+			system.context.actorOf(Driver.props(root, config), 'driver').tell(new StartMsg(), null)
+			boolean finished = done.await(10, TimeUnit.MINUTES)
+
+			double secs = (System.currentTimeMillis() - start) / 1000.0
+			long peakHeap = (long) heap.sum { it.peakUsage.used }
+			double pagesPerSec = sent.size() / secs
+
+			log.info(String.format(
+				"%d pages (fanout %d) in %.1fs: %.1f pages/sec, peak heap %d MB, peak page crawlers %d",
+				sent.size(), FANOUT, secs, pagesPerSec, peakHeap >> 20, peakCrawlers
+			))
+			log.info("fetch ms ${lastStats?.fetchLatency?.summary()}, parse ms ${lastStats?.parseTime?.summary()}, throttle wait ms ${lastStats?.throttleWait?.summary()}")
+			system.stop()
+			server.stop(0)
+		then:
+			finished
+			// Every allowed page once, nothing robots.txt forbids, nothing fetched twice
+			sent.size() == PAGES
+			sent.values().every { it.get() == 1 }
+			served.keySet().every { !it.startsWith('/private/') }
+			served.findAll { it.key != '/robots.txt' }.values().every { it.get() == 1 }
+			pagesPerSec >= MIN_PAGES_PER_SEC
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+import com.mentalresonance.dust.core.actors.Actor
+import com.mentalresonance.dust.core.actors.ActorBehavior
+import com.mentalresonance.dust.core.actors.ActorRef
+import com.mentalresonance.dust.core.actors.ActorSystem
+import com.mentalresonance.dust.core.actors.Props
+import com.mentalresonance.dust.core.msgs.StartMsg
+import com.mentalresonance.dust.core.msgs.Terminated
+import com.mentalresonance.dust.core.services.FSTPersistenceService
+import com.mentalresonance.dust.feeds.crawler.CrawlConfig
+import com.mentalresonance.dust.feeds.crawler.CrawlPartition
+import com.mentalresonance.dust.feeds.crawler.PageCrawlMsg
+import com.mentalresonance.dust.feeds.crawler.SiteCrawlerPipeActor
+import com.mentalresonance.dust.html.msgs.HtmlDocumentMsg
+import com.sun.net.httpserver.HttpServer
+import groovy.util.logging.Slf4j
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@Slf4j
+class DistributedCrawlTest extends Specification {
+
+	static final int NODES = 3
+	static final int PAGES = 60
+
+	/**
+	 * What one run saw - page url -> number of times it was sent on, and node -> pages it sent on
+	 */
+	static class Results {
+		final ConcurrentHashMap<String, AtomicInteger> seen = new ConcurrentHashMap<>()
+		final ConcurrentHashMap<Integer, AtomicInteger> perNode = new ConcurrentHashMap<>()
+		final CountDownLatch done = new CountDownLatch(NODES)
+	}
+
+	/**
+	 * Owns this node's crawler, starts it on the root and collects the pages it sends on
+	 */
+	@Slf4j
+	static class Collector extends Actor {
+
+		int node
+		String root
+		CrawlConfig config
+		Results results
+		ActorRef crawler
+
+		static Props props(Integer node, String root, CrawlConfig config, Results results) {
+			Props.create(Collector, node, root, config, results)
+		}
+
+		Collector(Integer node, String root, CrawlConfig config, Results results) {
+			this.node = node
+			this.root = root
+			this.config = config
+			this.results = results
+		}
+
+		@Override
+		void preStart() {
+			crawler = actorOf(SiteCrawlerPipeActor.props([['.*', SiteCrawlerPipeActor.PAGE]], [], config), 'crawler')
+			watch(crawler)
+		}
+
+		ActorBehavior createBehavior() {
+			(message) -> {
+				switch (message) {
+					case StartMsg:
+						crawler.tell(new PageCrawlMsg(self, root, SiteCrawlerPipeActor.ROOT), self)
+						break
+					case HtmlDocumentMsg:
+						results.seen.computeIfAbsent(message.source, k -> new AtomicInteger()).incrementAndGet()
+						results.perNode.computeIfAbsent(node, k -> new AtomicInteger()).incrementAndGet()
+						break
+					case Terminated:
+						log.info "Node $node crawler finished"
+						results.done.countDown()
+						break
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ports nothing is listening on - the OS picks them
+	 */
+	static List<Integer> freePorts(int n) {
+		List<ServerSocket> sockets = (0..<n).collect { new ServerSocket(0) }
+		List<Integer> ports = sockets*.localPort
+		sockets*.close()
+		ports
+	}
+
+	/**
+	 * Local stand-in site - page i links to pages 2i+1 and 2i+2
+	 */
+	static HttpServer site() {
+		HttpServer server = HttpServer.create(new InetSocketAddress('localhost', 0), 0)
+		server.createContext('/') { exchange ->
+			String path = exchange.requestURI.path
+			byte[] body
+			String type = 'text/html; charset=utf-8'
+			if (path == '/robots.txt') {
+				body = 'User-agent: *\nAllow: /\n'.bytes
+				type = 'text/plain'
+			}
+			else {
+				int i = path.startsWith('/p/') ? path.substring(3) as int : 0
+				String links = [2 * i + 1, 2 * i + 2].findAll { it < PAGES }.collect { "<a href=\"/p/$it\">Page $it</a>" }.join('\n')
+				body = "<html><head><title>Page $i</title></head><body><h1>Page $i</h1>$links</body></html>".bytes
+			}
+			exchange.responseHeaders.add('Content-Type', type)
+			exchange.sendResponseHeaders(200, body.length)
+			exchange.responseBody.withCloseable { it.write(body) }
+		}
+		server.start()
+		server
+	}
+
+	/**
+	 * Spread a crawl of the stand-in site over several ActorSystems in this JVM talking over Dust remoting. Every
+	 * page should be sent on exactly once, every node should do some of the work, and every node's crawler should
+	 * stop when the crawl is over.
+	 */
+	def "PartitionedCrawl"() {
+		when:
+			HttpServer server = site()
+			String root = "http://localhost:${server.address.port}/"
+			Results results = new Results()
+			List<Integer> ports = freePorts(NODES)
+			List<String> peers = (0..<NODES).collect { "dust://localhost:${ports[it]}/Node$it/user/collector/crawler".toString() }
+			List<ActorSystem> systems = (0..<NODES).collect { i ->
+				ActorSystem system = new ActorSystem("Node$i", ports[i])
+				system.setPersistenceService(FSTPersistenceService.create())
+				system
+			}
+			systems.eachWithIndex { system, i ->
+				CrawlConfig config = new CrawlConfig()
+				config.throttleIntervalMS = 10L
+				config.partition = new CrawlPartition(peers, i, false)
+				system.context.actorOf(Collector.props(i, root, config, results), 'collector')
+			}
+			systems.each { it.context.actorSelection('/user/collector').tell(new StartMsg(), null) }
+
+			boolean finished = results.done.await(2, TimeUnit.MINUTES)
+			log.info "Pages per node: ${results.perNode}"
+			systems.each { it.stop() }
+			server.stop(0)
+		then:
+			finished
+			results.seen.size() == PAGES
+			results.seen.values().every { it.get() == 1 }
+			results.perNode.size() == NODES
+	}
+}
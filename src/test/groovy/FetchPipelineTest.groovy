@@ -0,0 +1,279 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+
+import com.mentalresonance.dust.core.actors.Actor
+import com.mentalresonance.dust.core.actors.ActorBehavior
+import com.mentalresonance.dust.core.actors.ActorRef
+import com.mentalresonance.dust.core.actors.ActorSystem
+import com.mentalresonance.dust.core.actors.Props
+import com.mentalresonance.dust.core.services.FSTPersistenceService
+import com.mentalresonance.dust.feeds.page.FetchConfig
+import com.mentalresonance.dust.feeds.page.FetchFailedMsg
+import com.mentalresonance.dust.feeds.page.FetchStatsMsg
+import com.mentalresonance.dust.feeds.page.PagePipeActor
+import com.mentalresonance.dust.feeds.page.PersistingPagePipeActor
+import com.mentalresonance.dust.feeds.store.FilePageStore
+import com.mentalresonance.dust.html.msgs.HtmlDocumentMsg
+import com.sun.net.httpserver.HttpServer
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * PagePipeActor and PersistingPagePipeActor against a local server - backlog overflow, retry and permanent failure,
+ * hedging and batches
+ */
+class FetchPipelineTest extends Specification {
+
+	/**
+	 * Collects everything sent to it
+	 */
+	static class Collect extends Actor {
+
+		BlockingQueue<Object> received
+
+		static Props props(BlockingQueue<Object> received) {
+			Props.create(Collect, received)
+		}
+
+		Collect(BlockingQueue<Object> received) {
+			this.received = received
+		}
+
+		ActorBehavior createBehavior() {
+			(message) -> { received.add(message) }
+		}
+	}
+
+	/**
+	 * Owns the pipe under test - passes on what the test sends it and collects what the pipe sends back
+	 */
+	static class Parent extends Collect {
+
+		Props pipeProps
+		ActorRef pipe
+
+		static Props props(Props pipeProps, BlockingQueue<Object> received) {
+			Props.create(Parent, pipeProps, received)
+		}
+
+		Parent(Props pipeProps, BlockingQueue<Object> received) {
+			super(received)
+			this.pipeProps = pipeProps
+		}
+
+		@Override
+		void preStart() {
+			pipe = actorOf(pipeProps, 'pipe')
+		}
+
+		ActorBehavior createBehavior() {
+			(message) -> {
+				if (null == sender)
+					pipe.tell(message, self)
+				else
+					received.add(message)
+			}
+		}
+	}
+
+	/**
+	 * Local server. Paths are /<status>/<name> - the status is sent, /flaky/<name> fails twice with 503 then succeeds,
+	 * /wait/<name> takes 200ms, /slow/<name> takes 2s the first time it is asked for and /short/<name> promises more
+	 * body than it sends. Every request is counted by path, and the most requests in progress at once is kept.
+	 */
+	static HttpServer server(ConcurrentHashMap<String, AtomicInteger> hits, AtomicInteger concurrent, AtomicInteger maxConcurrent) {
+		HttpServer server = HttpServer.create(new InetSocketAddress('127.0.0.1', 0), 0)
+		server.executor = Executors.newCachedThreadPool()
+		server.createContext('/') { exchange ->
+			String path = exchange.requestURI.path
+			int hit = hits.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet()
+			maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max)
+			try {
+				String kind = path.split('/')[1]
+				int status = kind == 'flaky' ? (hit <= 2 ? 503 : 200) : kind.isInteger() ? kind as int : 200
+				if (kind == 'wait')
+					Thread.sleep(200L)
+				else if (kind == 'slow' && 1 == hit)
+					Thread.sleep(2000L)
+				byte[] body = "<html><body>$path</body></html>".bytes
+				exchange.responseHeaders.add('Content-Type', 'text/html; charset=utf-8')
+				if (kind == 'short') {
+					exchange.sendResponseHeaders(status, body.length + 1000)
+					exchange.responseBody.write(body)
+					exchange.responseBody.flush()
+					exchange.close()	// Connection is dropped with the body incomplete
+				}
+				else {
+					exchange.sendResponseHeaders(status, body.length)
+					exchange.responseBody.withCloseable { it.write(body) }
+				}
+			}
+			finally {
+				concurrent.decrementAndGet()
+			}
+		}
+		server.start()
+		server
+	}
+
+	static HtmlDocumentMsg page(String url) {
+		HtmlDocumentMsg msg = new HtmlDocumentMsg(null)
+		msg.source = url
+		msg
+	}
+
+	/**
+	 * Wait for n messages of a type
+	 */
+	static <T> List<T> await(BlockingQueue<Object> received, Class<T> type, int n, long timeoutMS = 10_000L) {
+		List<T> found = []
+		long until = System.currentTimeMillis() + timeoutMS
+		while (found.size() < n) {
+			Object msg = received.poll(Math.max(1L, until - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+			if (null == msg)
+				break
+			if (type.isInstance(msg))
+				found << type.cast(msg)
+		}
+		found
+	}
+
+	ActorSystem system
+	HttpServer server
+	ConcurrentHashMap<String, AtomicInteger> hits = new ConcurrentHashMap<>()
+	AtomicInteger concurrent = new AtomicInteger(), maxConcurrent = new AtomicInteger()
+	BlockingQueue<Object> received = new LinkedBlockingQueue<>(), dead = new LinkedBlockingQueue<>()
+	String base
+
+	def setup() {
+		server = server(hits, concurrent, maxConcurrent)
+		base = "http://127.0.0.1:${server.address.port}"
+		system = new ActorSystem('FetchPipelineTest')
+		system.setPersistenceService(FSTPersistenceService.create())
+		system.context.actorOf(Collect.props(dead), 'dead')
+	}
+
+	def cleanup() {
+		system?.stop()
+		server?.stop(0)
+	}
+
+	FetchConfig config() {
+		FetchConfig config = new FetchConfig()
+		config.deadLetter = '/user/dead'
+		config.retry.baseDelayMS = 10L
+		config
+	}
+
+	def "BacklogOverflowGoesToDeadLetter"() {
+		when:
+			FetchConfig config = config()
+			config.maxInFlight = 1
+			config.maxBacklog = 1
+			ActorRef parent = system.context.actorOf(Parent.props(PagePipeActor.props([:], null, config), received), 'parent')
+			(1..3).each { parent.tell(page("$base/wait/$it"), null) }
+			List<FetchFailedMsg> dropped = await(dead, FetchFailedMsg, 1)
+			List<HtmlDocumentMsg> pages = await(received, HtmlDocumentMsg, 2)
+		then:
+			dropped*.url == ["$base/wait/3".toString()]
+			dropped[0].error == 'backlog full'
+			dropped[0].attempts == 0
+			pages*.source == ["$base/wait/1", "$base/wait/2"]*.toString()
+			maxConcurrent.get() == 1
+	}
+
+	def "TransientFailuresAreRetriedAndPermanentOnesAreNot"() {
+		when:
+			ActorRef parent = system.context.actorOf(Parent.props(PagePipeActor.props([:], null, config()), received), 'parent')
+			['flaky/a', '404/b', '503/c'].each { parent.tell(page("$base/$it"), null) }
+			List<HtmlDocumentMsg> pages = await(received, HtmlDocumentMsg, 1)
+			List<FetchFailedMsg> failed = await(dead, FetchFailedMsg, 2).sort { it.code }
+		then:
+			pages*.source == ["$base/flaky/a".toString()]
+			pages[0].html.contains('/flaky/a')
+			hits['/flaky/a'].get() == 3
+			failed*.code == [404, 503]
+			failed*.attempts == [1, 3]		// Not found is permanent, unavailable is retried until maxAttempts
+			hits['/404/b'].get() == 1
+			hits['/503/c'].get() == 3
+	}
+
+	def "UnreadableBodyGoesToDeadLetter"() {
+		when:
+			ActorRef parent = system.context.actorOf(Parent.props(PagePipeActor.props([:], null, config()), received), 'parent')
+			parent.tell(page("$base/short/a"), null)
+			parent.tell(page("$base/200/b"), null)
+			List<FetchFailedMsg> failed = await(dead, FetchFailedMsg, 1)
+			List<HtmlDocumentMsg> pages = await(received, HtmlDocumentMsg, 2, 2000L)
+		then:
+			failed*.url == ["$base/short/a".toString()]
+			failed[0].code == 200
+			failed[0].attempts == 1
+			failed[0].error != null
+			pages*.source == ["$base/200/b".toString()]
+	}
+
+	def "HedgeWinsWhenTheFirstRequestIsSlow"() {
+		when:
+			FetchConfig config = config()
+			config.retry.hedgePercentile = 0.9
+			config.retry.hedgeMinSamples = 5
+			ActorRef parent = system.context.actorOf(Parent.props(PagePipeActor.props([:], null, config), received), 'parent')
+			(1..5).each { parent.tell(page("$base/200/$it"), null) }
+			await(received, HtmlDocumentMsg, 5)
+			long start = System.currentTimeMillis()
+			parent.tell(page("$base/slow/x"), null)
+			List<HtmlDocumentMsg> slow = await(received, HtmlDocumentMsg, 1)
+			long took = System.currentTimeMillis() - start
+			parent.tell(new FetchStatsMsg(), null)
+			FetchStatsMsg stats = await(received, FetchStatsMsg, 1)[0]
+		then:
+			slow*.source == ["$base/slow/x".toString()]
+			took < 1000L				// The first request takes 2s
+			hits['/slow/x'].get() == 2
+			stats.hedges == 1
+			stats.hedgeWins == 1
+	}
+
+	def "BatchSaysHowEachPageWentAndStaysWithinLimits"() {
+		when:
+			FetchConfig config = config()
+			config.maxInFlight = 2
+			List<String> urls = (1..6).collect { "$base/wait/$it".toString() } + "$base/404/missing".toString()
+			String dir = Files.createTempDirectory('batch').toString()
+			ActorRef parent = system.context.actorOf(
+				Parent.props(PersistingPagePipeActor.props([:], new FilePageStore(), 4, config), received), 'parent'
+			)
+			parent.tell(new PersistingPagePipeActor.PersistPagesBatchMsg(urls, dir), null)
+			PersistingPagePipeActor.PersistPagesBatchMsg reply = await(received, PersistingPagePipeActor.PersistPagesBatchMsg, 1)[0]
+		then:
+			reply.failed == 1
+			reply.pages.findAll { null == it.error }*.url == urls[0..5]
+			reply.pages.every { null != it.error || Files.exists(Path.of(dir, it.fileName)) }
+			reply.pages[6].error != null
+			maxConcurrent.get() <= 2
+	}
+}
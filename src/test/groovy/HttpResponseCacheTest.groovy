@@ -0,0 +1,134 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+import com.mentalresonance.dust.feeds.util.HttpResponseCache
+import com.mentalresonance.dust.http.service.HttpRequestResponseMsg
+import com.sun.net.httpserver.HttpServer
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
+
+class HttpResponseCacheTest extends Specification {
+
+	static String fetch(OkHttpClient client, HttpResponseCache cache, String url) {
+		HttpRequestResponseMsg msg = new HttpRequestResponseMsg(null, new Request.Builder().url(url).build())
+		if (! cache.serve(msg))
+			msg.response = cache.update(msg.request, client.newCall(msg.request).execute())
+		msg.response.withCloseable { it.header(HttpResponseCache.CACHE_HEADER, "network") + ":" + it.body().string() }
+	}
+
+	def "FreshHitsAndRevalidations"() {
+		AtomicInteger requests = new AtomicInteger()
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0)
+		server.createContext("/fresh") { exchange ->
+			requests.incrementAndGet()
+			byte[] body = "fresh".bytes
+			exchange.responseHeaders.add("Cache-Control", "max-age=60")
+			exchange.sendResponseHeaders(200, body.length)
+			exchange.responseBody.withCloseable { it.write(body) }
+		}
+		server.createContext("/etag") { exchange ->
+			requests.incrementAndGet()
+			exchange.responseHeaders.add("Cache-Control", "no-cache")
+			exchange.responseHeaders.add("ETag", '"v1"')
+			if (exchange.requestHeaders.getFirst("If-None-Match") == '"v1"') {
+				exchange.sendResponseHeaders(304, -1)
+				exchange.close()
+			} else {
+				byte[] body = "etag".bytes
+				exchange.sendResponseHeaders(200, body.length)
+				exchange.responseBody.withCloseable { it.write(body) }
+			}
+		}
+		server.start()
+		String base = "http://127.0.0.1:${server.address.port}"
+		OkHttpClient client = new OkHttpClient()
+		File dir = Files.createTempDirectory("dust-cache").toFile()
+		HttpResponseCache cache = new HttpResponseCache(dir.toPath(), 1 << 20)
+
+		when:
+			List<String> fresh = (1..3).collect { fetch(client, cache, "$base/fresh") }
+			List<String> etag = (1..3).collect { fetch(client, cache, "$base/etag") }
+			HttpResponseCache reopened = new HttpResponseCache(dir.toPath(), 1 << 20)
+			String afterRestart = fetch(client, reopened, "$base/fresh")
+		then:
+			fresh == ["network:fresh", "hit:fresh", "hit:fresh"]
+			etag == ["network:etag", "revalidated:etag", "revalidated:etag"]
+			afterRestart == "hit:fresh"
+			requests.get() == 4
+			cache.hits == 2
+			cache.revalidations == 2
+			cache.stores == 2
+		cleanup:
+			server?.stop(0)
+			dir?.deleteDir()
+	}
+
+	def "EntriesTooBigForTheCacheAreServedButNotKept"() {
+		byte[] big = ("x" * 4096).bytes
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0)
+		server.createContext("/big") { exchange ->
+			exchange.responseHeaders.add("Cache-Control", "max-age=60")
+			exchange.sendResponseHeaders(200, 0)	// Chunked - the cache only finds out how big it is by storing it
+			exchange.responseBody.withCloseable { it.write(big) }
+		}
+		server.start()
+		OkHttpClient client = new OkHttpClient()
+		File dir = Files.createTempDirectory("dust-cache").toFile()
+		HttpResponseCache cache = new HttpResponseCache(dir.toPath(), 1024)
+
+		when:
+			String first = fetch(client, cache, "http://127.0.0.1:${server.address.port}/big")
+			String second = fetch(client, cache, "http://127.0.0.1:${server.address.port}/big")
+		then:
+			first == "network:" + new String(big)
+			second == first
+			cache.size == 0
+			cache.hits == 0
+		cleanup:
+			server?.stop(0)
+			dir?.deleteDir()
+	}
+
+	def "RevalidationOfAnEvictedEntryFails"() {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0)
+		server.createContext("/gone") { exchange ->
+			exchange.sendResponseHeaders(304, -1)
+			exchange.close()
+		}
+		server.start()
+		OkHttpClient client = new OkHttpClient()
+		File dir = Files.createTempDirectory("dust-cache").toFile()
+		HttpResponseCache cache = new HttpResponseCache(dir.toPath(), 1 << 20)
+		Request conditional = new Request.Builder()
+			.url("http://127.0.0.1:${server.address.port}/gone")
+			.header("If-None-Match", '"v1"')
+			.build()
+
+		when:
+			cache.update(conditional, client.newCall(conditional).execute())
+		then:
+			thrown(HttpResponseCache.OrphanedRevalidationException)
+			! cache.has(conditional)
+		cleanup:
+			server?.stop(0)
+			dir?.deleteDir()
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+
+import com.mentalresonance.dust.feeds.crawler.LinkExtractor
+import com.mentalresonance.dust.html.services.HtmlService
+import com.mentalresonance.dust.http.service.HttpService
+import groovy.util.logging.Slf4j
+import org.jsoup.Jsoup
+import spock.lang.Specification
+
+@Slf4j
+class LinkExtractorBenchmarkTest extends Specification {
+
+	static final List<String> PAGES = [
+		'https://en.wikipedia.org/wiki/List_of_sovereign_states',
+		'https://www.cnn.com',
+		'https://www.bbc.com/news'
+	]
+	static final int ITERATIONS = 50
+
+	/**
+	 * Time link extraction from some large live pages with a Jsoup DOM (as PageCrawlerActor used to) and with
+	 * the streaming LinkExtractor, and log the times and link counts. Needs network access.
+	 */
+	def "LinkExtractorVsJsoup"() {
+
+		when:
+			Map<String, String> pages = PAGES.collectEntries { url ->
+				[url, HttpService.doRequest(HttpService.buildGetRequest(url)).body().string()]
+			}
+			Map<String, List> results = [:]
+
+			pages.each { url, html ->
+				// Warm up both paths
+				10.times {
+					HtmlService.links(Jsoup.parse(html), url, true, true)
+					LinkExtractor.links(html, url, true)
+				}
+				long start = System.nanoTime()
+				int jsoupLinks = 0
+				ITERATIONS.times { jsoupLinks = HtmlService.links(Jsoup.parse(html), url, true, true).size() }
+				double jsoupMS = (System.nanoTime() - start) / 1e6 / ITERATIONS
+
+				start = System.nanoTime()
+				int streamLinks = 0
+				ITERATIONS.times { streamLinks = LinkExtractor.links(html, url, true).size() }
+				double streamMS = (System.nanoTime() - start) / 1e6 / ITERATIONS
+
+				log.info "%s (%d KB): Jsoup %.2f ms %d links, streaming %.2f ms %d links, speedup %.1fx".formatted(
+					url, html.length() >> 10, jsoupMS, jsoupLinks, streamMS, streamLinks, jsoupMS / streamMS
+				)
+				results[url] = [jsoupLinks, streamLinks]
+			}
+		then:
+			results.values().every { it[1] > 0 }
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+
+import com.mentalresonance.dust.feeds.crawler.LinkExtractor
+import com.mentalresonance.dust.html.services.HtmlService
+import org.jsoup.Jsoup
+import spock.lang.Specification
+
+/**
+ * LinkExtractor against fixed html, checked against what it should find and against HtmlService.links() on a Jsoup
+ * DOM (which PageCrawlerActor falls back to). Runs offline.
+ */
+class LinkExtractorTest extends Specification {
+
+	static final String PAGE = 'https://ex.com/dir/page.html'
+
+	def "ExtractorFindsWhatJsoupFinds"() {
+		when:
+			List<List<String>> links = LinkExtractor.links(html, PAGE, true)
+		then:
+			links == expected
+			links*.get(0) as Set == HtmlService.links(Jsoup.parse(html), PAGE, true, true)*.get(0) as Set
+		where:
+			html                                                                                  | expected
+			'<html><head><base href="https://ex.com/other/"></head><body><a href="x.html">X</a>'   | [['https://ex.com/other/x.html', 'X']]
+			'<a href="../up.html">Up</a> <a href="same.html">Same</a> <a href="/root">Root</a>'    | [['https://ex.com/up.html', 'Up'], ['https://ex.com/dir/same.html', 'Same'], ['https://ex.com/root', 'Root']]
+			'<a href="//ex.com/p">P</a><a href="//other.com/q">Off site</a>'                      | [['https://ex.com/p', 'P']]
+			'<a href="/s?a=1&amp;b=2">Tom &amp; Jerry &#33;</a>'                                  | [['https://ex.com/s?a=1&b=2', 'Tom & Jerry !']]
+			'<!-- <a href="/c">C</a> --><script>s = \'<a href="/s">S</a>\'</script><a href="/r">R</a>' | [['https://ex.com/r', 'R']]
+			'<a href=/unquoted class=x>Unquoted</a>'                                              | [['https://ex.com/unquoted', 'Unquoted']]
+			'<A HREF="/upper">UPPER</A>'                                                          | [['https://ex.com/upper', 'UPPER']]
+	}
+
+	def "NonPageLinksAreDropped"() {
+		expect:
+			LinkExtractor.links(
+				'<a href="#top">Top</a><a href="mailto:a@ex.com">Mail</a><a href="javascript:void(0)">JS</a>', PAGE, true
+			).isEmpty()
+	}
+}
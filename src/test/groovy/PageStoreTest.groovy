@@ -0,0 +1,217 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+
+import com.mentalresonance.dust.feeds.store.CasPageStore
+import com.mentalresonance.dust.feeds.store.Codecs
+import com.mentalresonance.dust.feeds.store.FilePageStore
+import com.mentalresonance.dust.feeds.store.FlatLayout
+import com.mentalresonance.dust.feeds.store.LayoutMigrator
+import com.mentalresonance.dust.feeds.store.SegmentPageStore
+import com.mentalresonance.dust.feeds.store.ShardedLayout
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+import java.nio.channels.ReadableByteChannel
+import java.nio.file.Files
+import java.nio.file.Path
+
+class PageStoreTest extends Specification {
+
+	static ReadableByteChannel channel(String s) {
+		Channels.newChannel(new ByteArrayInputStream(s.bytes))
+	}
+
+	def "ShardedLayoutKeepsHostsApart"() {
+		when:
+			ShardedLayout layout = new ShardedLayout()
+			String a = layout.path('https://a.com/news/story.html')
+			String b = layout.path('https://b.com/news/story.html')
+		then:
+			a.startsWith('a.com/') && a.endsWith('-story.html')
+			b.startsWith('b.com/')
+			a.split('/').length == 4
+			a != b
+			layout.path('https://a.com/news/story.html?page=2') != a
+			layout.path('http://a.com:8080/') ==~ /a\.com_8080\/\w\w\/\w\w\/\w{32}/
+	}
+
+	def "PutAndDelete"() {
+		when:
+			Path dir = Files.createTempDirectory('pages')
+			FilePageStore store = new FilePageStore(new ShardedLayout(), FilePageStore.Fsync.FILE)
+			String name = store.put(dir.toString(), 'https://a.com/x', channel('first'))
+			store.put(dir.toString(), 'https://a.com/x', channel('second'))
+		then:
+			Files.readString(dir.resolve(name)) == 'second'
+			Files.list(dir.resolve(name).parent).count() == 1	// No temporary files left behind
+			store.delete(dir.toString(), 'https://a.com/x') == name
+			store.delete(dir.toString(), 'https://a.com/x') == null
+	}
+
+	def "MigrateFlatToSharded"() {
+		when:
+			Path dir = Files.createTempDirectory('pages')
+			FilePageStore flat = new FilePageStore()
+			flat.put(dir.toString(), 'https://a.com/one', channel('one'))
+			flat.put(dir.toString(), 'https://a.com/two', channel('two'))
+			flat.put(dir.toString(), 'https://b.com/two', channel('two again'))
+			LayoutMigrator.Result result = LayoutMigrator.migrate(
+				dir, ['https://a.com/one', 'https://a.com/two', 'https://b.com/two', 'https://a.com/gone'],
+				new FlatLayout(), new ShardedLayout(), false
+			)
+		then:
+			result.moved == 1
+			result.missing == 1
+			result.ambiguous == ['https://a.com/two', 'https://b.com/two']
+			Files.readString(dir.resolve(new ShardedLayout().path('https://a.com/one'))) == 'one'
+			!Files.exists(dir.resolve('one'))
+	}
+
+	def "MigrateEscapedFlatUrls"() {
+		when:	// Named as the original PersistingPagePipeActor named them - escapes left as they are
+			Path dir = Files.createTempDirectory('pages')
+			Files.writeString(dir.resolve('caf%C3%A9-menu'), 'menu')
+			Files.writeString(dir.resolve('a b'), 'space')
+			LayoutMigrator.Result result = LayoutMigrator.migrate(
+				dir, ['https://a.com/caf%C3%A9/menu', 'https://a.com/a b'], new FlatLayout(), new ShardedLayout(), false
+			)
+		then:
+			new FlatLayout().path('https://a.com/caf%C3%A9/menu') == 'caf%C3%A9-menu'
+			result.moved == 2
+			result.missing == 0
+			Files.readString(dir.resolve(new ShardedLayout().path('https://a.com/caf%C3%A9/menu'))) == 'menu'
+	}
+
+	def "CasStoresIdenticalBodiesOnce"() {
+		when:
+			Path dir = Files.createTempDirectory('cas')
+			CasPageStore store = new CasPageStore()
+			String a = store.put(dir.toString(), 'https://a.com/story', channel('syndicated'))
+			String b = store.put(dir.toString(), 'https://b.com/copy', channel('syndicated'))
+		then:
+			a == b
+			Files.readString(dir.resolve(a)) == 'syndicated'
+		when:
+			store.delete(dir.toString(), 'https://a.com/story')
+		then:	// Still referenced by b.com
+			Files.exists(dir.resolve(a))
+		when:
+			store.put(dir.toString(), 'https://b.com/copy', channel('edited'))
+			store.close()
+			CasPageStore reopened = new CasPageStore()
+		then:
+			!Files.exists(dir.resolve(a))
+			reopened.blob(dir.toString(), 'https://a.com/story') == null
+			Files.readString(dir.resolve(reopened.blob(dir.toString(), 'https://b.com/copy'))) == 'edited'
+	}
+
+	def "CasRewritesItsLogWhileRunningAndSweepsOrphanBlobs"() {
+		when:
+			Path dir = Files.createTempDirectory('cas')
+			CasPageStore store = new CasPageStore()
+			5000.times { store.put(dir.toString(), "https://a.com/${it % 10}", channel("body $it")) }
+		then:
+			Files.readAllLines(dir.resolve('index.log')).size() < 1024
+		when:	// A blob written by a put whose log line never made it
+			store.close()
+			Path orphan = dir.resolve('blobs/ab/cd/abcd')
+			Files.createDirectories(orphan.parent)
+			Files.writeString(orphan, 'orphan')
+			CasPageStore reopened = new CasPageStore()
+		then:
+			reopened.open(dir.toString(), 'https://a.com/9').text == 'body 4999'
+			!Files.exists(orphan)
+	}
+
+	def "SegmentStoreAppendsDeletesAndCompacts"() {
+		when:
+			Path dir = Files.createTempDirectory('segments')
+			SegmentPageStore store = new SegmentPageStore(4096L, Codecs.GZIP, 0.5, 0L, FilePageStore.Fsync.NONE)
+			(0..<50).each { store.put(dir.toString(), "https://a.com/$it", channel("<p>${'page ' * 100}$it</p>")) }
+			(0..<40).each { store.delete(dir.toString(), "https://a.com/$it") }
+			long before = Files.list(dir).count()
+			int compacted = store.compact(dir.toString())
+			store.close()
+			SegmentPageStore reopened = new SegmentPageStore()
+		then:
+			before > 1
+			compacted > 0
+			Files.list(dir).count() < before
+			reopened.urls(dir.toString()).size() == 10
+			reopened.read(dir.toString(), 'https://a.com/3') == null
+			new String(reopened.read(dir.toString(), 'https://a.com/45')).endsWith('45</p>')
+	}
+
+	def "SegmentStoreRefusesPagesBiggerThanASegment"() {
+		when:
+			Path dir = Files.createTempDirectory('segments')
+			SegmentPageStore store = new SegmentPageStore(4096L, Codecs.NONE, 0.5, 0L, FilePageStore.Fsync.NONE)
+			store.put(dir.toString(), 'https://a.com/small', channel('small'))
+			store.put(dir.toString(), 'https://a.com/big', channel('x' * 10000))
+		then:
+			thrown(IOException)
+		when:	// Nothing of the refused page is left behind
+			store.put(dir.toString(), 'https://a.com/after', channel('after'))
+			store.close()
+			SegmentPageStore reopened = new SegmentPageStore()
+		then:
+			reopened.urls(dir.toString()) == ['https://a.com/small', 'https://a.com/after'] as Set
+			new String(reopened.read(dir.toString(), 'https://a.com/after')) == 'after'
+	}
+
+	def "CompressedPagesReadBackTransparently"() {
+		when:
+			Path dir = Files.createTempDirectory('compressed')
+			String html = "<html>${'<p>boilerplate</p>' * 500}</html>"
+			FilePageStore plain = new FilePageStore(new ShardedLayout(), FilePageStore.Fsync.NONE)
+			FilePageStore gzip = new FilePageStore(new ShardedLayout(), FilePageStore.Fsync.NONE, Codecs.GZIP)
+			plain.put(dir.toString(), 'https://a.com/p', channel(html))
+			String name = gzip.put(dir.toString(), 'https://a.com/p', channel(html))
+		then:
+			name.endsWith('.gz')
+			Files.size(dir.resolve(name)) < html.length().intdiv(5)
+			plain.open(dir.toString(), 'https://a.com/p').text == html	// Any store can read it
+			Files.list(dir.resolve(name).parent).count() == 1				// The uncompressed copy is gone
+			gzip.delete(dir.toString(), 'https://a.com/p') == name
+	}
+
+	def "UncompressedPagesNamedLikeCompressedOnesAreReadAsIs"() {
+		when:
+			Path dir = Files.createTempDirectory('compressed')
+			FilePageStore plain = new FilePageStore()
+			String name = plain.put(dir.toString(), 'https://a.com/dist/archive.tar.gz', channel('not gzip'))
+		then:
+			name == 'dist-archive.tar.gz'
+			plain.open(dir.toString(), 'https://a.com/dist/archive.tar.gz').text == 'not gzip'
+	}
+
+	def "UncompressedFlatPagesLeaveLookalikeNamesAlone"() {
+		when:
+			Path dir = Files.createTempDirectory('compressed')
+			FilePageStore plain = new FilePageStore()
+			plain.put(dir.toString(), 'https://a.com/p.gz', channel('other page'))
+			plain.put(dir.toString(), 'https://a.com/p', channel('page'))
+			plain.put(dir.toString(), 'https://a.com/q.gz', channel('q.gz'))
+			InputStream missing = plain.open(dir.toString(), 'https://a.com/q')
+			String deleted = plain.delete(dir.toString(), 'https://a.com/p')
+		then:
+			null == missing													// q.gz is not q compressed
+			deleted == 'p'
+			plain.open(dir.toString(), 'https://a.com/p.gz').text == 'other page'
+	}
+}
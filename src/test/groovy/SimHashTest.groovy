@@ -0,0 +1,70 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+
+import com.mentalresonance.dust.feeds.util.SimHash
+import com.mentalresonance.dust.feeds.util.SimHashIndex
+import spock.lang.Specification
+
+class SimHashTest extends Specification {
+
+	static final String CHROME = '<html><head><title>Site</title><script>var x = 1;</script></head>' +
+		'<body><nav>Home News Sport Weather About Contact</nav>'
+	static final String BODY = 'The quick brown fox jumps over the lazy dog while the farmer watches from the porch ' +
+		'and drinks his coffee slowly in the morning sun. '
+
+	def "NearDuplicatesAreCloseAndUnrelatedPagesAreNot"() {
+		when:
+			long page = SimHash.of(CHROME + "<p>${BODY * 3}Story one ends here.</p></body></html>")
+			long edited = SimHash.of(CHROME + "<p>${BODY * 3}Story one ends here!</p><footer>Updated</footer></body></html>")
+			long other = SimHash.of(CHROME + '<p>Markets fell sharply today as investors weighed new inflation figures ' +
+				'against strong corporate earnings across several sectors of the economy.</p></body></html>')
+		then:
+			SimHash.distance(page, page) == 0
+			SimHash.distance(page, edited) <= 3
+			SimHash.distance(page, other) > 20
+	}
+
+	def "PagesWithoutTextHaveNoSimHash"() {
+		expect:
+			null == SimHash.of('<html><head><script>var x = 1;</script></head><body><img src="a.png"></body></html>')
+			null == SimHash.of('')
+			null != SimHash.of('<p>one</p>')
+	}
+
+	def "BandLookupFindsEveryHashWithinTheThreshold"() {
+		when:
+			Random random = new Random(42)
+			SimHashIndex index = new SimHashIndex(3)
+			Map<String, Long> hashes = [:]
+			5000.times { hashes["random-$it".toString()] = random.nextLong() }
+			long query = random.nextLong()
+			// d bits flipped in different bands, 0 - 5 bits away
+			(0..5).each { d ->
+				long hash = query
+				d.times { hash ^= 1L << (it * 13) }
+				hashes["flipped-$d".toString()] = hash
+			}
+			hashes.each { key, hash -> index.add(hash, key) }
+		then:
+			index.size() == 5006
+			index.allNear(query) as Set == hashes.findAll { SimHash.distance(it.value, query) <= 3 }.keySet()
+			index.allNear(query) as Set == ['flipped-0', 'flipped-1', 'flipped-2', 'flipped-3'] as Set
+			index.near(query) != null
+			index.near(hashes['flipped-5'] ^ -1L) == null
+	}
+}
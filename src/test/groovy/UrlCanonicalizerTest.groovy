@@ -0,0 +1,58 @@
+/*
+ *   Copyright 2024-2025 Alan Littleford
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ */
+
+
+import com.mentalresonance.dust.feeds.util.UrlCanonicalizer
+import spock.lang.Specification
+
+class UrlCanonicalizerTest extends Specification {
+
+	def "Canonicalize"() {
+		expect:
+			UrlCanonicalizer.DEFAULT.canonicalize(url) == canonical
+		where:
+			url                                                    | canonical
+			'HTTP://User@Example.COM:80/a/./b/../C?b=2&a=1#frag'   | 'http://example.com/a/C?a=1&b=2'
+			'https://example.com:443'                              | 'https://example.com/'
+			'https://ex.com/a/b/../../..'                          | 'https://ex.com/'
+			'http://ex.com/%7euser/%2f?x=%aa'                      | 'http://ex.com/~user/%2F?x=%AA'
+			'https://ex.com/p;jsessionid=ABC?utm_source=x&sid=1'  | 'https://ex.com/p'
+			'https://ex.com/Path?Q=CaseKept'                       | 'https://ex.com/Path?Q=CaseKept'
+			'mailto:someone@ex.com'                                | 'mailto:someone@ex.com'
+	}
+
+	def "CrawlerVariantsAreTheSamePage"() {
+		when:
+			UrlCanonicalizer c = UrlCanonicalizer.crawler()
+		then:
+			c.canonicalize('http://www.ex.com/a/') == 'https://ex.com/a'
+			c.fingerprint('http://www.ex.com/a/') == c.fingerprint('https://ex.com/a#top')
+			c.fingerprint('https://ex.com/a') != c.fingerprint('https://ex.com/A')
+	}
+
+	def "SharedInstancesCannotBeChanged"() {
+		when:
+			UrlCanonicalizer custom = UrlCanonicalizer.DEFAULT.toBuilder().stripParams(['ref']).build()
+		then:
+			custom.canonicalize('https://ex.com/?ref=x&sid=1') == 'https://ex.com/?sid=1'
+			UrlCanonicalizer.DEFAULT.canonicalize('https://ex.com/?ref=x&sid=1') == 'https://ex.com/?ref=x'
+		when:
+			UrlCanonicalizer.DEFAULT.stripParams.add('ref')
+		then:
+			thrown(UnsupportedOperationException)
+	}
+}